@@ -0,0 +1,234 @@
+package com.dotcms.google.analytics.service;
+
+import com.dotcms.google.analytics.app.TransportConfig;
+import com.google.analytics.data.v1beta.BetaAnalyticsDataClient;
+import com.google.analytics.data.v1beta.DateRange;
+import com.google.analytics.data.v1beta.Dimension;
+import com.google.analytics.data.v1beta.DimensionHeader;
+import com.google.analytics.data.v1beta.DimensionValue;
+import com.google.analytics.data.v1beta.Metric;
+import com.google.analytics.data.v1beta.MetricHeader;
+import com.google.analytics.data.v1beta.MetricType;
+import com.google.analytics.data.v1beta.MetricValue;
+import com.google.analytics.data.v1beta.ResponseMetaData;
+import com.google.analytics.data.v1beta.Row;
+import com.google.analytics.data.v1beta.RunReportRequest;
+import com.google.analytics.data.v1beta.RunReportResponse;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.protobuf.util.JsonFormat;
+import com.sun.net.httpserver.HttpServer;
+import io.grpc.Grpc;
+import io.grpc.InsecureServerCredentials;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCalls;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the gRPC and HTTP/JSON transports of the Google Analytics client. Both run against a local fake server
+ * that answers runReport with the same canned report, so the numbers reflect the transport (framing, protobuf vs
+ * JSON encoding, connection handling) and not Google Analytics. The clients are built with the same settings code
+ * the plugin uses ({@link GoogleAnalyticsService#buildSettings}), so the channel settings of the app apply.
+ *
+ * <pre>
+ * ./gradlew transportBenchmark -PbenchmarkArgs="--rows 5000 --iterations 500 --threads 8"
+ * </pre>
+ *
+ * Options: --rows (rows per report, default 1000), --warmup (calls before measuring, default 100), --iterations
+ * (measured calls per thread, default 200), --threads (concurrent callers, default 4), --channelPoolSize,
+ * --executorThreads.
+ */
+public class TransportBenchmark {
+
+    private static final String PROPERTY = "properties/123456789";
+
+    private static final MethodDescriptor<RunReportRequest, RunReportResponse> RUN_REPORT =
+            MethodDescriptor.<RunReportRequest, RunReportResponse>newBuilder()
+                    .setType(MethodDescriptor.MethodType.UNARY)
+                    .setFullMethodName("google.analytics.data.v1beta.BetaAnalyticsData/RunReport")
+                    .setRequestMarshaller(ProtoUtils.marshaller(RunReportRequest.getDefaultInstance()))
+                    .setResponseMarshaller(ProtoUtils.marshaller(RunReportResponse.getDefaultInstance()))
+                    .build();
+
+    public static void main(final String[] args) throws Exception {
+
+        int rows = 1000;
+        int warmup = 100;
+        int iterations = 200;
+        int threads = 4;
+        int channelPoolSize = 0;
+        int executorThreads = 0;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            final int value = Integer.parseInt(args[i + 1]);
+            switch (args[i]) {
+                case "--rows": rows = value; break;
+                case "--warmup": warmup = value; break;
+                case "--iterations": iterations = value; break;
+                case "--threads": threads = value; break;
+                case "--channelPoolSize": channelPoolSize = value; break;
+                case "--executorThreads": executorThreads = value; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        final RunReportResponse report = newReport(rows);
+        final RunReportRequest request = RunReportRequest.newBuilder()
+                .setProperty(PROPERTY)
+                .addDateRanges(DateRange.newBuilder().setStartDate("30daysAgo").setEndDate("today"))
+                .addDimensions(Dimension.newBuilder().setName("pagePath"))
+                .addDimensions(Dimension.newBuilder().setName("country"))
+                .addMetrics(Metric.newBuilder().setName("sessions"))
+                .addMetrics(Metric.newBuilder().setName("screenPageViews"))
+                .build();
+
+        System.out.printf("runReport, %d rows (%d bytes as protobuf), %d threads x %d calls after %d warmup calls%n",
+                rows, report.getSerializedSize(), threads, iterations, warmup);
+
+        final Server grpcServer = startGrpcServer(report);
+        final HttpServer httpServer = startHttpServer(report);
+        try {
+            for (final TransportConfig.Transport transport : TransportConfig.Transport.values()) {
+
+                final String endpoint = transport == TransportConfig.Transport.GRPC ?
+                        "http://localhost:" + grpcServer.getPort() :
+                        "http://localhost:" + httpServer.getAddress().getPort();
+                final TransportConfig transportConfig =
+                        new TransportConfig(transport, channelPoolSize, 0, 64, executorThreads);
+                try (BetaAnalyticsDataClient client = BetaAnalyticsDataClient.create(GoogleAnalyticsService
+                        .buildSettings(NoCredentialsProvider.create(), transportConfig, endpoint))) {
+                    run(transport, client, request, warmup, iterations, threads);
+                }
+            }
+        } finally {
+            grpcServer.shutdownNow();
+            httpServer.stop(0);
+        }
+    }
+
+    private static void run(final TransportConfig.Transport transport,
+                            final BetaAnalyticsDataClient client,
+                            final RunReportRequest request,
+                            final int warmup,
+                            final int iterations,
+                            final int threads) throws Exception {
+
+        for (int i = 0; i < warmup; i++) {
+            client.runReport(request);
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Callable<long[]>> callers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                callers.add(() -> {
+                    final long[] latencies = new long[iterations];
+                    for (int call = 0; call < iterations; call++) {
+                        final long start = System.nanoTime();
+                        client.runReport(request);
+                        latencies[call] = System.nanoTime() - start;
+                    }
+                    return latencies;
+                });
+            }
+
+            final long start = System.nanoTime();
+            final List<Long> latencies = new ArrayList<>(threads * iterations);
+            for (final Future<long[]> future : executor.invokeAll(callers)) {
+                for (final long latency : future.get()) {
+                    latencies.add(latency);
+                }
+            }
+            final long elapsed = System.nanoTime() - start;
+
+            Collections.sort(latencies);
+            final double mean = latencies.stream().mapToLong(Long::longValue).average().orElse(0);
+            System.out.printf("%-10s %8.1f calls/s  mean %7.2f ms  p50 %7.2f ms  p99 %7.2f ms%n", transport,
+                    latencies.size() / (elapsed / 1e9), mean / 1e6,
+                    percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static long percentile(final List<Long> sorted, final double percentile) {
+        return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(percentile * sorted.size()) - 1));
+    }
+
+    private static Server startGrpcServer(final RunReportResponse report) throws IOException {
+
+        final ServerServiceDefinition service = ServerServiceDefinition
+                .builder("google.analytics.data.v1beta.BetaAnalyticsData")
+                .addMethod(RUN_REPORT, ServerCalls.asyncUnaryCall((request, observer) -> {
+                    observer.onNext(report);
+                    observer.onCompleted();
+                }))
+                .build();
+        return Grpc.newServerBuilderForPort(0, InsecureServerCredentials.create())
+                .addService(service)
+                .maxInboundMessageSize(64 * 1024 * 1024)
+                .build()
+                .start();
+    }
+
+    private static HttpServer startHttpServer(final RunReportResponse report) throws IOException {
+
+        final byte[] body = JsonFormat.printer().print(report).getBytes(StandardCharsets.UTF_8);
+        final HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/v1beta/" + PROPERTY + ":runReport", exchange -> {
+            try (InputStream requestBody = exchange.getRequestBody()) {
+                // the request is parsed like the real endpoint would
+                final RunReportRequest.Builder request = RunReportRequest.newBuilder();
+                JsonFormat.parser().ignoringUnknownFields().merge(
+                        new String(requestBody.readAllBytes(), StandardCharsets.UTF_8), request);
+            }
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                responseBody.write(body);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "transport-benchmark-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        return server;
+    }
+
+    private static RunReportResponse newReport(final int rows) {
+
+        final String[] countries = {"United States", "Germany", "Brazil", "India", "Japan", "Spain", "Canada"};
+        final RunReportResponse.Builder report = RunReportResponse.newBuilder()
+                .addDimensionHeaders(DimensionHeader.newBuilder().setName("pagePath"))
+                .addDimensionHeaders(DimensionHeader.newBuilder().setName("country"))
+                .addMetricHeaders(MetricHeader.newBuilder().setName("sessions").setType(MetricType.TYPE_INTEGER))
+                .addMetricHeaders(MetricHeader.newBuilder().setName("screenPageViews")
+                        .setType(MetricType.TYPE_INTEGER))
+                .setMetadata(ResponseMetaData.newBuilder().setCurrencyCode("USD").setTimeZone("America/New_York"))
+                .setRowCount(rows)
+                .setKind("analyticsData#runReport");
+        for (int i = 0; i < rows; i++) {
+            report.addRows(Row.newBuilder()
+                    .addDimensionValues(DimensionValue.newBuilder().setValue("/products/item-" + (i / 7)))
+                    .addDimensionValues(DimensionValue.newBuilder().setValue(countries[i % countries.length]))
+                    .addMetricValues(MetricValue.newBuilder().setValue(Integer.toString(i * 13 % 1000)))
+                    .addMetricValues(MetricValue.newBuilder().setValue(Integer.toString(i * 31 % 5000))));
+        }
+        return report.build();
+    }
+}
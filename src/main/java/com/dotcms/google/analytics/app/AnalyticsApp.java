@@ -2,13 +2,61 @@ package com.dotcms.google.analytics.app;
 
 public class AnalyticsApp {
 
+    /**
+     * Default number of GA queries a single site may run at the same time.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_QUERIES = 4;
+
+    /**
+     * Default number of GA queries a single site may have waiting for a free slot.
+     */
+    public static final int DEFAULT_MAX_QUEUED_QUERIES = 16;
+
+    /**
+     * Default max MB of heap taken by the reports a single site caches.
+     */
+    public static final int DEFAULT_REPORT_CACHE_MAX_MB = 64;
+
     private final char[] jsonKeyFile;
     private final String applicationName;
+    private final int maxConcurrentQueries;
+    private final int maxQueuedQueries;
+    private final TransportConfig transportConfig;
+    private final int reportCacheMaxMb;
 
     public AnalyticsApp(final char[] jsonKeyFile,
                         final String applicationName) {
+        this(jsonKeyFile, applicationName, DEFAULT_MAX_CONCURRENT_QUERIES, DEFAULT_MAX_QUEUED_QUERIES);
+    }
+
+    public AnalyticsApp(final char[] jsonKeyFile,
+                        final String applicationName,
+                        final int maxConcurrentQueries,
+                        final int maxQueuedQueries) {
+        this(jsonKeyFile, applicationName, maxConcurrentQueries, maxQueuedQueries, TransportConfig.DEFAULT);
+    }
+
+    public AnalyticsApp(final char[] jsonKeyFile,
+                        final String applicationName,
+                        final int maxConcurrentQueries,
+                        final int maxQueuedQueries,
+                        final TransportConfig transportConfig) {
+        this(jsonKeyFile, applicationName, maxConcurrentQueries, maxQueuedQueries, transportConfig,
+                DEFAULT_REPORT_CACHE_MAX_MB);
+    }
+
+    public AnalyticsApp(final char[] jsonKeyFile,
+                        final String applicationName,
+                        final int maxConcurrentQueries,
+                        final int maxQueuedQueries,
+                        final TransportConfig transportConfig,
+                        final int reportCacheMaxMb) {
         this.jsonKeyFile = jsonKeyFile;
         this.applicationName = applicationName;
+        this.maxConcurrentQueries = maxConcurrentQueries;
+        this.maxQueuedQueries = maxQueuedQueries;
+        this.transportConfig = transportConfig;
+        this.reportCacheMaxMb = reportCacheMaxMb;
     }
 
     public char [] getJsonKeyFile() {
@@ -19,4 +67,37 @@ public class AnalyticsApp {
     public String getApplicationName() {
         return applicationName;
     }
+
+    /**
+     * Max number of GA queries this site may run concurrently.
+     * @return int
+     */
+    public int getMaxConcurrentQueries() {
+        return maxConcurrentQueries;
+    }
+
+    /**
+     * Max number of GA queries this site may have waiting for a free slot, once this is reached
+     * new queries are rejected right away.
+     * @return int
+     */
+    public int getMaxQueuedQueries() {
+        return maxQueuedQueries;
+    }
+
+    /**
+     * Transport and channel settings used to call Google Analytics for this site.
+     * @return TransportConfig
+     */
+    public TransportConfig getTransportConfig() {
+        return transportConfig;
+    }
+
+    /**
+     * Max MB of heap taken by the reports this site caches, 0 to bound them by number instead.
+     * @return int
+     */
+    public int getReportCacheMaxMb() {
+        return reportCacheMaxMb;
+    }
 }
@@ -4,6 +4,8 @@ import com.dotcms.security.apps.AppSecrets;
 import com.dotcms.security.apps.Secret;
 import com.dotmarketing.beans.Host;
 import com.dotmarketing.business.APILocator;
+import com.dotmarketing.util.Config;
+import com.dotmarketing.util.Logger;
 
 import java.util.Map;
 import java.util.Optional;
@@ -32,8 +34,25 @@ public class AnalyticsAppService {
             final Map<String, Secret> secrets = appSecrets.get().getSecrets();
             final String applicationName = secrets.get("applicationName").getString();
             final char[] jsonKeyFile = secrets.get("jsonKeyFile").getValue();
+            final int maxConcurrentQueries = getIntSecret(secrets, "maxConcurrentQueries",
+                    Config.getIntProperty("GOOGLE_ANALYTICS_MAX_CONCURRENT_QUERIES",
+                            AnalyticsApp.DEFAULT_MAX_CONCURRENT_QUERIES));
+            final int maxQueuedQueries = getIntSecret(secrets, "maxQueuedQueries",
+                    Config.getIntProperty("GOOGLE_ANALYTICS_MAX_QUEUED_QUERIES",
+                            AnalyticsApp.DEFAULT_MAX_QUEUED_QUERIES));
+            final int reportCacheMaxMb = getIntSecret(secrets, "reportCacheMaxMb",
+                    Config.getIntProperty("GOOGLE_ANALYTICS_REPORT_CACHE_MAX_MB",
+                            AnalyticsApp.DEFAULT_REPORT_CACHE_MAX_MB));
 
-            return new AnalyticsApp(jsonKeyFile, applicationName);
+            final TransportConfig transportConfig = new TransportConfig(
+                    TransportConfig.Transport.from(getStringSecret(secrets, "transport")),
+                    getIntSecret(secrets, "channelPoolSize", 0),
+                    getIntSecret(secrets, "keepAliveSeconds", 0),
+                    getIntSecret(secrets, "maxInboundMessageSizeMb", 0),
+                    getIntSecret(secrets, "executorThreads", 0));
+
+            return new AnalyticsApp(jsonKeyFile, applicationName, maxConcurrentQueries, maxQueuedQueries,
+                    transportConfig, reportCacheMaxMb);
         } catch (AppNotPresentException e) {
             throw e;
         } catch(Exception e) {
@@ -41,4 +60,31 @@ public class AnalyticsAppService {
                     + siteKey, e);
         }
     }
+
+    /**
+     * Reads an optional secret, null when it is not set.
+     */
+    private String getStringSecret(final Map<String, Secret> secrets, final String key) {
+
+        final Secret secret = secrets.get(key);
+        return secret != null ? secret.getString() : null;
+    }
+
+    /**
+     * Reads an optional numeric secret, falling back to the default value when it is not set or is not a number.
+     */
+    private int getIntSecret(final Map<String, Secret> secrets, final String key, final int defaultValue) {
+
+        final String value = getStringSecret(secrets, key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            Logger.warn(this, "Invalid value for Google Analytics app param: " + key + ", using: " + defaultValue);
+            return defaultValue;
+        }
+    }
 }
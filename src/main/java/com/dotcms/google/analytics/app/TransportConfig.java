@@ -0,0 +1,89 @@
+package com.dotcms.google.analytics.app;
+
+/**
+ * Transport and channel settings used to talk to the Google Analytics Data API.
+ * Any numeric value lower or equals to 0 means the gax default.
+ */
+public class TransportConfig {
+
+    /**
+     * Supported transports, both are bundled with the plugin.
+     */
+    public enum Transport {
+        GRPC, HTTP_JSON;
+
+        /**
+         * Parses the app value ("grpc" or "httpjson"), anything else falls back to gRPC.
+         */
+        public static Transport from(final String value) {
+
+            if (value != null) {
+                final String normalized = value.trim().replace("_", "").replace("-", "").replace("/", "");
+                if ("httpjson".equalsIgnoreCase(normalized)) {
+                    return HTTP_JSON;
+                }
+            }
+
+            return GRPC;
+        }
+    }
+
+    /**
+     * gRPC transport with all the gax defaults.
+     */
+    public static final TransportConfig DEFAULT = new TransportConfig(Transport.GRPC, 0, 0, 0, 0);
+
+    private final Transport transport;
+    private final int channelPoolSize;
+    private final int keepAliveSeconds;
+    private final int maxInboundMessageSizeMb;
+    private final int executorThreads;
+
+    public TransportConfig(final Transport transport,
+                           final int channelPoolSize,
+                           final int keepAliveSeconds,
+                           final int maxInboundMessageSizeMb,
+                           final int executorThreads) {
+        this.transport = transport;
+        this.channelPoolSize = channelPoolSize;
+        this.keepAliveSeconds = keepAliveSeconds;
+        this.maxInboundMessageSizeMb = maxInboundMessageSizeMb;
+        this.executorThreads = executorThreads;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Number of gRPC channels to open, only applies to gRPC.
+     * @return int
+     */
+    public int getChannelPoolSize() {
+        return channelPoolSize;
+    }
+
+    /**
+     * Seconds between keepalive pings on idle gRPC channels, only applies to gRPC.
+     * @return int
+     */
+    public int getKeepAliveSeconds() {
+        return keepAliveSeconds;
+    }
+
+    /**
+     * Max size in MB of a single response message, only applies to gRPC.
+     * @return int
+     */
+    public int getMaxInboundMessageSizeMb() {
+        return maxInboundMessageSizeMb;
+    }
+
+    /**
+     * Number of threads of the executor that runs the client callbacks and retries.
+     * @return int
+     */
+    public int getExecutorThreads() {
+        return executorThreads;
+    }
+}
@@ -0,0 +1,196 @@
+package com.dotcms.google.analytics.cache;
+
+import com.google.analytics.data.v1beta.RunReportRequest;
+import com.google.analytics.data.v1beta.RunReportResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A report kept in the {@link ReportCache} along with the request that produced it. The rows are kept
+ * dictionary-encoded (see {@link EncodedRows}) and the response is built again on every {@link #getResponse()}.
+ * Large reports can be kept off heap instead (see {@link #offHeap}), as the serialized response in pages of an
+ * {@link OffHeapArena} that is parsed on every {@link #getResponse()}. The pages go back to the arena once the cache
+ * {@link #free() frees} the report and no read is in progress.
+ */
+public class CachedReport {
+
+    private final RunReportRequest request;
+    private final RunReportResponse header;
+    private final EncodedRows rows;
+    private final OffHeapArena arena;
+    private final ByteBuffer[] pages;
+    private final AtomicInteger references;
+    private final AtomicBoolean freed = new AtomicBoolean();
+    private final int serializedSize;
+    private final boolean complete;
+    private final long createdAt;
+    private final long expiresAt;
+
+    public CachedReport(final RunReportRequest request,
+                        final RunReportResponse response,
+                        final long createdAt,
+                        final long expiresAt) {
+
+        this.request = request;
+        this.rows = EncodedRows.encode(response.getRowsList(), response.getDimensionHeadersCount(),
+                response.getMetricHeadersCount());
+        // rows that do not match the headers are kept as they came
+        this.header = this.rows != null ? response.toBuilder().clearRows().build() : response;
+        this.arena = null;
+        this.pages = null;
+        this.references = null;
+        this.serializedSize = response.getSerializedSize();
+        this.complete = isComplete(request, response);
+        this.createdAt = createdAt;
+        this.expiresAt = expiresAt;
+    }
+
+    private CachedReport(final RunReportRequest request,
+                         final OffHeapArena arena,
+                         final ByteBuffer[] pages,
+                         final int serializedSize,
+                         final boolean complete,
+                         final long createdAt,
+                         final long expiresAt) {
+
+        this.request = request;
+        this.header = null;
+        this.rows = null;
+        this.arena = arena;
+        this.pages = pages;
+        // the reference of the cache, dropped by free()
+        this.references = new AtomicInteger(1);
+        this.serializedSize = serializedSize;
+        this.complete = complete;
+        this.createdAt = createdAt;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Creates a report whose response is kept serialized in pages of the arena, out of the heap.
+     * @param arena OffHeapArena
+     * @param request RunReportRequest
+     * @param response RunReportResponse
+     * @param createdAt long
+     * @param expiresAt long
+     * @return CachedReport or null if the arena has no room for it
+     */
+    static CachedReport offHeap(final OffHeapArena arena,
+                                final RunReportRequest request,
+                                final RunReportResponse response,
+                                final long createdAt,
+                                final long expiresAt) {
+
+        final ByteBuffer[] pages = arena.write(response);
+        return pages != null ? new CachedReport(request, arena, pages, response.getSerializedSize(),
+                isComplete(request, response), createdAt, expiresAt) : null;
+    }
+
+    public RunReportRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Returns the response, built again out of the encoded rows or parsed out of the off heap pages.
+     * @return RunReportResponse or null if the report was off heap and has been freed
+     */
+    public RunReportResponse getResponse() {
+
+        if (pages != null) {
+            if (!retain()) {
+                return null;
+            }
+            try (InputStream input = OffHeapArena.read(pages, serializedSize)) {
+                return RunReportResponse.parseFrom(input);
+            } catch (IOException e) {
+                throw new IllegalStateException("Corrupted off heap report", e);
+            } finally {
+                release();
+            }
+        }
+        return rows != null ? header.toBuilder().addAllRows(rows.decode()).build() : header;
+    }
+
+    /**
+     * Called once the report left the cache, the pages of an off heap report go back to the arena when the reads in
+     * progress are done. Calling it again does nothing.
+     */
+    void free() {
+
+        if (pages != null && freed.compareAndSet(false, true)) {
+            release();
+        }
+    }
+
+    /**
+     * Size of the serialized response, about the memory an off heap report takes.
+     * @return int
+     */
+    public int getSerializedSize() {
+        return serializedSize;
+    }
+
+    /**
+     * Rough heap taken by the report: the encoded rows plus the rest of the response, or the serialized size when the
+     * rows could not be encoded. An off heap report only takes its pages.
+     * @return long
+     */
+    public long getHeapBytes() {
+
+        if (pages != null) {
+            return 0;
+        }
+        return rows != null ? header.getSerializedSize() + rows.getEstimatedBytes() : serializedSize;
+    }
+
+    public boolean isOffHeap() {
+        return pages != null;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isExpired(final long now) {
+        return now >= expiresAt;
+    }
+
+    /**
+     * True if the response holds every row of the report, so other cuts of it can be computed locally.
+     * @return boolean
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    private boolean retain() {
+
+        int count;
+        do {
+            count = references.get();
+            if (count <= 0) {
+                return false;
+            }
+        } while (!references.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    private void release() {
+
+        if (references.decrementAndGet() == 0) {
+            arena.release(pages);
+        }
+    }
+
+    private static boolean isComplete(final RunReportRequest request, final RunReportResponse response) {
+        return request.getOffset() == 0 && response.getRowsCount() == response.getRowCount();
+    }
+}
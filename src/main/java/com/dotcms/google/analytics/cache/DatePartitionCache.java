@@ -0,0 +1,147 @@
+package com.dotcms.google.analytics.cache;
+
+import com.google.analytics.data.v1beta.Dimension;
+import com.google.analytics.data.v1beta.Metric;
+import com.google.analytics.data.v1beta.Row;
+import com.google.analytics.data.v1beta.RunReportRequest;
+import com.google.analytics.data.v1beta.RunReportResponse;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.liferay.util.StringPool;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of single days of day-granular reports. A report over a date range is split into one partition per day
+ * (its rows with the date dimension), settled days (a few days old, see GOOGLE_ANALYTICS_PARTITION_SETTLE_DAYS) no
+ * longer change so their partitions are kept until they are evicted, and a request over a rolling window only needs to
+ * fetch the days that are not cached yet plus the recent ones.
+ */
+public class DatePartitionCache {
+
+    public static final String DATE_DIMENSION = "date";
+
+    private static final DateTimeFormatter DATE_VALUE_FORMAT = DateTimeFormatter.BASIC_ISO_DATE;
+
+    private final Cache<String, RunReportResponse> cache;
+
+    /**
+     * @param maxBytes long max serialized size of the cached partitions
+     */
+    public DatePartitionCache(final long maxBytes) {
+
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .<String, RunReportResponse>weigher((key, partition) -> partition.getSerializedSize() + key.length())
+                .build();
+    }
+
+    /**
+     * True if the request can be answered out of day partitions: a single date range, no metric filter, aggregation,
+     * offset or metric expression, and metrics that add up over days unless the date is one of the dimensions.
+     * @param request RunReportRequest
+     * @return boolean
+     */
+    public static boolean isPartitionable(final RunReportRequest request) {
+
+        if (request.getDateRangesCount() != 1 || request.hasMetricFilter() || request.hasCohortSpec()
+                || request.getOffset() > 0 || request.getMetricAggregationsCount() > 0) {
+            return false;
+        }
+
+        final boolean byDate = request.getDimensionsList().stream()
+                .anyMatch(dimension -> DATE_DIMENSION.equals(dimension.getName()));
+        for (final Metric metric : request.getMetricsList()) {
+            if (!metric.getExpression().isEmpty()
+                    || (!byDate && !ReportRollup.isAdditive(metric.getName(), List.of(DATE_DIMENSION)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the request the partitions of the given request are fetched with: the date dimension is added and the
+     * date range, sort and limits are removed. Its fingerprint identifies the partitions.
+     * @param request RunReportRequest
+     * @return RunReportRequest
+     */
+    public static RunReportRequest partitionRequestOf(final RunReportRequest request) {
+
+        final RunReportRequest.Builder builder = request.toBuilder()
+                .clearDateRanges()
+                .clearOrderBys()
+                .clearLimit()
+                .clearOffset();
+        if (request.getDimensionsList().stream().noneMatch(dimension -> DATE_DIMENSION.equals(dimension.getName()))) {
+            builder.addDimensions(Dimension.newBuilder().setName(DATE_DIMENSION));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Splits a response of a partition request into one response per day of the given range, days without rows get
+     * an empty partition.
+     * @param response RunReportResponse of a partition request
+     * @param start LocalDate first day fetched
+     * @param end LocalDate last day fetched
+     * @return Map of day to partition
+     */
+    public static Map<LocalDate, RunReportResponse> split(final RunReportResponse response,
+                                                          final LocalDate start,
+                                                          final LocalDate end) {
+
+        int dateIndex = -1;
+        for (int i = 0; i < response.getDimensionHeadersCount(); i++) {
+            if (DATE_DIMENSION.equals(response.getDimensionHeaders(i).getName())) {
+                dateIndex = i;
+            }
+        }
+
+        final Map<String, List<Row>> rowsByDay = new HashMap<>();
+        for (final Row row : response.getRowsList()) {
+            rowsByDay.computeIfAbsent(dateIndex >= 0 ? row.getDimensionValues(dateIndex).getValue() : StringPool.BLANK,
+                    day -> new ArrayList<>()).add(row);
+        }
+
+        final RunReportResponse template = response.toBuilder().clearRows().setRowCount(0).build();
+        final Map<LocalDate, RunReportResponse> partitions = new HashMap<>();
+        for (LocalDate day = start; !day.isAfter(end); day = day.plusDays(1)) {
+            final List<Row> rows = rowsByDay.getOrDefault(day.format(DATE_VALUE_FORMAT), List.of());
+            partitions.put(day, template.toBuilder().addAllRows(rows).setRowCount(rows.size()).build());
+        }
+        return partitions;
+    }
+
+    /**
+     * Returns the cached partition of the day.
+     * @param partitionKey String fingerprint of the partition request
+     * @param day LocalDate
+     * @return RunReportResponse or null if the day is not cached
+     */
+    public RunReportResponse get(final String partitionKey, final LocalDate day) {
+        return this.cache.getIfPresent(partitionKey + StringPool.COLON + day);
+    }
+
+    /**
+     * Caches the partition of a settled day, it does not expire.
+     * @param partitionKey String fingerprint of the partition request
+     * @param day LocalDate
+     * @param partition RunReportResponse
+     */
+    public void put(final String partitionKey, final LocalDate day, final RunReportResponse partition) {
+        this.cache.put(partitionKey + StringPool.COLON + day, partition);
+    }
+
+    /**
+     * Drops all the partitions.
+     */
+    public void clear() {
+        this.cache.invalidateAll();
+    }
+}
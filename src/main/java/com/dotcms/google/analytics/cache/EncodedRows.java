@@ -0,0 +1,156 @@
+package com.dotcms.google.analytics.cache;
+
+import com.google.analytics.data.v1beta.DimensionValue;
+import com.google.analytics.data.v1beta.MetricValue;
+import com.google.analytics.data.v1beta.Row;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The rows of a cached report stored by column. Dimension values repeat a lot across rows (countries, device
+ * categories, dates, page paths), so each dimension column keeps a dictionary of its distinct values and one int code
+ * per row, and metric columns keep the plain strings, instead of a protobuf message per value. Rows are built again
+ * when the report is served, sharing one {@link DimensionValue} per dictionary entry.
+ */
+final class EncodedRows {
+
+    // compressed references, object and array headers, and latin-1 strings
+    private static final int REFERENCE_BYTES = 4;
+    private static final int ARRAY_BYTES = 16;
+    private static final int STRING_BYTES = 40;
+
+    private final int size;
+    private final String[][] dictionaries;
+    private final int[][] codes;
+    private final String[][] metricValues;
+    private final long estimatedBytes;
+
+    private EncodedRows(final int size,
+                        final String[][] dictionaries,
+                        final int[][] codes,
+                        final String[][] metricValues) {
+        this.size = size;
+        this.dictionaries = dictionaries;
+        this.codes = codes;
+        this.metricValues = metricValues;
+        this.estimatedBytes = estimateBytes();
+    }
+
+    /**
+     * Encodes the rows, every row must have the given number of dimension and metric values.
+     * @param rows List of Row
+     * @param dimensionCount int
+     * @param metricCount int
+     * @return EncodedRows or null if a row does not match the given counts
+     */
+    static EncodedRows encode(final List<Row> rows, final int dimensionCount, final int metricCount) {
+
+        final int size = rows.size();
+        final String[][] dictionaries = new String[dimensionCount][];
+        final int[][] codes = new int[dimensionCount][size];
+        final String[][] metricValues = new String[metricCount][size];
+
+        final List<Map<String, Integer>> codesByValue = new ArrayList<>(dimensionCount);
+        final List<List<String>> dictionaryValues = new ArrayList<>(dimensionCount);
+        for (int column = 0; column < dimensionCount; column++) {
+            codesByValue.add(new HashMap<>());
+            dictionaryValues.add(new ArrayList<>());
+        }
+
+        for (int i = 0; i < size; i++) {
+
+            final Row row = rows.get(i);
+            if (row.getDimensionValuesCount() != dimensionCount || row.getMetricValuesCount() != metricCount) {
+                return null;
+            }
+
+            for (int column = 0; column < dimensionCount; column++) {
+                final DimensionValue value = row.getDimensionValues(column);
+                final List<String> dictionary = dictionaryValues.get(column);
+                codes[column][i] = codesByValue.get(column).computeIfAbsent(value.hasValue() ? value.getValue() : null,
+                        key -> {
+                            dictionary.add(key);
+                            return dictionary.size() - 1;
+                        });
+            }
+            for (int column = 0; column < metricCount; column++) {
+                final MetricValue value = row.getMetricValues(column);
+                metricValues[column][i] = value.hasValue() ? value.getValue() : null;
+            }
+        }
+
+        for (int column = 0; column < dimensionCount; column++) {
+            dictionaries[column] = dictionaryValues.get(column).toArray(new String[0]);
+        }
+        return new EncodedRows(size, dictionaries, codes, metricValues);
+    }
+
+    /**
+     * Builds the rows again.
+     * @return List of Row
+     */
+    List<Row> decode() {
+
+        final DimensionValue[][] dimensionValues = new DimensionValue[this.dictionaries.length][];
+        for (int column = 0; column < this.dictionaries.length; column++) {
+            dimensionValues[column] = new DimensionValue[this.dictionaries[column].length];
+            for (int code = 0; code < this.dictionaries[column].length; code++) {
+                final String value = this.dictionaries[column][code];
+                dimensionValues[column][code] = value != null ?
+                        DimensionValue.newBuilder().setValue(value).build() : DimensionValue.getDefaultInstance();
+            }
+        }
+
+        final MetricValue unset = MetricValue.getDefaultInstance();
+        final List<Row> rows = new ArrayList<>(this.size);
+        for (int i = 0; i < this.size; i++) {
+
+            final Row.Builder row = Row.newBuilder();
+            for (int column = 0; column < dimensionValues.length; column++) {
+                row.addDimensionValues(dimensionValues[column][this.codes[column][i]]);
+            }
+            for (final String[] column : this.metricValues) {
+                row.addMetricValues(column[i] != null ? MetricValue.newBuilder().setValue(column[i]).build() : unset);
+            }
+            rows.add(row.build());
+        }
+        return rows;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Rough heap taken by the encoded rows, each distinct dimension value counted once.
+     * @return long
+     */
+    long getEstimatedBytes() {
+        return this.estimatedBytes;
+    }
+
+    private long estimateBytes() {
+
+        long bytes = ARRAY_BYTES * 3L;
+        for (int column = 0; column < this.dictionaries.length; column++) {
+            bytes += ARRAY_BYTES * 2L + (long) Integer.BYTES * this.codes[column].length
+                    + estimateBytes(this.dictionaries[column]);
+        }
+        for (final String[] column : this.metricValues) {
+            bytes += ARRAY_BYTES + estimateBytes(column);
+        }
+        return bytes;
+    }
+
+    private static long estimateBytes(final String[] values) {
+
+        long bytes = (long) REFERENCE_BYTES * values.length;
+        for (final String value : values) {
+            bytes += value != null ? STRING_BYTES + value.length() : 0;
+        }
+        return bytes;
+    }
+}
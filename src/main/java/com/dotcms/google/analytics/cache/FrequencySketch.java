@@ -0,0 +1,89 @@
+package com.dotcms.google.analytics.cache;
+
+/**
+ * Count-min sketch estimating how often each report fingerprint is requested, in a fixed amount of memory whatever
+ * the number of distinct reports. Counters saturate at {@link #MAX_COUNT} and are halved once the sketch has seen
+ * ten times its width, so the estimates follow the recent popularity of the reports instead of all-time counts.
+ */
+public class FrequencySketch {
+
+    public static final int MAX_COUNT = 15;
+
+    private static final int DEPTH = 4;
+    private static final int[] SEEDS = {0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f};
+
+    private final int[][] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param width number of counters per row, rounded up to a power of two
+     */
+    public FrequencySketch(final int width) {
+
+        final int size = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+        this.table = new int[DEPTH][size];
+        this.mask = size - 1;
+        this.sampleSize = size * 10;
+    }
+
+    /**
+     * Records one more request of the key.
+     * @param key String
+     */
+    public synchronized void increment(final String key) {
+
+        final int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            final int index = indexOf(hash, i);
+            if (table[i][index] < MAX_COUNT) {
+                table[i][index]++;
+                added = true;
+            }
+        }
+
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Returns the estimated number of recent requests of the key, at most {@link #MAX_COUNT}.
+     * @param key String
+     * @return int
+     */
+    public synchronized int frequency(final String key) {
+
+        final int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, table[i][indexOf(hash, i)]);
+        }
+        return frequency;
+    }
+
+    private void reset() {
+
+        for (final int[] row : table) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>>= 1;
+            }
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(final int hash, final int row) {
+
+        int h = hash * SEEDS[row];
+        h ^= h >>> 16;
+        return h & mask;
+    }
+
+    private static int spread(final int hash) {
+
+        int h = hash * 0x9e3779b9;
+        return h ^ (h >>> 15);
+    }
+}
@@ -0,0 +1,75 @@
+package com.dotcms.google.analytics.cache;
+
+import com.dotcms.google.analytics.util.Fingerprints;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.protobuf.MessageLite;
+
+/**
+ * Exact-match cache of Google Analytics responses keyed on the fingerprint of their request, used for the report
+ * kinds that can not be computed out of other cached reports (pivots, funnels).
+ * @param <T> type of the response
+ */
+public class MessageCache<T extends MessageLite> {
+
+    private final Cache<String, Entry<T>> cache;
+
+    public MessageCache(final long maxEntries) {
+
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .build();
+    }
+
+    /**
+     * Returns the cached response of the request.
+     * @param request MessageLite
+     * @return T or null if it is not cached or expired
+     */
+    public T get(final MessageLite request) {
+
+        final String key = Fingerprints.of(request);
+        final Entry<T> entry = this.cache.getIfPresent(key);
+        if (entry == null) {
+            return null;
+        }
+
+        if (System.currentTimeMillis() >= entry.expiresAt) {
+            this.cache.invalidate(key);
+            return null;
+        }
+
+        return entry.response;
+    }
+
+    /**
+     * Caches the response of the request for the given time.
+     * @param request MessageLite
+     * @param response T
+     * @param ttlMillis long, nothing is cached if it is not positive
+     */
+    public void put(final MessageLite request, final T response, final long ttlMillis) {
+
+        if (ttlMillis > 0) {
+            this.cache.put(Fingerprints.of(request), new Entry<>(response, System.currentTimeMillis() + ttlMillis));
+        }
+    }
+
+    /**
+     * Drops all the cached responses.
+     */
+    public void clear() {
+        this.cache.invalidateAll();
+    }
+
+    private static class Entry<T> {
+
+        private final T response;
+        private final long expiresAt;
+
+        Entry(final T response, final long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
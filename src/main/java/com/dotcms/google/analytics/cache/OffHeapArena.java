@@ -0,0 +1,234 @@
+package com.dotcms.google.analytics.cache;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Direct memory shared by the off heap tiers of every site. The memory is taken from the JVM in slabs that are cut in
+ * fixed size pages, a report is written to as many pages as it needs and its pages go back to the arena as soon as the
+ * report leaves the cache, instead of waiting for a GC to free its direct buffer. The slabs are never given back, so
+ * the direct memory in use stays within the max size of the arena whatever the number of sites, and when the arena is
+ * full (or the JVM has no direct memory left) the reports are kept on the heap instead.
+ */
+public class OffHeapArena {
+
+    static final int PAGE_BYTES = 64 * 1024;
+    private static final int SLAB_BYTES = 4 * 1024 * 1024;
+
+    private final long maxBytes;
+    private final int slabBytes;
+    private final Queue<ByteBuffer> freePages = new ConcurrentLinkedQueue<>();
+    private final AtomicLong usedPages = new AtomicLong();
+    private final AtomicLong failedAllocations = new AtomicLong();
+    private long reservedBytes;
+
+    /**
+     * @param maxBytes long max direct memory taken by the arena, rounded down to whole pages
+     */
+    public OffHeapArena(final long maxBytes) {
+
+        this.maxBytes = maxBytes - maxBytes % PAGE_BYTES;
+        this.slabBytes = (int) Math.min(SLAB_BYTES, this.maxBytes);
+    }
+
+    /**
+     * Writes the message to pages of the arena.
+     * @param message MessageLite
+     * @return the pages holding the message, or null if the arena has no room for it
+     */
+    ByteBuffer[] write(final MessageLite message) {
+
+        final int size = message.getSerializedSize();
+        final ByteBuffer[] pages = allocate(Math.max(1, (size + PAGE_BYTES - 1) / PAGE_BYTES));
+        if (pages == null) {
+            return null;
+        }
+
+        // written straight into the pages, without a copy of the whole message on the heap
+        final CodedOutputStream output = CodedOutputStream.newInstance(new PagesOutputStream(pages),
+                Math.min(size, 8192));
+        try {
+            message.writeTo(output);
+            output.flush();
+        } catch (IOException e) {
+            release(pages);
+            throw new IllegalStateException("Could not write the report off heap", e);
+        }
+        return pages;
+    }
+
+    /**
+     * Returns a stream over the first size bytes of the pages.
+     * @param pages ByteBuffer[] written by {@link #write(MessageLite)}
+     * @param size int bytes written
+     * @return InputStream
+     */
+    static InputStream read(final ByteBuffer[] pages, final int size) {
+        return new PagesInputStream(pages, size);
+    }
+
+    /**
+     * Gives the pages back to the arena, they must not be read after this.
+     * @param pages ByteBuffer[]
+     */
+    void release(final ByteBuffer[] pages) {
+
+        for (final ByteBuffer page : pages) {
+            page.clear();
+            this.freePages.offer(page);
+        }
+        this.usedPages.addAndGet(-pages.length);
+    }
+
+    /**
+     * Returns the max, reserved and used bytes of the arena and the writes that did not fit.
+     * @return Map
+     */
+    public Map<String, Object> getStats() {
+
+        final Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("maxBytes", this.maxBytes);
+        synchronized (this) {
+            stats.put("reservedBytes", this.reservedBytes);
+        }
+        stats.put("usedBytes", this.usedPages.get() * PAGE_BYTES);
+        stats.put("failedAllocations", this.failedAllocations.get());
+        return stats;
+    }
+
+    private ByteBuffer[] allocate(final int pageCount) {
+
+        final List<ByteBuffer> pages = new ArrayList<>(pageCount);
+        while (pages.size() < pageCount) {
+
+            final ByteBuffer page = this.freePages.poll();
+            if (page != null) {
+                pages.add(page);
+            } else if (!addSlab()) {
+                pages.forEach(this.freePages::offer);
+                this.failedAllocations.incrementAndGet();
+                return null;
+            }
+        }
+
+        this.usedPages.addAndGet(pageCount);
+        return pages.toArray(new ByteBuffer[0]);
+    }
+
+    /**
+     * Takes another slab from the JVM and cuts it in pages, false if the arena is at its max size.
+     */
+    private synchronized boolean addSlab() {
+
+        // another thread may have added a slab in the meantime
+        if (!this.freePages.isEmpty()) {
+            return true;
+        }
+        if (this.slabBytes < PAGE_BYTES || this.reservedBytes + this.slabBytes > this.maxBytes) {
+            return false;
+        }
+
+        final ByteBuffer slab;
+        try {
+            slab = ByteBuffer.allocateDirect(this.slabBytes);
+        } catch (OutOfMemoryError e) {
+            // -XX:MaxDirectMemorySize is lower than the arena, the reports stay on the heap
+            return false;
+        }
+
+        for (int offset = 0; offset + PAGE_BYTES <= this.slabBytes; offset += PAGE_BYTES) {
+            slab.limit(offset + PAGE_BYTES).position(offset);
+            this.freePages.offer(slab.slice());
+        }
+        this.reservedBytes += this.slabBytes;
+        return true;
+    }
+
+    private static class PagesOutputStream extends OutputStream {
+
+        private final ByteBuffer[] pages;
+        private int page;
+
+        private PagesOutputStream(final ByteBuffer[] pages) {
+            this.pages = pages;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+
+            int written = 0;
+            while (written < length) {
+                if (this.page >= this.pages.length) {
+                    throw new IOException("the message does not fit in its pages");
+                }
+                final ByteBuffer current = this.pages[this.page];
+                final int chunk = Math.min(current.remaining(), length - written);
+                current.put(bytes, offset + written, chunk);
+                written += chunk;
+                if (!current.hasRemaining()) {
+                    this.page++;
+                }
+            }
+        }
+    }
+
+    private static class PagesInputStream extends InputStream {
+
+        private final ByteBuffer[] pages;
+        private int page;
+        private int remaining;
+        private ByteBuffer current;
+
+        private PagesInputStream(final ByteBuffer[] pages, final int size) {
+            this.pages = pages;
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() {
+
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) {
+
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            if (this.current == null || !this.current.hasRemaining()) {
+                // read through a duplicate, the page is shared by concurrent readers
+                this.current = this.pages[this.page++].duplicate();
+                this.current.clear();
+            }
+
+            final int chunk = Math.min(Math.min(length, this.current.remaining()), this.remaining);
+            this.current.get(bytes, offset, chunk);
+            this.remaining -= chunk;
+            return chunk;
+        }
+
+        @Override
+        public int available() {
+            return this.current != null ? Math.min(this.current.remaining(), this.remaining) : 0;
+        }
+    }
+}
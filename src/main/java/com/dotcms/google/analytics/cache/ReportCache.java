@@ -0,0 +1,367 @@
+package com.dotcms.google.analytics.cache;
+
+import com.dotcms.google.analytics.util.Fingerprints;
+import com.dotmarketing.util.Logger;
+import com.google.analytics.data.v1beta.RunReportRequest;
+import com.google.analytics.data.v1beta.RunReportResponse;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory cache of Google Analytics reports keyed on the fingerprint of their request.
+ * Besides exact hits, a request can be answered out of a cached report of the same base (see
+ * {@link ReportRollup#baseOf(RunReportRequest)}) holding a superset of its data, so the reports are also indexed by
+ * the fingerprint of their base. Accesses are counted in a {@link FrequencySketch} so the hot reports can be
+ * refreshed ahead of their expiry. The heap tier is bounded either by the number of reports or by their estimated
+ * heap size, so reports whose rows encode well take less room. With a {@link ReportSegmentStore} the reports are also persisted and read back
+ * from disk when they are not in memory, so a restarted node starts warm. With an off heap tier, the reports whose
+ * serialized response is at least the given size are kept serialized in pages of an {@link OffHeapArena} instead of on
+ * the heap, so large reports do not fill the old generation; the small and hot ones stay on the heap, and so do the
+ * large ones when the arena is full or they are larger than the whole off heap tier. The pages of a report go back to the arena when it leaves the off heap tier.
+ */
+public class ReportCache {
+
+    private final Cache<String, CachedReport> cache;
+    private final Cache<String, CachedReport> offHeapCache;
+    private final long heapMaxBytes;
+    private final OffHeapArena offHeapArena;
+    private final long offHeapMaxBytes;
+    private final long offHeapMinBytes;
+    private final Map<String, Set<String>> keysByBase = new ConcurrentHashMap<>();
+    private final FrequencySketch frequencySketch;
+    private final ReportSegmentStore diskStore;
+
+    public ReportCache(final long maxEntries) {
+        this(maxEntries, null);
+    }
+
+    /**
+     * @param maxEntries long max number of reports kept in memory
+     * @param diskStore ReportSegmentStore where the reports are persisted so they survive a restart, null to keep
+     *                  them in memory only
+     */
+    public ReportCache(final long maxEntries, final ReportSegmentStore diskStore) {
+        this(maxEntries, 0, diskStore, null, 0, 0);
+    }
+
+    /**
+     * @param maxEntries long max number of reports kept on the heap when they are not bounded by size
+     * @param heapMaxBytes long max estimated heap taken by the reports kept on the heap, 0 to bound them by number
+     * @param diskStore ReportSegmentStore where the reports are persisted so they survive a restart, null to keep
+     *                  them in memory only
+     * @param offHeapArena OffHeapArena the off heap reports are written to, shared with the caches of other sites,
+     *                     null to keep all the reports on the heap
+     * @param offHeapMaxBytes long max size of the reports this cache keeps off heap, 0 to keep all the reports on the
+     *                        heap
+     * @param offHeapMinBytes long serialized size from which a report is kept off heap
+     */
+    public ReportCache(final long maxEntries,
+                       final long heapMaxBytes,
+                       final ReportSegmentStore diskStore,
+                       final OffHeapArena offHeapArena,
+                       final long offHeapMaxBytes,
+                       final long offHeapMinBytes) {
+
+        this.diskStore = diskStore;
+        this.heapMaxBytes = heapMaxBytes;
+        this.offHeapArena = offHeapMaxBytes > 0 ? offHeapArena : null;
+        this.offHeapMaxBytes = offHeapMaxBytes;
+        this.offHeapMinBytes = offHeapMinBytes;
+        this.frequencySketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, maxEntries * 4));
+
+        // a single segment when bounded by size, or any report heavier than a segment's share of the max would be
+        // evicted right away
+        final CacheBuilder<String, CachedReport> heapBuilder = heapMaxBytes > 0 ?
+                CacheBuilder.newBuilder()
+                        .concurrencyLevel(1)
+                        .maximumWeight(heapMaxBytes)
+                        .<String, CachedReport>weigher((key, cachedReport) ->
+                                (int) Math.min(Integer.MAX_VALUE, cachedReport.getHeapBytes()))
+                        .removalListener(this::onRemoval) :
+                CacheBuilder.newBuilder()
+                        .maximumSize(maxEntries)
+                        .removalListener(this::onRemoval);
+        this.cache = heapBuilder
+                .recordStats()
+                .build();
+        this.offHeapCache = this.offHeapArena != null ?
+                CacheBuilder.newBuilder()
+                        .concurrencyLevel(1)
+                        .maximumWeight(offHeapMaxBytes)
+                        .<String, CachedReport>weigher((key, cachedReport) -> cachedReport.getSerializedSize())
+                        .recordStats()
+                        .removalListener(this::onRemoval)
+                        .build() :
+                null;
+    }
+
+    /**
+     * Returns the response of the request if it is cached or can be computed out of a cached report.
+     * Every call counts as an access of the request (and of the cached report answering it) for
+     * {@link #getRefreshCandidates(long, int, int)}.
+     * @param request RunReportRequest
+     * @return RunReportResponse or null if the request has to go to Google Analytics
+     */
+    public RunReportResponse get(final RunReportRequest request) {
+
+        final long now = System.currentTimeMillis();
+        final String key = Fingerprints.of(request);
+        final String baseKey = Fingerprints.of(ReportRollup.baseOf(request));
+        this.frequencySketch.increment(key);
+        final CachedReport cachedReport = lookup(key, baseKey, now);
+        // an off heap report freed in the meantime is a miss
+        final RunReportResponse cachedResponse = cachedReport != null ? cachedReport.getResponse() : null;
+        if (cachedResponse != null) {
+            return cachedResponse;
+        }
+
+        final Set<String> siblingKeys = new HashSet<>(this.keysByBase.getOrDefault(baseKey, Collections.emptySet()));
+        if (this.diskStore != null) {
+            siblingKeys.addAll(this.diskStore.getKeysByBase(baseKey));
+        }
+
+        for (final String siblingKey : siblingKeys) {
+
+            final CachedReport sibling = lookup(siblingKey, baseKey, now);
+            if (sibling != null) {
+
+                final RunReportResponse response = ReportRollup.answer(sibling, request);
+                if (response != null) {
+                    this.frequencySketch.increment(siblingKey);
+                    Logger.debug(this, () -> "Computed GA report locally out of cached report: " + siblingKey);
+                    return response;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Counts an access of the request that was served without looking it up, such as out of the cached bytes of a
+     * REST response, so its report is still refreshed ahead of its expiry.
+     * @param key String fingerprint of the request
+     */
+    public void touch(final String key) {
+        this.frequencySketch.increment(key);
+    }
+
+    /**
+     * Looks the report up on the heap, off heap and then on disk, a report found on disk is brought back to memory.
+     */
+    private CachedReport lookup(final String key, final String baseKey, final long now) {
+
+        final CachedReport cachedReport = lookup(this.cache, key, now);
+        if (cachedReport != null) {
+            return cachedReport;
+        }
+
+        final CachedReport offHeapReport = this.offHeapCache != null ? lookup(this.offHeapCache, key, now) : null;
+        if (offHeapReport != null) {
+            return offHeapReport;
+        }
+
+        final CachedReport storedReport = this.diskStore != null ? this.diskStore.get(key) : null;
+        if (storedReport == null || storedReport.isExpired(now)) {
+            return null;
+        }
+
+        Logger.debug(this, () -> "Loaded GA report from disk: " + key);
+        final CachedReport offHeapLoaded = isLarge(storedReport.getSerializedSize()) ?
+                CachedReport.offHeap(this.offHeapArena, storedReport.getRequest(), storedReport.getResponse(),
+                        storedReport.getCreatedAt(), storedReport.getExpiresAt()) :
+                null;
+        final CachedReport loadedReport = offHeapLoaded != null ? offHeapLoaded : storedReport;
+        putInMemory(key, baseKey, loadedReport);
+        return loadedReport;
+    }
+
+    private static CachedReport lookup(final Cache<String, CachedReport> tier, final String key, final long now) {
+
+        final CachedReport cachedReport = tier.getIfPresent(key);
+        if (cachedReport != null) {
+
+            if (!cachedReport.isExpired(now)) {
+                return cachedReport;
+            }
+            tier.invalidate(key);
+        }
+        return null;
+    }
+
+    /**
+     * True if the report goes off heap: large enough, but not so large the off heap tier would evict it right away.
+     */
+    private boolean isLarge(final int serializedSize) {
+        return this.offHeapCache != null && serializedSize >= this.offHeapMinBytes
+                && serializedSize <= this.offHeapMaxBytes;
+    }
+
+    /**
+     * Caches the response of the request for the given time.
+     * @param request RunReportRequest
+     * @param response RunReportResponse
+     * @param ttlMillis long, nothing is cached if it is not positive
+     */
+    public void put(final RunReportRequest request, final RunReportResponse response, final long ttlMillis) {
+
+        if (ttlMillis <= 0) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final String key = Fingerprints.of(request);
+        final String baseKey = Fingerprints.of(ReportRollup.baseOf(request));
+        // a full arena keeps the report on the heap
+        final CachedReport offHeapReport = isLarge(response.getSerializedSize()) ?
+                CachedReport.offHeap(this.offHeapArena, request, response, now, now + ttlMillis) :
+                null;
+        final CachedReport cachedReport = offHeapReport != null ?
+                offHeapReport : new CachedReport(request, response, now, now + ttlMillis);
+        putInMemory(key, baseKey, cachedReport);
+        if (this.diskStore != null) {
+            this.diskStore.put(key, baseKey, cachedReport, response);
+        }
+    }
+
+    private void putInMemory(final String key, final String baseKey, final CachedReport cachedReport) {
+
+        // a refreshed report may have grown or shrunk into the other tier
+        final Cache<String, CachedReport> tier = cachedReport.isOffHeap() ? this.offHeapCache : this.cache;
+        final Cache<String, CachedReport> otherTier = cachedReport.isOffHeap() ? this.cache : this.offHeapCache;
+        if (otherTier != null) {
+            otherTier.invalidate(key);
+        }
+
+        this.keysByBase.compute(baseKey, (base, keys) -> {
+            final Set<String> siblingKeys = keys != null ? keys : ConcurrentHashMap.newKeySet();
+            siblingKeys.add(key);
+            return siblingKeys;
+        });
+        tier.put(key, cachedReport);
+    }
+
+    /**
+     * Returns the cached reports that expire within the given window and were requested at least minFrequency times
+     * recently, the most requested first. These are worth refreshing before they expire.
+     * @param windowMillis long
+     * @param minFrequency int
+     * @param maxReports int
+     * @return List of CachedReport
+     */
+    public List<CachedReport> getRefreshCandidates(final long windowMillis, final int minFrequency, final int maxReports) {
+
+        final long now = System.currentTimeMillis();
+        final List<Map.Entry<CachedReport, Integer>> candidates = new ArrayList<>();
+        final List<Map.Entry<String, CachedReport>> entries = new ArrayList<>(this.cache.asMap().entrySet());
+        if (this.offHeapCache != null) {
+            entries.addAll(this.offHeapCache.asMap().entrySet());
+        }
+        for (final Map.Entry<String, CachedReport> entry : entries) {
+
+            final CachedReport cachedReport = entry.getValue();
+            if (!cachedReport.isExpired(now) && cachedReport.getExpiresAt() - now <= windowMillis) {
+
+                final int frequency = this.frequencySketch.frequency(entry.getKey());
+                if (frequency >= minFrequency) {
+                    candidates.add(new AbstractMap.SimpleImmutableEntry<>(cachedReport, frequency));
+                }
+            }
+        }
+
+        return candidates.stream()
+                .sorted(Map.Entry.<CachedReport, Integer>comparingByValue().reversed())
+                .limit(maxReports)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Drops all the reports cached in memory, the ones on disk are kept.
+     */
+    public void clear() {
+
+        this.cache.invalidateAll();
+        if (this.offHeapCache != null) {
+            this.offHeapCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the size and counters of the heap and off heap tiers.
+     * @return Map
+     */
+    public Map<String, Object> getStats() {
+
+        final Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("heap", toStats(this.cache, this.heapMaxBytes > 0 ? this.heapMaxBytes : null,
+                CachedReport::getHeapBytes));
+        if (this.offHeapCache != null) {
+            stats.put("offHeap", toStats(this.offHeapCache, this.offHeapMaxBytes, CachedReport::getSerializedSize));
+        }
+        return stats;
+    }
+
+    private static Map<String, Object> toStats(final Cache<String, CachedReport> tier,
+                                               final Long maxBytes,
+                                               final ToLongFunction<CachedReport> weigher) {
+
+        final CacheStats cacheStats = tier.stats();
+        final Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", tier.size());
+        if (maxBytes != null) {
+            stats.put("bytes", tier.asMap().values().stream().mapToLong(weigher).sum());
+            stats.put("maxBytes", maxBytes);
+        }
+        stats.put("hits", cacheStats.hitCount());
+        stats.put("misses", cacheStats.missCount());
+        stats.put("evictions", cacheStats.evictionCount());
+        return stats;
+    }
+
+    /**
+     * Drops the reports cached in memory and closes the disk store, whose reports are kept for the next start.
+     */
+    public void close() {
+
+        clear();
+        if (this.diskStore != null) {
+            this.diskStore.close();
+        }
+    }
+
+    private void onRemoval(final RemovalNotification<String, CachedReport> notification) {
+
+        // replaced, evicted, expired or moved to the other tier, the pages of an off heap report are not needed
+        if (notification.getValue() != null) {
+            notification.getValue().free();
+        }
+
+        if (notification.getCause() == RemovalCause.REPLACED || notification.getValue() == null
+                || this.cache.asMap().containsKey(notification.getKey())
+                || (this.offHeapCache != null && this.offHeapCache.asMap().containsKey(notification.getKey()))) {
+            return;
+        }
+
+        this.keysByBase.computeIfPresent(Fingerprints.of(ReportRollup.baseOf(notification.getValue().getRequest())),
+                (baseKey, keys) -> {
+                    keys.remove(notification.getKey());
+                    return keys.isEmpty() ? null : keys;
+                });
+    }
+}
@@ -0,0 +1,390 @@
+package com.dotcms.google.analytics.cache;
+
+import com.dotmarketing.util.Config;
+import com.google.analytics.data.v1beta.Dimension;
+import com.google.analytics.data.v1beta.DimensionValue;
+import com.google.analytics.data.v1beta.Metric;
+import com.google.analytics.data.v1beta.MetricValue;
+import com.google.analytics.data.v1beta.OrderBy;
+import com.google.analytics.data.v1beta.Row;
+import com.google.analytics.data.v1beta.RunReportRequest;
+import com.google.analytics.data.v1beta.RunReportResponse;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Computes a report locally out of a cached one that already holds its data:
+ * <ul>
+ *     <li>a request that only differs in limit, offset or sort is answered by sorting and slicing the cached rows</li>
+ *     <li>a request on a subset of the cached dimensions is answered by grouping the cached rows and summing the
+ *     metrics, as long as all its metrics are additive over the dimensions being removed</li>
+ * </ul>
+ * Event counts are additive over any dimension, while session counts are only additive over session scoped dimensions
+ * (a session that visits three pages shows up in three pagePath rows).
+ */
+public final class ReportRollup {
+
+    /**
+     * Row limit Google Analytics applies when the request does not set one.
+     */
+    private static final long DEFAULT_LIMIT = 10000;
+
+    private static final Set<String> ADDITIVE_METRICS = toSet(Config.getStringProperty(
+            "GOOGLE_ANALYTICS_ADDITIVE_METRICS", "eventCount,screenPageViews,keyEvents"));
+
+    private static final Set<String> SESSION_ADDITIVE_METRICS = toSet(Config.getStringProperty(
+            "GOOGLE_ANALYTICS_SESSION_ADDITIVE_METRICS", "sessions,engagedSessions"));
+
+    private static final Set<String> SESSION_SCOPED_DIMENSIONS = toSet(Config.getStringProperty(
+            "GOOGLE_ANALYTICS_SESSION_SCOPED_DIMENSIONS",
+            "date,year,month,week,dayOfWeek,country,region,city,continent,language,deviceCategory,browser,"
+                    + "operatingSystem,platform,sessionSource,sessionMedium,sessionSourceMedium,sessionCampaignName,"
+                    + "sessionDefaultChannelGroup"));
+
+    private ReportRollup() {
+    }
+
+    /**
+     * Returns the part of the request that has to be equal for a cached report to hold the data of another one:
+     * everything but the dimensions, metrics, sort, limit and offset.
+     * @param request RunReportRequest
+     * @return RunReportRequest
+     */
+    public static RunReportRequest baseOf(final RunReportRequest request) {
+
+        return request.toBuilder()
+                .clearDimensions()
+                .clearMetrics()
+                .clearOrderBys()
+                .clearLimit()
+                .clearOffset()
+                .build();
+    }
+
+    /**
+     * True if the metric can be summed over every dimension of the given list.
+     * @param metricName String
+     * @param removedDimensions List of dimension names
+     * @return boolean
+     */
+    public static boolean isAdditive(final String metricName, final List<String> removedDimensions) {
+
+        return ADDITIVE_METRICS.contains(metricName) || (SESSION_ADDITIVE_METRICS.contains(metricName)
+                && SESSION_SCOPED_DIMENSIONS.containsAll(removedDimensions));
+    }
+
+    /**
+     * Computes the response of the request out of a cached report. The cached rows are only materialized once the
+     * request is known to be answerable out of them.
+     * @param cached CachedReport with the same base as the request
+     * @param request RunReportRequest
+     * @return RunReportResponse or null if the request can not be answered from the cached report
+     */
+    public static RunReportResponse answer(final CachedReport cached, final RunReportRequest request) {
+
+        if (!cached.isComplete() || !canAnswer(cached.getRequest(), request)) {
+            return null;
+        }
+        // an off heap report freed in the meantime has nothing to answer with
+        final RunReportResponse response = cached.getResponse();
+        return response != null ? answer(cached.getRequest(), response, request) : null;
+    }
+
+    /**
+     * Computes the response of the request out of the response of another request.
+     * @param cachedRequest RunReportRequest with the same base as the request
+     * @param cachedResponse RunReportResponse of the cached request
+     * @param request RunReportRequest
+     * @return RunReportResponse or null if the request can not be answered from the cached response
+     */
+    public static RunReportResponse answer(final RunReportRequest cachedRequest,
+                                           final RunReportResponse cachedResponse,
+                                           final RunReportRequest request) {
+
+        if (cachedRequest.getOffset() > 0 || cachedResponse.getRowsCount() != cachedResponse.getRowCount()
+                || !canAnswer(cachedRequest, request)) {
+            return null;
+        }
+
+        final int[] dimensionIndexes = indexesOf(request.getDimensionsList(), cachedRequest.getDimensionsList());
+        final int[] metricIndexes = indexesOf(request.getMetricsList(), cachedRequest.getMetricsList());
+        final boolean rollUp = request.getDimensionsCount() < cachedRequest.getDimensionsCount();
+        final Comparator<ResultRow> comparator = comparatorOf(request);
+
+        final List<ResultRow> resultRows;
+        try {
+            resultRows = rollUp ?
+                    group(cachedResponse, dimensionIndexes, metricIndexes) :
+                    project(cachedResponse, dimensionIndexes, metricIndexes);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        if (request.getOrderBysCount() > 0) {
+            resultRows.sort(comparator);
+        }
+
+        return toResponse(cachedResponse, request, dimensionIndexes, metricIndexes, resultRows);
+    }
+
+    /**
+     * True if the data of the cached request is enough for the request, regardless of the cached rows.
+     */
+    private static boolean canAnswer(final RunReportRequest cachedRequest, final RunReportRequest request) {
+
+        if (request.getMetricAggregationsCount() > 0 || !baseOf(cachedRequest).equals(baseOf(request))) {
+            return false;
+        }
+
+        if (indexesOf(request.getDimensionsList(), cachedRequest.getDimensionsList()) == null
+                || indexesOf(request.getMetricsList(), cachedRequest.getMetricsList()) == null) {
+            return false;
+        }
+
+        final boolean rollUp = request.getDimensionsCount() < cachedRequest.getDimensionsCount();
+        return (!rollUp || canRollUp(request, cachedRequest)) && comparatorOf(request) != null;
+    }
+
+    private static boolean canRollUp(final RunReportRequest request, final RunReportRequest cachedRequest) {
+
+        // metric filters apply to the aggregated rows, they give other results at another granularity
+        if (request.hasMetricFilter()) {
+            return false;
+        }
+
+        final Set<Dimension> kept = new HashSet<>(request.getDimensionsList());
+        final List<String> removedDimensions = cachedRequest.getDimensionsList().stream()
+                .filter(dimension -> !kept.contains(dimension))
+                .map(Dimension::getName)
+                .collect(Collectors.toList());
+
+        for (final Metric metric : request.getMetricsList()) {
+            if (!metric.getExpression().isEmpty() || !isAdditive(metric.getName(), removedDimensions)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static <T> int[] indexesOf(final List<T> wanted, final List<T> available) {
+
+        final int[] indexes = new int[wanted.size()];
+        for (int i = 0; i < wanted.size(); i++) {
+            indexes[i] = available.indexOf(wanted.get(i));
+            if (indexes[i] < 0) {
+                return null;
+            }
+        }
+        return indexes;
+    }
+
+    private static List<ResultRow> project(final RunReportResponse response,
+                                           final int[] dimensionIndexes,
+                                           final int[] metricIndexes) {
+
+        final List<ResultRow> resultRows = new ArrayList<>(response.getRowsCount());
+        for (final Row row : response.getRowsList()) {
+
+            final ResultRow resultRow = new ResultRow(dimensionIndexes.length, metricIndexes.length);
+            for (int i = 0; i < dimensionIndexes.length; i++) {
+                resultRow.dimensions[i] = row.getDimensionValues(dimensionIndexes[i]).getValue();
+            }
+            for (int i = 0; i < metricIndexes.length; i++) {
+                resultRow.metricValues[i] = row.getMetricValues(metricIndexes[i]).getValue();
+            }
+            resultRows.add(resultRow);
+        }
+
+        return resultRows;
+    }
+
+    private static List<ResultRow> group(final RunReportResponse response,
+                                         final int[] dimensionIndexes,
+                                         final int[] metricIndexes) {
+
+        final Map<List<String>, ResultRow> groups = new LinkedHashMap<>();
+        for (final Row row : response.getRowsList()) {
+
+            final String[] dimensions = new String[dimensionIndexes.length];
+            for (int i = 0; i < dimensionIndexes.length; i++) {
+                dimensions[i] = row.getDimensionValues(dimensionIndexes[i]).getValue();
+            }
+
+            final ResultRow resultRow = groups.computeIfAbsent(Arrays.asList(dimensions), key -> {
+                final ResultRow newRow = new ResultRow(dimensions, metricIndexes.length);
+                Arrays.fill(newRow.metrics, BigDecimal.ZERO);
+                return newRow;
+            });
+            for (int i = 0; i < metricIndexes.length; i++) {
+                resultRow.metrics[i] = resultRow.metrics[i].add(
+                        new BigDecimal(row.getMetricValues(metricIndexes[i]).getValue()));
+            }
+        }
+
+        return new ArrayList<>(groups.values());
+    }
+
+    /**
+     * Builds the comparator for the sort of the request, null if the sort is not supported locally.
+     */
+    private static Comparator<ResultRow> comparatorOf(final RunReportRequest request) {
+
+        Comparator<ResultRow> comparator = (row1, row2) -> 0;
+        for (final OrderBy orderBy : request.getOrderBysList()) {
+
+            Comparator<ResultRow> next;
+            if (orderBy.hasMetric()) {
+
+                final int index = indexOfMetric(request, orderBy.getMetric().getMetricName());
+                if (index < 0) {
+                    return null;
+                }
+                next = Comparator.comparing(row -> row.getMetric(index));
+            } else if (orderBy.hasDimension()) {
+
+                final int index = indexOfDimension(request, orderBy.getDimension().getDimensionName());
+                if (index < 0) {
+                    return null;
+                }
+                next = dimensionComparator(index, orderBy.getDimension().getOrderType());
+            } else {
+                return null;
+            }
+
+            comparator = comparator.thenComparing(orderBy.getDesc() ? next.reversed() : next);
+        }
+
+        return comparator;
+    }
+
+    private static Comparator<ResultRow> dimensionComparator(final int index,
+                                                             final OrderBy.DimensionOrderBy.OrderType orderType) {
+
+        switch (orderType) {
+            case CASE_INSENSITIVE_ALPHANUMERIC:
+                return Comparator.comparing(row -> row.dimensions[index], String.CASE_INSENSITIVE_ORDER);
+            case NUMERIC:
+                return Comparator.comparing(row -> toNumber(row.dimensions[index]));
+            default:
+                return Comparator.comparing(row -> row.dimensions[index]);
+        }
+    }
+
+    private static BigDecimal toNumber(final String value) {
+
+        try {
+            return new BigDecimal(value);
+        } catch (NumberFormatException e) {
+            return BigDecimal.ZERO;
+        }
+    }
+
+    private static int indexOfMetric(final RunReportRequest request, final String name) {
+
+        for (int i = 0; i < request.getMetricsCount(); i++) {
+            if (request.getMetrics(i).getName().equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOfDimension(final RunReportRequest request, final String name) {
+
+        for (int i = 0; i < request.getDimensionsCount(); i++) {
+            if (request.getDimensions(i).getName().equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static RunReportResponse toResponse(final RunReportResponse cachedResponse,
+                                                final RunReportRequest request,
+                                                final int[] dimensionIndexes,
+                                                final int[] metricIndexes,
+                                                final List<ResultRow> resultRows) {
+
+        final RunReportResponse.Builder builder = RunReportResponse.newBuilder()
+                .setKind(cachedResponse.getKind())
+                .setMetadata(cachedResponse.getMetadata())
+                .setRowCount(resultRows.size());
+
+        for (final int index : dimensionIndexes) {
+            builder.addDimensionHeaders(cachedResponse.getDimensionHeaders(index));
+        }
+        for (final int index : metricIndexes) {
+            builder.addMetricHeaders(cachedResponse.getMetricHeaders(index));
+        }
+
+        final long limit = request.getLimit() > 0 ? request.getLimit() : DEFAULT_LIMIT;
+        final long from = Math.min(request.getOffset(), resultRows.size());
+        final long to = Math.min(from + limit, resultRows.size());
+        for (int i = (int) from; i < to; i++) {
+            builder.addRows(resultRows.get(i).toRow());
+        }
+
+        return builder.build();
+    }
+
+    private static Set<String> toSet(final String value) {
+
+        return Arrays.stream(value.split(","))
+                .map(String::trim)
+                .filter(item -> !item.isEmpty())
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * A row being computed. Projected rows keep the metric values as they came, grouped rows carry the sums.
+     */
+    private static final class ResultRow {
+
+        private final String[] dimensions;
+        private final String[] metricValues;
+        private final BigDecimal[] metrics;
+
+        ResultRow(final int dimensionCount, final int metricCount) {
+            this.dimensions = new String[dimensionCount];
+            this.metricValues = new String[metricCount];
+            this.metrics = new BigDecimal[metricCount];
+        }
+
+        ResultRow(final String[] dimensions, final int metricCount) {
+            this.dimensions = dimensions;
+            this.metricValues = new String[metricCount];
+            this.metrics = new BigDecimal[metricCount];
+        }
+
+        BigDecimal getMetric(final int index) {
+
+            if (metrics[index] == null) {
+                metrics[index] = toNumber(metricValues[index]);
+            }
+            return metrics[index];
+        }
+
+        Row toRow() {
+
+            final Row.Builder builder = Row.newBuilder();
+            for (final String dimension : dimensions) {
+                builder.addDimensionValues(DimensionValue.newBuilder().setValue(dimension));
+            }
+            for (int i = 0; i < metricValues.length; i++) {
+                builder.addMetricValues(MetricValue.newBuilder().setValue(
+                        metricValues[i] != null ? metricValues[i] : metrics[i].toPlainString()));
+            }
+            return builder.build();
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package com.dotcms.google.analytics.cache;
+
+import com.dotmarketing.util.Logger;
+import com.google.analytics.data.v1beta.RunReportRequest;
+import com.google.analytics.data.v1beta.RunReportResponse;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file store of cached reports, so a node starts warm after a restart or a bundle redeploy.
+ * Reports are appended to segment files of bounded size, a later record of a report supersedes the older ones and the
+ * oldest segment is deleted once there are too many of them, which is all the compaction there is. The index
+ * (report fingerprint to record location) is kept in memory and rebuilt by scanning the segments in the background the
+ * first time the store is used, until then the store misses and drops what is put; a torn record at the tail of a
+ * segment (crash while writing) ends the scan of that segment. The directory belongs to a single node.
+ *
+ * Record layout: int length, body, long CRC32 of the body. The body holds the fingerprint of the report and of its
+ * base, the creation and expiration times and the serialized request and response.
+ */
+public class ReportSegmentStore {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final int HEADER_BYTES = Integer.BYTES;
+    private static final int TRAILER_BYTES = Long.BYTES;
+
+    private final File directory;
+    private final long maxSegmentBytes;
+    private final int maxSegments;
+
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> keysByBase = new ConcurrentHashMap<>();
+    private final NavigableMap<Long, FileChannel> segments = new ConcurrentSkipListMap<>();
+
+    private final AtomicBoolean loading = new AtomicBoolean();
+
+    private volatile boolean loaded;
+    private volatile boolean failed;
+    private long activeSegmentId;
+    private long activeSegmentSize;
+
+    /**
+     * @param directory File directory of the segments, created if needed
+     * @param maxSegmentBytes long size after which a new segment is started
+     * @param maxSegments int number of segments kept, the oldest is deleted when a new one would exceed it
+     */
+    public ReportSegmentStore(final File directory, final long maxSegmentBytes, final int maxSegments) {
+
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegments = Math.max(2, maxSegments);
+    }
+
+    /**
+     * Returns the stored report with the given fingerprint.
+     * @param key String fingerprint of the request
+     * @return CachedReport or null if it is not stored, expired or can not be read
+     */
+    public CachedReport get(final String key) {
+
+        final Location location = ensureLoaded() ? this.index.get(key) : null;
+        if (location == null) {
+            return null;
+        }
+
+        if (location.expiresAt <= System.currentTimeMillis()) {
+            removeFromIndex(key, location);
+            return null;
+        }
+
+        final FileChannel channel = this.segments.get(location.segmentId);
+        try {
+            if (channel == null) {
+                throw new IOException("segment " + location.segmentId + " is gone");
+            }
+
+            final ByteBuffer buffer = ByteBuffer.allocate(location.length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, location.offset + buffer.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+
+            final Record record = Record.parse(buffer.array());
+            if (record == null) {
+                throw new IOException("checksum mismatch at " + location.offset);
+            }
+            return record.toCachedReport();
+        } catch (IOException e) {
+            Logger.warn(this, "Could not read cached GA report from " + this.directory + ": " + e.getMessage());
+            removeFromIndex(key, location);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the fingerprints of the stored reports that share the given base.
+     * @param baseKey String fingerprint of the base (see {@link ReportRollup#baseOf(RunReportRequest)})
+     * @return Set of fingerprints, may be empty
+     */
+    public Set<String> getKeysByBase(final String baseKey) {
+
+        return !ensureLoaded() ? Collections.emptySet() : this.keysByBase.getOrDefault(baseKey, Collections.emptySet());
+    }
+
+    /**
+     * Appends the report to the active segment.
+     * @param key String fingerprint of the request
+     * @param baseKey String fingerprint of the base of the request
+     * @param cachedReport CachedReport
+     * @param response RunReportResponse the report was cached from, serialized as is instead of being built again
+     *                 out of the cached report
+     */
+    public void put(final String key,
+                    final String baseKey,
+                    final CachedReport cachedReport,
+                    final RunReportResponse response) {
+
+        if (!ensureLoaded()) {
+            return;
+        }
+
+        final byte[] record;
+        try {
+            record = Record.serialize(key, baseKey, cachedReport, response);
+        } catch (IOException e) {
+            Logger.warn(this, "Could not serialize GA report: " + e.getMessage());
+            return;
+        }
+
+        synchronized (this) {
+
+            if (!this.loaded) {
+                return;
+            }
+
+            try {
+                if (this.activeSegmentSize > 0 && this.activeSegmentSize + record.length > this.maxSegmentBytes) {
+                    roll();
+                }
+
+                final FileChannel channel = this.segments.get(this.activeSegmentId);
+                final ByteBuffer buffer = ByteBuffer.wrap(record);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, this.activeSegmentSize + buffer.position());
+                }
+
+                final Location location = new Location(this.activeSegmentId, this.activeSegmentSize, record.length,
+                        cachedReport.getExpiresAt(), baseKey);
+                this.activeSegmentSize += record.length;
+                addToIndex(key, location);
+            } catch (IOException e) {
+                Logger.warn(this, "Could not store GA report in " + this.directory + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Closes the segment files, the store loads its index again if it is used after this.
+     */
+    public synchronized void close() {
+
+        this.loaded = false;
+        // a scan that did not start yet does not open the segments again
+        this.loading.set(false);
+        for (final FileChannel channel : this.segments.values()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Logger.debug(this, () -> "Error closing GA report segment: " + e.getMessage());
+            }
+        }
+        this.segments.clear();
+        this.index.clear();
+        this.keysByBase.clear();
+    }
+
+    /**
+     * Starts loading the index the first time, returns false until it is loaded or if the store can not be used.
+     */
+    private boolean ensureLoaded() {
+
+        if (!this.loaded && !this.failed && this.loading.compareAndSet(false, true)) {
+            final Thread thread = new Thread(this::load, "google-analytics-report-store");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return this.loaded;
+    }
+
+    /**
+     * Scans the segments to rebuild the index, deletes the segments with nothing alive in them and opens the last
+     * segment (or a new one) to append.
+     */
+    private synchronized void load() {
+
+        if (this.loaded || !this.loading.get()) {
+            return;
+        }
+
+        try {
+
+            Files.createDirectories(this.directory.toPath());
+            final File[] files = this.directory.listFiles((dir, name) ->
+                    name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+            final NavigableMap<Long, File> segmentFiles = new ConcurrentSkipListMap<>();
+            for (final File file : files != null ? files : new File[0]) {
+                try {
+                    segmentFiles.put(Long.parseLong(file.getName().substring(SEGMENT_PREFIX.length(),
+                            file.getName().length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    Logger.debug(this, () -> "Skipping unknown file: " + file);
+                }
+            }
+
+            final long now = System.currentTimeMillis();
+            for (final Map.Entry<Long, File> entry : segmentFiles.entrySet()) {
+                final FileChannel channel = FileChannel.open(entry.getValue().toPath(),
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                this.segments.put(entry.getKey(), channel);
+                this.activeSegmentSize = scan(entry.getKey(), channel, now);
+            }
+
+            // segments whose reports all expired or were superseded
+            final Set<Long> liveSegments = ConcurrentHashMap.newKeySet();
+            this.index.values().forEach(location -> liveSegments.add(location.segmentId));
+            for (final Long segmentId : segmentFiles.keySet()) {
+                if (!liveSegments.contains(segmentId) && !segmentId.equals(segmentFiles.lastKey())) {
+                    deleteSegment(segmentId);
+                }
+            }
+
+            if (this.segments.isEmpty()) {
+                this.activeSegmentId = 0;
+                this.activeSegmentSize = 0;
+                this.segments.put(0L, openSegment(0));
+            } else {
+                this.activeSegmentId = this.segments.lastKey();
+            }
+
+            this.loaded = true;
+            Logger.info(this, "Loaded " + this.index.size() + " cached GA reports from " + this.directory);
+        } catch (IOException e) {
+            // the plugin keeps working with the memory cache only
+            Logger.warn(this, "Could not load cached GA reports from " + this.directory + ": " + e.getMessage());
+            close();
+            this.failed = true;
+        } finally {
+            this.loading.set(false);
+        }
+    }
+
+    /**
+     * Adds the records of the segment to the index and returns the size of its valid part, a torn tail is cut off
+     * so the next appends start on a record boundary.
+     */
+    private long scan(final long segmentId, final FileChannel channel, final long now) throws IOException {
+
+        long offset = 0;
+        final long size = channel.size();
+        final DataInputStream input = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+        while (offset + HEADER_BYTES + TRAILER_BYTES <= size) {
+
+            final int bodyLength = input.readInt();
+            final long length = (long) HEADER_BYTES + bodyLength + TRAILER_BYTES;
+            if (bodyLength <= 0 || offset + length > size) {
+                break;
+            }
+
+            final byte[] bytes = new byte[(int) length];
+            ByteBuffer.wrap(bytes).putInt(bodyLength);
+            input.readFully(bytes, HEADER_BYTES, bodyLength + TRAILER_BYTES);
+            final Record record = Record.parse(bytes);
+            if (record == null) {
+                break;
+            }
+
+            final Location location = new Location(segmentId, offset, (int) length, record.expiresAt, record.baseKey);
+            if (record.expiresAt > now) {
+                addToIndex(record.key, location);
+            } else {
+                final Location previous = this.index.get(record.key);
+                if (previous != null) {
+                    removeFromIndex(record.key, previous);
+                }
+            }
+            offset += length;
+        }
+
+        if (offset < size) {
+            Logger.warn(this, "Truncating torn GA report segment " + segmentId + " at " + offset);
+            channel.truncate(offset);
+        }
+        return offset;
+    }
+
+    private void roll() throws IOException {
+
+        this.activeSegmentId++;
+        this.activeSegmentSize = 0;
+        this.segments.put(this.activeSegmentId, openSegment(this.activeSegmentId));
+
+        while (this.segments.size() > this.maxSegments) {
+            deleteSegment(this.segments.firstKey());
+        }
+    }
+
+    private void deleteSegment(final long segmentId) {
+
+        this.index.forEach((key, location) -> {
+            if (location.segmentId == segmentId) {
+                removeFromIndex(key, location);
+            }
+        });
+
+        final FileChannel channel = this.segments.remove(segmentId);
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            Files.deleteIfExists(segmentFile(segmentId).toPath());
+        } catch (IOException e) {
+            Logger.warn(this, "Could not delete GA report segment " + segmentId + ": " + e.getMessage());
+        }
+    }
+
+    private FileChannel openSegment(final long segmentId) throws IOException {
+
+        return FileChannel.open(segmentFile(segmentId).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private File segmentFile(final long segmentId) {
+        return new File(this.directory, SEGMENT_PREFIX + String.format("%010d", segmentId) + SEGMENT_SUFFIX);
+    }
+
+    private void addToIndex(final String key, final Location location) {
+
+        this.index.put(key, location);
+        this.keysByBase.computeIfAbsent(location.baseKey, baseKey -> ConcurrentHashMap.newKeySet()).add(key);
+    }
+
+    private void removeFromIndex(final String key, final Location location) {
+
+        if (this.index.remove(key, location)) {
+            this.keysByBase.computeIfPresent(location.baseKey, (baseKey, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            });
+        }
+    }
+
+    private static class Location {
+
+        private final long segmentId;
+        private final long offset;
+        private final int length;
+        private final long expiresAt;
+        private final String baseKey;
+
+        Location(final long segmentId, final long offset, final int length, final long expiresAt,
+                 final String baseKey) {
+            this.segmentId = segmentId;
+            this.offset = offset;
+            this.length = length;
+            this.expiresAt = expiresAt;
+            this.baseKey = baseKey;
+        }
+    }
+
+    private static class Record {
+
+        private final String key;
+        private final String baseKey;
+        private final long createdAt;
+        private final long expiresAt;
+        private final byte[] request;
+        private final byte[] response;
+
+        private Record(final String key, final String baseKey, final long createdAt, final long expiresAt,
+                       final byte[] request, final byte[] response) {
+            this.key = key;
+            this.baseKey = baseKey;
+            this.createdAt = createdAt;
+            this.expiresAt = expiresAt;
+            this.request = request;
+            this.response = response;
+        }
+
+        private CachedReport toCachedReport() throws IOException {
+            return new CachedReport(RunReportRequest.parseFrom(request), RunReportResponse.parseFrom(response),
+                    createdAt, expiresAt);
+        }
+
+        private static byte[] serialize(final String key, final String baseKey, final CachedReport cachedReport,
+                                        final RunReportResponse response) throws IOException {
+
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final DataOutputStream output = new DataOutputStream(body);
+            output.writeUTF(key);
+            output.writeUTF(baseKey);
+            output.writeLong(cachedReport.getCreatedAt());
+            output.writeLong(cachedReport.getExpiresAt());
+            final byte[] request = cachedReport.getRequest().toByteArray();
+            output.writeInt(request.length);
+            output.write(request);
+            output.writeInt(response.getSerializedSize());
+            response.writeTo(output);
+            output.flush();
+
+            final byte[] bodyBytes = body.toByteArray();
+            final CRC32 crc = new CRC32();
+            crc.update(bodyBytes);
+            return ByteBuffer.allocate(HEADER_BYTES + bodyBytes.length + TRAILER_BYTES)
+                    .putInt(bodyBytes.length)
+                    .put(bodyBytes)
+                    .putLong(crc.getValue())
+                    .array();
+        }
+
+        /**
+         * Parses a whole record, returns null if its checksum does not match.
+         */
+        private static Record parse(final byte[] bytes) throws IOException {
+
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            final int bodyLength = buffer.getInt();
+            final CRC32 crc = new CRC32();
+            crc.update(bytes, HEADER_BYTES, bodyLength);
+            if (crc.getValue() != buffer.getLong(HEADER_BYTES + bodyLength)) {
+                return null;
+            }
+
+            final DataInputStream input = new DataInputStream(
+                    new ByteArrayInputStream(bytes, HEADER_BYTES, bodyLength));
+            final String key = input.readUTF();
+            final String baseKey = input.readUTF();
+            final long createdAt = input.readLong();
+            final long expiresAt = input.readLong();
+            final byte[] request = new byte[input.readInt()];
+            input.readFully(request);
+            final byte[] response = new byte[input.readInt()];
+            input.readFully(response);
+            return new Record(key, baseKey, createdAt, expiresAt, request, response);
+        }
+    }
+}
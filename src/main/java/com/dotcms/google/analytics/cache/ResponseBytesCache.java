@@ -0,0 +1,118 @@
+package com.dotcms.google.analytics.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Cache of the final bytes of REST responses, keyed on the fingerprint of the query and the encoding of the body
+ * (identity or gzip), so a hit is written out as is, without mapping the report to rows or serializing it again.
+ */
+public class ResponseBytesCache {
+
+    private final Cache<String, EncodedResponse> cache;
+
+    /**
+     * @param maxBytes long max size of the cached bodies
+     */
+    public ResponseBytesCache(final long maxBytes) {
+
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .<String, EncodedResponse>weigher((key, response) -> response.getBody().length + key.length())
+                .build();
+    }
+
+    /**
+     * Returns the cached response.
+     * @param key String fingerprint of the query and encoding
+     * @return EncodedResponse or null if it is not cached or expired
+     */
+    public EncodedResponse get(final String key) {
+
+        final EncodedResponse response = this.cache.getIfPresent(key);
+        if (response == null) {
+            return null;
+        }
+
+        if (response.getMaxAgeSeconds(System.currentTimeMillis()) <= 0) {
+            this.cache.invalidate(key);
+            return null;
+        }
+        return response;
+    }
+
+    /**
+     * Caches the response until it expires, nothing is cached if it already did.
+     * @param key String fingerprint of the query and encoding
+     * @param response EncodedResponse
+     */
+    public void put(final String key, final EncodedResponse response) {
+
+        if (response.getMaxAgeSeconds(System.currentTimeMillis()) > 0) {
+            this.cache.put(key, response);
+        }
+    }
+
+    /**
+     * Drops all the cached responses.
+     */
+    public void clear() {
+        this.cache.invalidateAll();
+    }
+
+    /**
+     * The encoded body of a response along with what its headers are built from.
+     */
+    public static class EncodedResponse {
+
+        private final byte[] body;
+        private final String contentEncoding;
+        private final String entityTag;
+        private final int rows;
+        private final long expiresAt;
+
+        /**
+         * @param body byte[] encoded body
+         * @param contentEncoding String gzip, or null if the body is not compressed
+         * @param entityTag String entity tag of the result
+         * @param rows int rows in the result
+         * @param expiresAt long time the result stops being fresh
+         */
+        public EncodedResponse(final byte[] body,
+                               final String contentEncoding,
+                               final String entityTag,
+                               final int rows,
+                               final long expiresAt) {
+            this.body = body;
+            this.contentEncoding = contentEncoding;
+            this.entityTag = entityTag;
+            this.rows = rows;
+            this.expiresAt = expiresAt;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getContentEncoding() {
+            return contentEncoding;
+        }
+
+        public String getEntityTag() {
+            return entityTag;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        /**
+         * Seconds the result is still fresh for.
+         * @param now long
+         * @return int, 0 once it expired
+         */
+        public int getMaxAgeSeconds(final long now) {
+            return (int) Math.max(0, (expiresAt - now) / 1000);
+        }
+    }
+}
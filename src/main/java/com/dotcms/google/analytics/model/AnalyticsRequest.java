@@ -71,6 +71,7 @@ public class AnalyticsRequest {
 
     private List<FilterRequest> metricFilterList = new ArrayList<>();
     private List<FilterRequest> dimensionFilterList = new ArrayList<>();
+    private List<PivotRequest> pivotList = new ArrayList<>();
     /**
      * Specifies a subset of all data matched in analytics.
      */
@@ -91,6 +92,11 @@ public class AnalyticsRequest {
      */
     private int maxResults;
 
+    /**
+     * Max time in milliseconds to wait for the results, 0 means the default timeout.
+     */
+    private long timeoutMs;
+
     /**
      * Creates a new AnalyticsRequest instance for the given profile ID.
      *
@@ -168,6 +174,39 @@ public class AnalyticsRequest {
     public List<FilterRequest> getDimensionFilterList() {
         return dimensionFilterList;
     }
+
+    /**
+     * Adds a pivot to the request, making it a pivot report. The fields of the pivot do not need to be added to the
+     * dimensions.
+     *
+     * @param fieldNames Comma delimited list of dimensions of the pivot.
+     * @param limit Max number of value combinations of the pivot, 0 means the default.
+     */
+    public void addPivot(final String fieldNames, final long limit) {
+        pivotList.add(new PivotRequest(fieldNames, limit, null));
+    }
+
+    public void addPivot(final String fieldNames, final long limit, final String sort) {
+        pivotList.add(new PivotRequest(fieldNames, limit, sort));
+    }
+
+    public void addPivot(final PivotRequest pivot) {
+        pivotList.add(pivot);
+    }
+
+    public List<PivotRequest> getPivotList() {
+        return pivotList;
+    }
+
+    /**
+     * True if the request has pivots and has to run as a pivot report.
+     *
+     * @return boolean
+     */
+    public boolean isPivot() {
+        return !pivotList.isEmpty();
+    }
+
     /**
      * Gets the value of the startDate property.
      *
@@ -322,5 +361,24 @@ public class AnalyticsRequest {
         maxResults = newMaxResults;
     }
 
+    /**
+     * Gets the value of the timeoutMs property.
+     *
+     * @return The value of timeoutMs.
+     */
+    public final long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    /**
+     * Sets the max time in milliseconds to wait for the results, it becomes the deadline of the call to Google
+     * Analytics. 0 means the default timeout.
+     *
+     * @param newTimeoutMs The value of timeoutMs.
+     */
+    public final void setTimeoutMs(final long newTimeoutMs) {
+        timeoutMs = newTimeoutMs;
+    }
+
 
 }
@@ -0,0 +1,126 @@
+package com.dotcms.google.analytics.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A model class for representing a Google Analytics funnel report request: the steps the users go through and the
+ * date range, optionally broken down by a dimension.
+ */
+public class FunnelRequest {
+
+    private final String propertyId;
+    private final List<FunnelStepRequest> stepList = new ArrayList<>();
+
+    /**
+     * Beginning date of the funnel, in any of the formats accepted by Google Analytics (2026-02-09, 30daysAgo).
+     */
+    private String startDate = "30daysAgo";
+
+    /**
+     * Final date of the funnel.
+     */
+    private String endDate = "today";
+
+    /**
+     * In an open funnel users may enter at any step, in a closed one they have to complete the first step.
+     */
+    private boolean openFunnel;
+
+    /**
+     * Dimension the funnel table is broken down by, null for none.
+     */
+    private String breakdownDimension;
+
+    /**
+     * Max number of values of the breakdown dimension, 0 means the default.
+     */
+    private long breakdownLimit;
+
+    /**
+     * Max time in milliseconds to wait for the results, 0 means the default timeout.
+     */
+    private long timeoutMs;
+
+    public FunnelRequest(final String propertyId) {
+
+        if (propertyId == null || propertyId.equals("")) {
+            throw new IllegalArgumentException("propertyId cannot be null or empty");
+        }
+        this.propertyId = propertyId;
+    }
+
+    public String getPropertyId() {
+        return propertyId;
+    }
+
+    /**
+     * Adds a step completed by triggering the given event.
+     *
+     * @param name Name of the step.
+     * @param eventName Event that completes the step.
+     * @return the step, to add filters to it
+     */
+    public FunnelStepRequest addStep(final String name, final String eventName) {
+
+        final FunnelStepRequest step = new FunnelStepRequest(name, eventName, false);
+        stepList.add(step);
+        return step;
+    }
+
+    public void addStep(final FunnelStepRequest step) {
+        stepList.add(step);
+    }
+
+    public List<FunnelStepRequest> getStepList() {
+        return stepList;
+    }
+
+    public String getStartDate() {
+        return startDate;
+    }
+
+    public void setStartDate(final String startDate) {
+        this.startDate = startDate;
+    }
+
+    public String getEndDate() {
+        return endDate;
+    }
+
+    public void setEndDate(final String endDate) {
+        this.endDate = endDate;
+    }
+
+    public boolean isOpenFunnel() {
+        return openFunnel;
+    }
+
+    public void setOpenFunnel(final boolean openFunnel) {
+        this.openFunnel = openFunnel;
+    }
+
+    public String getBreakdownDimension() {
+        return breakdownDimension;
+    }
+
+    public void setBreakdownDimension(final String breakdownDimension) {
+        this.breakdownDimension = breakdownDimension;
+    }
+
+    public long getBreakdownLimit() {
+        return breakdownLimit;
+    }
+
+    public void setBreakdownLimit(final long breakdownLimit) {
+        this.breakdownLimit = breakdownLimit;
+    }
+
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    public void setTimeoutMs(final long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+}
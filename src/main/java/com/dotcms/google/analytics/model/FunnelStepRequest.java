@@ -0,0 +1,59 @@
+package com.dotcms.google.analytics.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One step of a funnel: the users that triggered the event and/or match the filters of the step, after completing the
+ * previous steps.
+ */
+public class FunnelStepRequest {
+
+    private final String name;
+    private final String eventName;
+    private final boolean directlyFollowedBy;
+    private final List<FilterRequest> filterList = new ArrayList<>();
+
+    /**
+     * @param name name of the step as it shows up in the results
+     * @param eventName event that completes the step, null if the step is only defined by its filters
+     * @param directlyFollowedBy true if the step has to come right after the previous one, otherwise other events
+     *                           may happen in between
+     */
+    public FunnelStepRequest(final String name, final String eventName, final boolean directlyFollowedBy) {
+        this.name = name;
+        this.eventName = eventName;
+        this.directlyFollowedBy = directlyFollowedBy;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getEventName() {
+        return eventName;
+    }
+
+    public boolean isDirectlyFollowedBy() {
+        return directlyFollowedBy;
+    }
+
+    /**
+     * Adds a dimension filter the step has to match, for instance pagePath BEGINS_WITH /checkout.
+     *
+     * @param field Dimension name.
+     * @param operator Match type (EXACT, BEGINS_WITH, ENDS_WITH, CONTAINS, FULL_REGEXP, PARTIAL_REGEXP).
+     * @param value Value to match.
+     */
+    public void addFilter(final String field, final String operator, final String value) {
+        filterList.add(new FilterRequest(field, operator, value));
+    }
+
+    public void addFilter(final FilterRequest filter) {
+        filterList.add(filter);
+    }
+
+    public List<FilterRequest> getFilterList() {
+        return filterList;
+    }
+}
@@ -0,0 +1,34 @@
+package com.dotcms.google.analytics.model;
+
+/**
+ * One pivot of a pivot report: the dimensions whose values become the rows or columns of the pivot table.
+ */
+public class PivotRequest {
+
+    private final String fieldNames;
+    private final long limit;
+    private final String sort;
+
+    /**
+     * @param fieldNames comma delimited list of dimensions of this pivot, they have to be part of the report
+     * @param limit max number of value combinations of this pivot, 0 means the default
+     * @param sort metric the combinations are sorted by (descending), null to keep the dimension order
+     */
+    public PivotRequest(final String fieldNames, final long limit, final String sort) {
+        this.fieldNames = fieldNames;
+        this.limit = limit;
+        this.sort = sort;
+    }
+
+    public String getFieldNames() {
+        return fieldNames;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public String getSort() {
+        return sort;
+    }
+}
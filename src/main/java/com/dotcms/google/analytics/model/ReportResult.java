@@ -0,0 +1,312 @@
+package com.dotcms.google.analytics.model;
+
+import com.google.analytics.data.v1beta.DimensionHeader;
+import com.google.analytics.data.v1beta.MetricHeader;
+import com.google.analytics.data.v1beta.MetricType;
+import com.google.analytics.data.v1beta.RunReportResponse;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Read-only, typed view of a report meant for templates. Columns are looked up by name through indexes built once,
+ * and each metric column is parsed the first time it is used into a long[] (integer metrics) or a double[] (the rest,
+ * according to {@link MetricHeader#getType()}), so templates do not parse the same strings over and over.
+ *
+ * <pre>
+ * #set($result = $googleanalytics.queryResult($gaRequest))
+ * Total sessions: $result.sum("sessions")
+ * #foreach($row in $result.top("sessions", 5))
+ *   $row.get("pagePath"): $row.get("sessions")
+ * #end
+ * </pre>
+ */
+public class ReportResult {
+
+    private final RunReportResponse response;
+    private final List<String> dimensionNames;
+    private final List<String> metricNames;
+    private final Map<String, Integer> dimensionIndexes = new HashMap<>();
+    private final Map<String, Integer> metricIndexes = new HashMap<>();
+    private final boolean[] integerMetrics;
+    private final Object[] metricColumns;
+    private final int rowCount;
+
+    public ReportResult(final RunReportResponse response) {
+
+        this.response = response;
+        this.rowCount = response.getRowsCount();
+
+        final List<String> dimensions = new ArrayList<>(response.getDimensionHeadersCount());
+        for (final DimensionHeader header : response.getDimensionHeadersList()) {
+            dimensionIndexes.put(header.getName(), dimensions.size());
+            dimensions.add(header.getName());
+        }
+        this.dimensionNames = Collections.unmodifiableList(dimensions);
+
+        final List<String> metrics = new ArrayList<>(response.getMetricHeadersCount());
+        this.integerMetrics = new boolean[response.getMetricHeadersCount()];
+        for (final MetricHeader header : response.getMetricHeadersList()) {
+            integerMetrics[metrics.size()] = header.getType() == MetricType.TYPE_INTEGER;
+            metricIndexes.put(header.getName(), metrics.size());
+            metrics.add(header.getName());
+        }
+        this.metricNames = Collections.unmodifiableList(metrics);
+        this.metricColumns = new Object[metrics.size()];
+    }
+
+    /**
+     * Returns the raw response.
+     * @return RunReportResponse
+     */
+    public RunReportResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * Number of rows in this result.
+     * @return int
+     */
+    public int getSize() {
+        return rowCount;
+    }
+
+    /**
+     * Total number of rows of the report, may be bigger than {@link #getSize()} when the result was limited.
+     * @return int
+     */
+    public int getTotalRowCount() {
+        return response.getRowCount();
+    }
+
+    public List<String> getDimensionNames() {
+        return dimensionNames;
+    }
+
+    public List<String> getMetricNames() {
+        return metricNames;
+    }
+
+    public boolean hasDimension(final String name) {
+        return dimensionIndexes.containsKey(name);
+    }
+
+    public boolean hasMetric(final String name) {
+        return metricIndexes.containsKey(name);
+    }
+
+    /**
+     * Returns the value of the dimension on the given row.
+     * @param rowIndex int
+     * @param dimension String
+     * @return String
+     */
+    public String getDimension(final int rowIndex, final String dimension) {
+        return response.getRows(rowIndex).getDimensionValues(dimensionIndex(dimension)).getValue();
+    }
+
+    /**
+     * Returns the value of the metric on the given row, a Long for integer metrics and a Double for the rest.
+     * @param rowIndex int
+     * @param metric String
+     * @return Number
+     */
+    public Number getMetric(final int rowIndex, final String metric) {
+
+        final int metricIndex = metricIndex(metric);
+        return integerMetrics[metricIndex] ?
+                (Number) longColumn(metricIndex)[rowIndex] : (Number) doubleColumn(metricIndex)[rowIndex];
+    }
+
+    public long getLong(final int rowIndex, final String metric) {
+        return getMetric(rowIndex, metric).longValue();
+    }
+
+    public double getDouble(final int rowIndex, final String metric) {
+        return getMetric(rowIndex, metric).doubleValue();
+    }
+
+    /**
+     * Returns the values of the dimension on all the rows.
+     * @param dimension String
+     * @return List of String
+     */
+    public List<String> getDimensionColumn(final String dimension) {
+
+        final int dimensionIndex = dimensionIndex(dimension);
+        return new AbstractList<String>() {
+            @Override
+            public String get(final int rowIndex) {
+                return response.getRows(rowIndex).getDimensionValues(dimensionIndex).getValue();
+            }
+
+            @Override
+            public int size() {
+                return rowCount;
+            }
+        };
+    }
+
+    /**
+     * Returns the sum of the metric over all the rows, a Long for integer metrics and a Double for the rest.
+     * @param metric String
+     * @return Number
+     */
+    public Number sum(final String metric) {
+
+        final int metricIndex = metricIndex(metric);
+        return integerMetrics[metricIndex] ?
+                (Number) Arrays.stream(longColumn(metricIndex)).sum() :
+                (Number) Arrays.stream(doubleColumn(metricIndex)).sum();
+    }
+
+    /**
+     * Returns the rows of the result.
+     * @return List of ResultRow
+     */
+    public List<ResultRow> getRows() {
+
+        return new AbstractList<ResultRow>() {
+            @Override
+            public ResultRow get(final int rowIndex) {
+                return new ResultRow(rowIndex);
+            }
+
+            @Override
+            public int size() {
+                return rowCount;
+            }
+        };
+    }
+
+    /**
+     * Returns the n rows with the highest values of the metric, highest first.
+     * @param metric String
+     * @param n int
+     * @return List of ResultRow
+     */
+    public List<ResultRow> top(final String metric, final int n) {
+
+        final int metricIndex = metricIndex(metric);
+        final IntStream sorted;
+        if (integerMetrics[metricIndex]) {
+            final long[] column = longColumn(metricIndex);
+            sorted = IntStream.range(0, rowCount).boxed()
+                    .sorted((left, right) -> Long.compare(column[right], column[left]))
+                    .mapToInt(Integer::intValue);
+        } else {
+            final double[] column = doubleColumn(metricIndex);
+            sorted = IntStream.range(0, rowCount).boxed()
+                    .sorted((left, right) -> Double.compare(column[right], column[left]))
+                    .mapToInt(Integer::intValue);
+        }
+
+        final List<ResultRow> rows = new ArrayList<>(Math.min(Math.max(n, 0), rowCount));
+        sorted.limit(Math.max(n, 0)).forEach(rowIndex -> rows.add(new ResultRow(rowIndex)));
+        return rows;
+    }
+
+    private int dimensionIndex(final String dimension) {
+
+        final Integer index = dimensionIndexes.get(dimension);
+        if (index == null) {
+            throw new IllegalArgumentException("Unknown dimension: " + dimension);
+        }
+        return index;
+    }
+
+    private int metricIndex(final String metric) {
+
+        final Integer index = metricIndexes.get(metric);
+        if (index == null) {
+            throw new IllegalArgumentException("Unknown metric: " + metric);
+        }
+        return index;
+    }
+
+    private long[] longColumn(final int metricIndex) {
+
+        long[] column = (long[]) metricColumns[metricIndex];
+        if (column == null) {
+            column = new long[rowCount];
+            for (int i = 0; i < rowCount; i++) {
+                column[i] = parseLong(response.getRows(i).getMetricValues(metricIndex).getValue());
+            }
+            metricColumns[metricIndex] = column;
+        }
+        return column;
+    }
+
+    private double[] doubleColumn(final int metricIndex) {
+
+        double[] column = (double[]) metricColumns[metricIndex];
+        if (column == null) {
+            column = new double[rowCount];
+            for (int i = 0; i < rowCount; i++) {
+                column[i] = parseDouble(response.getRows(i).getMetricValues(metricIndex).getValue());
+            }
+            metricColumns[metricIndex] = column;
+        }
+        return column;
+    }
+
+    private static long parseLong(final String value) {
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return (long) parseDouble(value);
+        }
+    }
+
+    private static double parseDouble(final String value) {
+
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException | NullPointerException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * A row of the result, {@link #get(String)} returns dimensions as String and metrics as Number.
+     */
+    public class ResultRow {
+
+        private final int rowIndex;
+
+        private ResultRow(final int rowIndex) {
+            this.rowIndex = rowIndex;
+        }
+
+        public int getIndex() {
+            return rowIndex;
+        }
+
+        public Object get(final String name) {
+            return metricIndexes.containsKey(name) ? getMetric(name) : getDimension(name);
+        }
+
+        public String getDimension(final String dimension) {
+            return ReportResult.this.getDimension(rowIndex, dimension);
+        }
+
+        public Number getMetric(final String metric) {
+            return ReportResult.this.getMetric(rowIndex, metric);
+        }
+
+        public long getLong(final String metric) {
+            return ReportResult.this.getLong(rowIndex, metric);
+        }
+
+        public double getDouble(final String metric) {
+            return ReportResult.this.getDouble(rowIndex, metric);
+        }
+    }
+}
@@ -2,6 +2,8 @@ package com.dotcms.google.analytics.osgi;
 
 import com.dotcms.google.analytics.app.AnalyticsAppService;
 import com.dotcms.google.analytics.rest.GoogleAnalyticsResource;
+import com.dotcms.google.analytics.service.GoogleAnalyticsServiceRegistry;
+import com.dotcms.google.analytics.service.SpanLogHandler;
 import com.dotcms.google.analytics.view.AnalyticsToolInfo;
 import com.dotmarketing.business.CacheLocator;
 import com.dotmarketing.loggers.Log4jUtil;
@@ -46,6 +48,9 @@ public class Activator extends GenericBundleActivator {
         // copy the yaml
         copyAppYml();
 
+        // Log the spans of the plugin, when the runtime has an OpenCensus implementation that records them
+        SpanLogHandler.register();
+
         // Register REST resources
         publishBundleServices(bundleContext);
 
@@ -79,6 +84,9 @@ public class Activator extends GenericBundleActivator {
     public final void stop(final BundleContext bundleContext) throws Exception {
         unregisterViewToolServices();
 
+        GoogleAnalyticsServiceRegistry.getInstance().clear();
+        SpanLogHandler.unregister();
+
         //Shutting down log4j in order to avoid memory leaks
         Log4jUtil.shutdown(pluginLoggerContext);
     }
@@ -1,34 +1,77 @@
 package com.dotcms.google.analytics.rest;
 
-import com.dotcms.google.analytics.app.AnalyticsApp;
-import com.dotcms.google.analytics.app.AnalyticsAppService;
+import com.dotcms.google.analytics.cache.ReportRollup;
+import com.dotcms.google.analytics.cache.ResponseBytesCache;
+import com.dotcms.google.analytics.cache.ResponseBytesCache.EncodedResponse;
 import com.dotcms.google.analytics.model.AnalyticsRequest;
 import com.dotcms.google.analytics.model.FilterRequest;
+import com.dotcms.google.analytics.model.FunnelRequest;
+import com.dotcms.google.analytics.model.FunnelStepRequest;
+import com.dotcms.google.analytics.service.AudienceExportJob;
+import com.dotcms.google.analytics.service.AudienceExportJobs;
+import com.dotcms.google.analytics.service.BulkheadFullException;
 import com.dotcms.google.analytics.service.GoogleAnalyticsService;
+import com.dotcms.google.analytics.service.GoogleAnalyticsServiceRegistry;
+import com.dotcms.google.analytics.service.InvalidAnalyticsRequestException;
+import com.dotcms.google.analytics.service.QueryTrace;
+import com.dotcms.google.analytics.util.Fingerprints;
+import com.dotcms.google.analytics.util.ReportDates;
 import com.dotcms.rest.WebResource;
 import com.dotmarketing.beans.Host;
+import com.dotmarketing.business.APILocator;
 import com.dotmarketing.business.web.WebAPILocator;
+import com.dotmarketing.exception.DotSecurityException;
+import com.dotmarketing.util.Config;
 import com.dotmarketing.util.Logger;
+import com.google.analytics.data.v1alpha.FunnelSubReport;
+import com.google.analytics.data.v1alpha.RunFunnelReportResponse;
+import com.google.analytics.data.v1beta.DimensionHeader;
 import com.google.analytics.data.v1beta.DimensionValue;
+import com.google.analytics.data.v1beta.MetricHeader;
 import com.google.analytics.data.v1beta.MetricValue;
+import com.google.analytics.data.v1beta.PivotDimensionHeader;
+import com.google.analytics.data.v1beta.PivotHeader;
+import com.google.analytics.data.v1beta.Row;
+import com.google.analytics.data.v1beta.RunPivotReportResponse;
 import com.google.analytics.data.v1beta.RunReportResponse;
+import com.google.api.gax.rpc.DeadlineExceededException;
+import com.google.gson.Gson;
 import com.liferay.portal.model.User;
+import com.liferay.util.StringPool;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * REST endpoint for querying Google Analytics data.
@@ -38,9 +81,43 @@ import java.util.stream.Collectors;
 @Path("/v1/googleanalytics")
 public class GoogleAnalyticsResource {
 
+    /**
+     * Max age in seconds of GET results whose date range is closed.
+     */
+    private static final long CLOSED_RANGE_MAX_AGE =
+            Config.getLongProperty("GOOGLE_ANALYTICS_HTTP_CACHE_CLOSED_RANGE_MAX_AGE", 86400);
+
+    /**
+     * Max age in seconds of GET results whose date range includes today.
+     */
+    private static final long OPEN_RANGE_MAX_AGE =
+            Config.getLongProperty("GOOGLE_ANALYTICS_HTTP_CACHE_OPEN_RANGE_MAX_AGE", 300);
+
+    /**
+     * GET results are private by default since the endpoint is authenticated, turn this on if the CDN in front
+     * of dotCMS takes care of the authentication.
+     */
+    private static final boolean PUBLIC_CACHE =
+            Config.getBooleanProperty("GOOGLE_ANALYTICS_HTTP_CACHE_PUBLIC", false);
+
+    /**
+     * GET results smaller than this are not compressed.
+     */
+    private static final int GZIP_MIN_BYTES =
+            Config.getIntProperty("GOOGLE_ANALYTICS_GZIP_MIN_BYTES", 8192);
+
+    private static final Gson GSON = new Gson();
+
+    private static final String PIVOT_KEY_SEPARATOR = "\u0000";
+
+    /**
+     * Max number of site/property pairs of a multi-site query.
+     */
+    private static final int MAX_FAN_OUT_TARGETS =
+            Config.getIntProperty("GOOGLE_ANALYTICS_FAN_OUT_MAX_TARGETS", 100);
+
     private final WebResource webResource = new WebResource();
-    private final AnalyticsAppService analyticsAppService = new AnalyticsAppService();
-    private final Map<String, GoogleAnalyticsService> googleAnalyticsServiceMap = new ConcurrentHashMap<>();
+    private final GoogleAnalyticsServiceRegistry serviceRegistry = GoogleAnalyticsServiceRegistry.getInstance();
 
     /**
      * Query Google Analytics 4 data via REST API.
@@ -53,9 +130,15 @@ public class GoogleAnalyticsResource {
      *   "endDate": "2026-02-16",
      *   "metrics": ["sessions", "activeUsers"],
      *   "dimensions": ["date"],
-     *   "maxResults": 100
+     *   "maxResults": 100,
+     *   "timeoutMs": 5000
      * }
      *
+     * A request with "pivots" runs as a pivot report and gets a compact pivot table back, for instance
+     * "pivots": [{"fields": ["country"], "limit": 50, "sort": "sessions"}, {"fields": ["deviceCategory", "month"]}]
+     * returns the value combinations of each pivot once, under "pivots", and one cell per row holding the index of
+     * its combination in each pivot followed by the metric values.
+     *
      * @param request HTTP request
      * @param response HTTP response
      * @param queryRequest Analytics query parameters
@@ -70,7 +153,7 @@ public class GoogleAnalyticsResource {
             @Context final HttpServletResponse response,
             final GoogleAnalyticsQueryRequest queryRequest) {
 
-        try {
+        try (QueryTrace trace = QueryTrace.start("POST /query", request::getHeader)) {
             // Validate request body
             if (queryRequest == null) {
                 return Response.status(Response.Status.BAD_REQUEST)
@@ -96,175 +179,1318 @@ public class GoogleAnalyticsResource {
                         .build();
             }
 
-            // Get analytics app configuration for current site
-            final Host currentHost = WebAPILocator.getHostWebAPI().getHost(request);
-            final String siteId = currentHost.getIdentifier();
-
-            // Get or create cached Google Analytics service
-            final GoogleAnalyticsService analyticsService =
-                    this.googleAnalyticsServiceMap.computeIfAbsent(siteId, key -> {
-                        try {
-                            final AnalyticsApp analyticsApp = analyticsAppService.getAnalyticsApp(siteId);
-                            return new GoogleAnalyticsService(analyticsApp.getJsonKeyFile());
-                        } catch (Exception e) {
-                            throw new RuntimeException(e);
-                        }
-                    });
-
-            // Build analytics request
-            final AnalyticsRequest analyticsRequest =
-                    new AnalyticsRequest(queryRequest.getPropertyId());
-
-            // Set date range
-            if (queryRequest.getStartDate() != null) {
-                analyticsRequest.setStartDate(queryRequest.getStartDate());
+            // Pivot reports come back as a compact pivot table
+            if (queryRequest.getPivots() != null && !queryRequest.getPivots().isEmpty()) {
+                final RunPivotReportResponse gaResponse = executePivotQuery(request, queryRequest);
+                try (QueryTrace.Stage stage = QueryTrace.stage("mapping")) {
+                    return Response.ok(toPivotResponseData(gaResponse, queryRequest)).build();
+                }
+            }
+
+            // Execute query, or take the encoded response of the same query out of the cache
+            final EncodedResponse encodedResponse = executeEncodedQuery(request, queryRequest);
+
+            return Response.ok(encodedResponse.getBody())
+                    .type(MediaType.APPLICATION_JSON_TYPE)
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                    .header(HttpHeaders.CONTENT_ENCODING, encodedResponse.getContentEncoding())
+                    .build();
+
+        } catch (Exception e) {
+            return toErrorResponse(e);
+        }
+    }
+
+    /**
+     * Query Google Analytics 4 data with a cacheable GET. The query is encoded in these parameters, list values are
+     * comma separated and filters are encoded as field:OPERATOR:value (repeat the parameter for several filters).
+     * The response carries an ETag computed from the result (a matching If-None-Match gets a 304) and a
+     * Cache-Control max-age that is long for closed date ranges and short when the range includes today.
+     *
+     * Each query has a single URL, so caches and CDNs keep one variant of it: the parameters come in the order
+     * below, list values and filters are sorted and without duplicates, and empty parameters are left out. Any other
+     * form of the query is redirected (301) to its canonical URL.
+     *
+     * Example request:
+     * GET /api/v1/googleanalytics/query?propertyId=123456789&startDate=2026-02-09&endDate=2026-02-16
+     *     &metrics=activeUsers,sessions&dimensions=date,pagePath&dimensionFilter=pagePath:CONTAINS:/products
+     *     &sort=sessions&maxResults=100
+     *
+     * @param request HTTP request
+     * @param response HTTP response
+     * @param httpRequest JAX-RS request used to evaluate the preconditions
+     * @return JSON response with analytics data
+     */
+    @GET
+    @Path("/query")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response queryGet(
+            @Context final HttpServletRequest request,
+            @Context final HttpServletResponse response,
+            @Context final Request httpRequest,
+            @QueryParam("propertyId") final String propertyId,
+            @QueryParam("startDate") final String startDate,
+            @QueryParam("endDate") final String endDate,
+            @QueryParam("metrics") final String metrics,
+            @QueryParam("dimensions") final String dimensions,
+            @QueryParam("dimensionFilter") final List<String> dimensionFilters,
+            @QueryParam("metricFilter") final List<String> metricFilters,
+            @QueryParam("sort") final String sort,
+            @QueryParam("maxResults") final Integer maxResults,
+            @QueryParam("timeoutMs") final Long timeoutMs) {
+
+        try (QueryTrace trace = QueryTrace.start("GET /query", request::getHeader)) {
+            // Authenticate user
+            final User user = new WebResource.InitBuilder(webResource)
+                    .requiredBackendUser(true)
+                    .requiredFrontendUser(false)
+                    .requestAndResponse(request, response)
+                    .rejectWhenNoUser(true)
+                    .init()
+                    .getUser();
+
+            Logger.debug(this, () -> "User authenticated: " + user.getEmailAddress());
+
+            // Validate request
+            if (propertyId == null || propertyId.isEmpty()) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                        .entity(Map.of("error", "propertyId is required"))
+                        .build();
             }
-            if (queryRequest.getEndDate() != null) {
-                analyticsRequest.setEndDate(queryRequest.getEndDate());
+
+            final List<String> metricList = canonicalList(splitList(metrics));
+            final List<String> dimensionList = canonicalList(splitList(dimensions));
+            final List<String> dimensionFilterList = canonicalList(dimensionFilters);
+            final List<String> metricFilterList = canonicalList(metricFilters);
+
+            // Other orders and spellings of the same query go to its one URL
+            final String canonicalQuery = new CanonicalQueryBuilder()
+                    .add("propertyId", propertyId)
+                    .add("startDate", startDate)
+                    .add("endDate", endDate)
+                    .add("metrics", metricList != null ? String.join(StringPool.COMMA, metricList) : null)
+                    .add("dimensions", dimensionList != null ? String.join(StringPool.COMMA, dimensionList) : null)
+                    .addAll("dimensionFilter", dimensionFilterList)
+                    .addAll("metricFilter", metricFilterList)
+                    .add("sort", sort)
+                    .add("maxResults", maxResults != null ? maxResults.toString() : null)
+                    .add("timeoutMs", timeoutMs != null ? timeoutMs.toString() : null)
+                    .build();
+            if (!canonicalQuery.equals(request.getQueryString())) {
+                return Response.status(Response.Status.MOVED_PERMANENTLY)
+                        .location(URI.create(request.getRequestURI() + "?" + canonicalQuery))
+                        .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                        .build();
             }
 
-            // Set metrics
-            if (queryRequest.getMetrics() != null && !queryRequest.getMetrics().isEmpty()) {
-                analyticsRequest.setMetrics(String.join(",", queryRequest.getMetrics()));
+            final GoogleAnalyticsQueryRequest queryRequest = new GoogleAnalyticsQueryRequest();
+            queryRequest.setPropertyId(propertyId);
+            queryRequest.setStartDate(startDate);
+            queryRequest.setEndDate(endDate);
+            queryRequest.setMetrics(metricList);
+            queryRequest.setDimensions(dimensionList);
+            queryRequest.setSort(sort);
+            queryRequest.setMaxResults(maxResults);
+            queryRequest.setTimeoutMs(timeoutMs);
+
+            final FiltersDTO filters = new FiltersDTO();
+            filters.setDimension(parseFilters(dimensionFilterList));
+            filters.setMetric(parseFilters(metricFilterList));
+            queryRequest.setFilters(filters);
+
+            // Execute query, or take the encoded response of the same query out of the cache
+            final EncodedResponse encodedResponse = executeEncodedQuery(request, queryRequest);
+
+            final EntityTag entityTag = new EntityTag(encodedResponse.getEntityTag(), true);
+            final CacheControl cacheControl = new CacheControl();
+            cacheControl.setNoTransform(false);
+            cacheControl.setPrivate(!PUBLIC_CACHE);
+            cacheControl.setMaxAge(encodedResponse.getMaxAgeSeconds(System.currentTimeMillis()));
+
+            // The client already has this result
+            final Response.ResponseBuilder notModified = httpRequest.evaluatePreconditions(entityTag);
+            if (notModified != null) {
+                return notModified.tag(entityTag).cacheControl(cacheControl).build();
             }
 
-            // Set dimensions
-            if (queryRequest.getDimensions() != null && !queryRequest.getDimensions().isEmpty()) {
-                analyticsRequest.setDimensions(String.join(",", queryRequest.getDimensions()));
+            return Response.ok(encodedResponse.getBody())
+                    .type(MediaType.APPLICATION_JSON_TYPE)
+                    .tag(entityTag)
+                    .cacheControl(cacheControl)
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                    .header(HttpHeaders.CONTENT_ENCODING, encodedResponse.getContentEncoding())
+                    .build();
+
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("error", e.getMessage()))
+                    .build();
+        } catch (Exception e) {
+            return toErrorResponse(e);
+        }
+    }
+
+    /**
+     * Runs the same query on the Google Analytics properties of several sites in parallel, each one through the
+     * service (credentials and limits) of its site, and merges the results tagged by site and property. A site
+     * that fails does not fail the request, its entry in "results" carries the error instead.
+     *
+     * Example request:
+     * POST /api/v1/googleanalytics/query/multi
+     * {
+     *   "targets": [{"siteId": "48190c8c-42c4-46af-8d1a-0cd5db894797", "propertyId": "123456789"},
+     *               {"siteId": "8a7d5e23-da1e-420a-b4f0-471e7da8ea2d", "propertyId": "987654321"}],
+     *   "query": {"startDate": "7daysAgo", "endDate": "today", "metrics": ["sessions"], "dimensions": ["country"]},
+     *   "sum": true
+     * }
+     *
+     * With "sum" the rows of all the properties are also grouped by their dimensions under "summed", adding up the
+     * additive metrics, and "totals" holds the sum of each additive metric.
+     *
+     * @param request HTTP request
+     * @param response HTTP response
+     * @param multiQueryRequest targets and query
+     * @return JSON response with the results of every target
+     */
+    @POST
+    @Path("/query/multi")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response queryMulti(
+            @Context final HttpServletRequest request,
+            @Context final HttpServletResponse response,
+            final GoogleAnalyticsMultiQueryRequest multiQueryRequest) {
+
+        try {
+            // Authenticate user
+            final User user = new WebResource.InitBuilder(webResource)
+                    .requiredBackendUser(true)
+                    .requiredFrontendUser(false)
+                    .requestAndResponse(request, response)
+                    .rejectWhenNoUser(true)
+                    .init()
+                    .getUser();
+
+            // Validate request
+            if (multiQueryRequest == null || multiQueryRequest.getQuery() == null
+                    || multiQueryRequest.getTargets() == null || multiQueryRequest.getTargets().isEmpty()) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                        .entity(Map.of("error", "targets and query are required"))
+                        .build();
+            }
+            if (multiQueryRequest.getTargets().size() > MAX_FAN_OUT_TARGETS) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                        .entity(Map.of("error", "At most " + MAX_FAN_OUT_TARGETS + " targets are allowed"))
+                        .build();
             }
 
-            // Set filters
-            if (queryRequest.getFilters() != null) {
-                if (queryRequest.getFilters().getDimension() != null) {
-                    for (FilterRequestDTO filter : queryRequest.getFilters().getDimension()) {
-                        final FilterRequest filterRequest = new FilterRequest(
-                                filter.getField(),
-                                filter.getOperator(),
-                                filter.getValue()
-                        );
-                        analyticsRequest.getDimensionFilterList().add(filterRequest);
-                    }
+            final ExecutorService executor = this.serviceRegistry.getFanOutExecutor();
+            final List<CompletableFuture<Map<String, Object>>> futures = multiQueryRequest.getTargets().stream()
+                    .map(target -> CompletableFuture.supplyAsync(
+                            () -> queryTarget(user, target, multiQueryRequest.getQuery()), executor))
+                    .collect(Collectors.toList());
+
+            final List<Map<String, Object>> results = futures.stream()
+                    .map(CompletableFuture::join)
+                    .collect(Collectors.toList());
+
+            return Response.ok(toMultiResponseData(results, multiQueryRequest)).build();
+        } catch (Exception e) {
+            return toErrorResponse(e);
+        }
+    }
+
+    /**
+     * Runs a funnel report on the property of the current site. All the steps are computed by Google Analytics in
+     * one call, so the step numbers are consistent with each other.
+     *
+     * Example request:
+     * POST /api/v1/googleanalytics/funnel
+     * {
+     *   "propertyId": "123456789",
+     *   "startDate": "30daysAgo",
+     *   "endDate": "today",
+     *   "steps": [
+     *     {"name": "Product page", "eventName": "page_view",
+     *      "filters": [{"field": "pagePath", "operator": "BEGINS_WITH", "value": "/products"}]},
+     *     {"name": "Add to cart", "eventName": "add_to_cart"},
+     *     {"name": "Purchase", "eventName": "purchase", "directlyFollowedBy": false}
+     *   ],
+     *   "openFunnel": false,
+     *   "breakdown": "deviceCategory"
+     * }
+     *
+     * The response holds one row per step (and breakdown value) with the users that reached it, the completion rate
+     * and the abandonments.
+     *
+     * @param request HTTP request
+     * @param response HTTP response
+     * @param funnelRequest funnel definition
+     * @return JSON response with the funnel table
+     */
+    @POST
+    @Path("/funnel")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response funnel(
+            @Context final HttpServletRequest request,
+            @Context final HttpServletResponse response,
+            final GoogleAnalyticsFunnelRequest funnelRequest) {
+
+        try (QueryTrace trace = QueryTrace.start("POST /funnel", request::getHeader)) {
+            // Authenticate user
+            new WebResource.InitBuilder(webResource)
+                    .requiredBackendUser(true)
+                    .requiredFrontendUser(false)
+                    .requestAndResponse(request, response)
+                    .rejectWhenNoUser(true)
+                    .init();
+
+            // Validate request
+            if (funnelRequest == null || funnelRequest.getPropertyId() == null
+                    || funnelRequest.getPropertyId().isEmpty()) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                        .entity(Map.of("error", "propertyId is required"))
+                        .build();
+            }
+            if (funnelRequest.getSteps() == null || funnelRequest.getSteps().isEmpty()) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                        .entity(Map.of("error", "steps are required"))
+                        .build();
+            }
+
+            final Host currentHost = WebAPILocator.getHostWebAPI().getHost(request);
+            final RunFunnelReportResponse gaResponse = this.serviceRegistry.getService(currentHost.getIdentifier())
+                    .queryFunnel(toFunnelRequest(funnelRequest));
+
+            try (QueryTrace.Stage stage = QueryTrace.stage("mapping")) {
+                return Response.ok(toFunnelResponseData(gaResponse.getFunnelTable())).build();
+            }
+        } catch (Exception e) {
+            return toErrorResponse(e);
+        }
+    }
+
+    private FunnelRequest toFunnelRequest(final GoogleAnalyticsFunnelRequest funnelRequest) {
+
+        final FunnelRequest request = new FunnelRequest(funnelRequest.getPropertyId());
+        if (funnelRequest.getStartDate() != null) {
+            request.setStartDate(funnelRequest.getStartDate());
+        }
+        if (funnelRequest.getEndDate() != null) {
+            request.setEndDate(funnelRequest.getEndDate());
+        }
+        request.setOpenFunnel(Boolean.TRUE.equals(funnelRequest.getOpenFunnel()));
+        request.setBreakdownDimension(funnelRequest.getBreakdown());
+        if (funnelRequest.getBreakdownLimit() != null) {
+            request.setBreakdownLimit(funnelRequest.getBreakdownLimit());
+        }
+        if (funnelRequest.getTimeoutMs() != null && funnelRequest.getTimeoutMs() > 0) {
+            request.setTimeoutMs(funnelRequest.getTimeoutMs());
+        }
+
+        for (final FunnelStepDTO stepDTO : funnelRequest.getSteps()) {
+
+            final FunnelStepRequest step = new FunnelStepRequest(stepDTO.getName(), stepDTO.getEventName(),
+                    Boolean.TRUE.equals(stepDTO.getDirectlyFollowedBy()));
+            if (stepDTO.getFilters() != null) {
+                for (final FilterRequestDTO filter : stepDTO.getFilters()) {
+                    step.addFilter(filter.getField(), filter.getOperator(), filter.getValue());
                 }
+            }
+            request.addStep(step);
+        }
+
+        return request;
+    }
+
+    /**
+     * Flattens the funnel table into named rows, like the rows of a regular report.
+     */
+    private Map<String, Object> toFunnelResponseData(final FunnelSubReport funnelTable) {
 
-                if (queryRequest.getFilters().getMetric() != null) {
-                    for (FilterRequestDTO filter : queryRequest.getFilters().getMetric()) {
-                        final FilterRequest filterRequest = new FilterRequest(
-                                filter.getField(),
-                                filter.getOperator(),
-                                filter.getValue()
-                        );
-                        analyticsRequest.getMetricFilterList().add(filterRequest);
+        final List<String> dimensionNames = funnelTable.getDimensionHeadersList().stream()
+                .map(com.google.analytics.data.v1alpha.DimensionHeader::getName)
+                .collect(Collectors.toList());
+        final List<String> metricNames = funnelTable.getMetricHeadersList().stream()
+                .map(com.google.analytics.data.v1alpha.MetricHeader::getName)
+                .collect(Collectors.toList());
+
+        final List<Map<String, String>> rows = funnelTable.getRowsList().stream()
+                .map(row -> {
+                    final Map<String, String> rowData = new HashMap<>();
+                    for (int i = 0; i < dimensionNames.size() && i < row.getDimensionValuesCount(); i++) {
+                        rowData.put(dimensionNames.get(i), row.getDimensionValues(i).getValue());
                     }
-                }
+                    for (int i = 0; i < metricNames.size() && i < row.getMetricValuesCount(); i++) {
+                        rowData.put(metricNames.get(i), row.getMetricValues(i).getValue());
+                    }
+                    return rowData;
+                })
+                .collect(Collectors.toList());
+
+        final Map<String, Object> responseData = new HashMap<>();
+        responseData.put("rowCount", rows.size());
+        responseData.put("dimensions", dimensionNames);
+        responseData.put("metrics", metricNames);
+        responseData.put("rows", rows);
+        return responseData;
+    }
+
+    /**
+     * Runs the query for one target, failures are returned as an entry with the error.
+     */
+    private Map<String, Object> queryTarget(final User user,
+                                            final TargetDTO target,
+                                            final GoogleAnalyticsQueryRequest query) {
+
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put("siteId", target.getSiteId());
+        result.put("propertyId", target.getPropertyId());
+        try {
+
+            if (target.getSiteId() == null || target.getPropertyId() == null || target.getPropertyId().isEmpty()) {
+                throw new InvalidAnalyticsRequestException("siteId and propertyId are required");
             }
 
-            // Set sort
-            if (queryRequest.getSort() != null) {
-                analyticsRequest.setSort(queryRequest.getSort());
+            // the user has to be able to read the site whose credentials are used
+            final Host site = APILocator.getHostAPI().find(target.getSiteId(), user, false);
+            if (site == null) {
+                throw new InvalidAnalyticsRequestException("Site not found: " + target.getSiteId());
             }
 
-            // Set max results
-            if (queryRequest.getMaxResults() != null && queryRequest.getMaxResults() > 0) {
-                analyticsRequest.setMaxResults(queryRequest.getMaxResults());
+            final AnalyticsRequest analyticsRequest = toAnalyticsRequest(query, target.getPropertyId());
+            final RunReportResponse gaResponse =
+                    this.serviceRegistry.getService(site.getIdentifier()).query(analyticsRequest);
+            result.putAll(toResponseData(gaResponse));
+        } catch (DotSecurityException e) {
+            result.put("error", "Not allowed to query site: " + target.getSiteId());
+        } catch (Exception e) {
+            final Response errorResponse = toErrorResponse(e);
+            result.put("status", errorResponse.getStatus());
+            result.put("error", ((Map<?, ?>) errorResponse.getEntity()).get("error"));
+        }
+        return result;
+    }
+
+    /**
+     * Merges the rows of all the targets tagged by site and property, and sums them up if asked to.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> toMultiResponseData(final List<Map<String, Object>> results,
+                                                    final GoogleAnalyticsMultiQueryRequest multiQueryRequest) {
+
+        // the rows are keyed by the names in the report headers, the same names are summed up
+        final Map<String, Object> firstReport = results.stream()
+                .filter(result -> result.get("metrics") != null).findFirst().orElse(null);
+        final List<String> dimensionNames = firstReport != null ? (List<String>) firstReport.get("dimensions") :
+                multiQueryRequest.getQuery().getDimensions() != null ?
+                        multiQueryRequest.getQuery().getDimensions() : new ArrayList<>();
+        final List<String> metricNames = firstReport != null ? (List<String>) firstReport.get("metrics") :
+                multiQueryRequest.getQuery().getMetrics() != null ?
+                        multiQueryRequest.getQuery().getMetrics() : List.of(AnalyticsRequest.DEFAULT_METRICS);
+
+        final List<Map<String, String>> rows = new ArrayList<>();
+        for (final Map<String, Object> result : results) {
+            final List<Map<String, String>> targetRows = (List<Map<String, String>>) result.remove("rows");
+            result.remove("dimensions");
+            result.remove("metrics");
+            if (targetRows != null) {
+                for (final Map<String, String> row : targetRows) {
+                    row.put("siteId", (String) result.get("siteId"));
+                    row.put("propertyId", (String) result.get("propertyId"));
+                    rows.add(row);
+                }
             }
+        }
+
+        final Map<String, Object> responseData = new HashMap<>();
+        responseData.put("dimensions", dimensionNames);
+        responseData.put("metrics", metricNames);
+        responseData.put("results", results);
+        responseData.put("rows", rows);
 
-            // Execute query
-            final RunReportResponse gaResponse = analyticsService.query(analyticsRequest);
-
-            // Capture field names for flattened response
-            final List<String> dimensionNames = queryRequest.getDimensions();
-            final List<String> metricNames = queryRequest.getMetrics();
-
-            // Convert to JSON-friendly format
-            final Map<String, Object> responseData = new HashMap<>();
-            responseData.put("rowCount", gaResponse.getRowCount());
-
-            // Add metadata with dimension and metric names
-            responseData.put("dimensions", dimensionNames != null ? dimensionNames : new ArrayList<>());
-            responseData.put("metrics", metricNames != null ? metricNames : new ArrayList<>());
-
-            // Convert rows to flattened structure with named fields
-            final List<Map<String, String>> rows = gaResponse.getRowsList().stream()
-                    .map(row -> {
-                        final Map<String, String> rowData = new HashMap<>();
-
-                        // Map dimension values to names
-                        final List<DimensionValue> dimensionValues = row.getDimensionValuesList();
-                        if (dimensionNames != null) {
-                            for (int i = 0; i < dimensionNames.size() && i < dimensionValues.size(); i++) {
-                                rowData.put(dimensionNames.get(i), dimensionValues.get(i).getValue());
-                            }
-                        }
-
-                        // Map metric values to names
-                        final List<MetricValue> metricValues = row.getMetricValuesList();
-                        if (metricNames != null) {
-                            for (int i = 0; i < metricNames.size() && i < metricValues.size(); i++) {
-                                rowData.put(metricNames.get(i), metricValues.get(i).getValue());
-                            }
-                        }
-
-                        return rowData;
-                    })
+        if (Boolean.TRUE.equals(multiQueryRequest.getSum())) {
+
+            // different properties never share sessions or events, so these add up across properties
+            final List<String> additiveMetrics = metricNames.stream()
+                    .filter(metric -> ReportRollup.isAdditive(metric, List.of()))
                     .collect(Collectors.toList());
+            final Map<List<String>, BigDecimal[]> sums = new LinkedHashMap<>();
+            final BigDecimal[] totals = newSums(additiveMetrics.size());
+            for (final Map<String, String> row : rows) {
+
+                final List<String> key = dimensionNames.stream().map(row::get).collect(Collectors.toList());
+                final BigDecimal[] rowSums = sums.computeIfAbsent(key, k -> newSums(additiveMetrics.size()));
+                for (int i = 0; i < additiveMetrics.size(); i++) {
+                    final BigDecimal value = toNumber(row.get(additiveMetrics.get(i)));
+                    rowSums[i] = rowSums[i].add(value);
+                    totals[i] = totals[i].add(value);
+                }
+            }
 
-            responseData.put("rows", rows);
+            final List<Map<String, String>> summed = new ArrayList<>(sums.size());
+            sums.forEach((key, rowSums) -> {
+                final Map<String, String> row = new HashMap<>();
+                for (int i = 0; i < dimensionNames.size(); i++) {
+                    row.put(dimensionNames.get(i), key.get(i));
+                }
+                for (int i = 0; i < additiveMetrics.size(); i++) {
+                    row.put(additiveMetrics.get(i), rowSums[i].toPlainString());
+                }
+                summed.add(row);
+            });
 
-            // Add metadata
-            final Map<String, String> metadata = new HashMap<>();
-            if (gaResponse.getMetadata() != null) {
-                metadata.put("currencyCode", gaResponse.getMetadata().getCurrencyCode());
-                metadata.put("timeZone", gaResponse.getMetadata().getTimeZone());
+            final Map<String, String> totalsData = new HashMap<>();
+            for (int i = 0; i < additiveMetrics.size(); i++) {
+                totalsData.put(additiveMetrics.get(i), totals[i].toPlainString());
             }
-            responseData.put("metadata", metadata);
 
-            return Response.ok(responseData).build();
+            responseData.put("summedMetrics", additiveMetrics);
+            responseData.put("summed", summed);
+            responseData.put("totals", totalsData);
+        }
 
-        } catch (Exception e) {
-            Logger.error(this, "Error querying Google Analytics", e);
-            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
-                    .entity(Map.of("error", "Error querying Google Analytics"))
-                    .build();
+        return responseData;
+    }
+
+    private static BigDecimal[] newSums(final int size) {
+
+        final BigDecimal[] sums = new BigDecimal[size];
+        Arrays.fill(sums, BigDecimal.ZERO);
+        return sums;
+    }
+
+    private static BigDecimal toNumber(final String value) {
+
+        try {
+            return value != null ? new BigDecimal(value) : BigDecimal.ZERO;
+        } catch (NumberFormatException e) {
+            return BigDecimal.ZERO;
         }
     }
 
     /**
-     * Request DTO for Google Analytics query.
+     * Resolves the service of the current site and returns the encoded body of the query, gzipped if the client
+     * accepts it and the body is large enough. The body is taken out of the response cache of the site when the same
+     * report was encoded the same way before and the result is still fresh, without running the query, mapping the
+     * rows or serializing them; otherwise the query runs and its body is cached until the result goes stale. The key
+     * is the fingerprint of the report request plus the encoding, so the timeout of the query does not split it.
      */
-    public static class GoogleAnalyticsQueryRequest {
-        private String propertyId;
-        private String startDate;
-        private String endDate;
-        private List<String> metrics;
-        private List<String> dimensions;
-        private FiltersDTO filters;
-        private String sort;
-        private Integer maxResults;
+    private EncodedResponse executeEncodedQuery(final HttpServletRequest request,
+                                                final GoogleAnalyticsQueryRequest queryRequest) throws IOException {
 
-        // Getters and setters
-        public String getPropertyId() { return propertyId; }
-        public void setPropertyId(String propertyId) { this.propertyId = propertyId; }
+        final Host currentHost = WebAPILocator.getHostWebAPI().getHost(request);
+        final GoogleAnalyticsService analyticsService = this.serviceRegistry.getService(currentHost.getIdentifier());
+        final ResponseBytesCache responseCache = analyticsService.getResponseCache();
+        final AnalyticsRequest analyticsRequest = toAnalyticsRequest(queryRequest);
+        final boolean gzip = acceptsGzip(request);
+        final String fingerprint = analyticsService.fingerprintOf(analyticsRequest);
+        final String key = fingerprint + StringPool.COLON + (gzip ? "gzip" : "identity");
 
-        public String getStartDate() { return startDate; }
-        public void setStartDate(String startDate) { this.startDate = startDate; }
+        if (responseCache != null) {
 
-        public String getEndDate() { return endDate; }
-        public void setEndDate(String endDate) { this.endDate = endDate; }
+            final EncodedResponse cachedResponse;
+            try (QueryTrace.Stage stage = QueryTrace.stage("cache")) {
+                cachedResponse = responseCache.get(key);
+            }
+            if (cachedResponse != null) {
+                analyticsService.recordResponseHit(fingerprint, analyticsRequest.getPropertyId(),
+                        cachedResponse.getRows());
+                return cachedResponse;
+            }
+        }
 
-        public List<String> getMetrics() { return metrics; }
-        public void setMetrics(List<String> metrics) { this.metrics = metrics; }
+        final RunReportResponse gaResponse = analyticsService.query(analyticsRequest);
+        final String entityTag = Fingerprints.sha256Hex(gaResponse.toByteArray());
+        final long maxAge = getCacheControl(queryRequest, gaResponse).getMaxAge();
 
-        public List<String> getDimensions() { return dimensions; }
-        public void setDimensions(List<String> dimensions) { this.dimensions = dimensions; }
+        final Map<String, Object> responseData;
+        try (QueryTrace.Stage stage = QueryTrace.stage("mapping")) {
+            responseData = toResponseData(gaResponse);
+        }
 
-        public FiltersDTO getFilters() { return filters; }
-        public void setFilters(FiltersDTO filters) { this.filters = filters; }
+        byte[] body;
+        String contentEncoding = null;
+        try (QueryTrace.Stage stage = QueryTrace.stage("serialization")) {
+            body = GSON.toJson(responseData).getBytes(StandardCharsets.UTF_8);
 
-        public String getSort() { return sort; }
-        public void setSort(String sort) { this.sort = sort; }
+            // Small payloads are not worth the CPU of compressing them
+            if (gzip && body.length >= GZIP_MIN_BYTES) {
+                body = gzip(body);
+                contentEncoding = "gzip";
+            }
+        }
 
-        public Integer getMaxResults() { return maxResults; }
-        public void setMaxResults(Integer maxResults) { this.maxResults = maxResults; }
+        final EncodedResponse encodedResponse = new EncodedResponse(body, contentEncoding, entityTag,
+                gaResponse.getRowsCount(), System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(maxAge));
+        if (responseCache != null) {
+            responseCache.put(key, encodedResponse);
+        }
+        return encodedResponse;
+    }
+
+    /**
+     * Resolves the service of the current site and runs the pivot report on it.
+     */
+    private RunPivotReportResponse executePivotQuery(final HttpServletRequest request,
+                                                     final GoogleAnalyticsQueryRequest queryRequest) throws IOException {
+
+        final Host currentHost = WebAPILocator.getHostWebAPI().getHost(request);
+        final GoogleAnalyticsService analyticsService = this.serviceRegistry.getService(currentHost.getIdentifier());
+
+        final AnalyticsRequest analyticsRequest = toAnalyticsRequest(queryRequest);
+        for (final PivotDTO pivot : queryRequest.getPivots()) {
+            if (pivot.getFields() == null || pivot.getFields().isEmpty()) {
+                throw new InvalidAnalyticsRequestException("Every pivot needs at least one field");
+            }
+            analyticsRequest.addPivot(String.join(",", pivot.getFields()),
+                    pivot.getLimit() != null ? pivot.getLimit() : 0, pivot.getSort());
+        }
+
+        return analyticsService.queryPivot(analyticsRequest);
+    }
+
+    private AnalyticsRequest toAnalyticsRequest(final GoogleAnalyticsQueryRequest queryRequest) {
+        return toAnalyticsRequest(queryRequest, queryRequest.getPropertyId());
+    }
+
+    private AnalyticsRequest toAnalyticsRequest(final GoogleAnalyticsQueryRequest queryRequest,
+                                                final String propertyId) {
+
+        // Build analytics request
+        final AnalyticsRequest analyticsRequest =
+                new AnalyticsRequest(propertyId);
+
+        // Set date range
+        if (queryRequest.getStartDate() != null) {
+            analyticsRequest.setStartDate(queryRequest.getStartDate());
+        }
+        if (queryRequest.getEndDate() != null) {
+            analyticsRequest.setEndDate(queryRequest.getEndDate());
+        }
+
+        // Set metrics
+        if (queryRequest.getMetrics() != null && !queryRequest.getMetrics().isEmpty()) {
+            analyticsRequest.setMetrics(String.join(",", queryRequest.getMetrics()));
+        }
+
+        // Set dimensions
+        if (queryRequest.getDimensions() != null && !queryRequest.getDimensions().isEmpty()) {
+            analyticsRequest.setDimensions(String.join(",", queryRequest.getDimensions()));
+        }
+
+        // Set filters
+        if (queryRequest.getFilters() != null) {
+            if (queryRequest.getFilters().getDimension() != null) {
+                for (FilterRequestDTO filter : queryRequest.getFilters().getDimension()) {
+                    final FilterRequest filterRequest = new FilterRequest(
+                            filter.getField(),
+                            filter.getOperator(),
+                            filter.getValue()
+                    );
+                    analyticsRequest.getDimensionFilterList().add(filterRequest);
+                }
+            }
+
+            if (queryRequest.getFilters().getMetric() != null) {
+                for (FilterRequestDTO filter : queryRequest.getFilters().getMetric()) {
+                    final FilterRequest filterRequest = new FilterRequest(
+                            filter.getField(),
+                            filter.getOperator(),
+                            filter.getValue()
+                    );
+                    analyticsRequest.getMetricFilterList().add(filterRequest);
+                }
+            }
+        }
+
+        // Set sort
+        if (queryRequest.getSort() != null) {
+            analyticsRequest.setSort(queryRequest.getSort());
+        }
+
+        // Set max results
+        if (queryRequest.getMaxResults() != null && queryRequest.getMaxResults() > 0) {
+            analyticsRequest.setMaxResults(queryRequest.getMaxResults());
+        }
+
+        // Set timeout, it becomes the deadline of the call to Google Analytics
+        if (queryRequest.getTimeoutMs() != null && queryRequest.getTimeoutMs() > 0) {
+            analyticsRequest.setTimeoutMs(queryRequest.getTimeoutMs());
+        }
+
+        return analyticsRequest;
+    }
+
+    private Map<String, Object> toResponseData(final RunReportResponse gaResponse) {
+
+        // Field names come from the report itself, so the body only depends on the report (it is cached per report)
+        final List<String> dimensionNames = gaResponse.getDimensionHeadersList().stream()
+                .map(DimensionHeader::getName)
+                .collect(Collectors.toList());
+        final List<String> metricNames = gaResponse.getMetricHeadersList().stream()
+                .map(MetricHeader::getName)
+                .collect(Collectors.toList());
+
+        // Convert to JSON-friendly format
+        final Map<String, Object> responseData = new HashMap<>();
+        responseData.put("rowCount", gaResponse.getRowCount());
+
+        // Add metadata with dimension and metric names
+        responseData.put("dimensions", dimensionNames);
+        responseData.put("metrics", metricNames);
+
+        // Convert rows to flattened structure with named fields
+        final List<Map<String, String>> rows = gaResponse.getRowsList().stream()
+                .map(row -> {
+                    final Map<String, String> rowData = new HashMap<>();
+
+                    // Map dimension values to names
+                    final List<DimensionValue> dimensionValues = row.getDimensionValuesList();
+                    for (int i = 0; i < dimensionNames.size() && i < dimensionValues.size(); i++) {
+                        rowData.put(dimensionNames.get(i), dimensionValues.get(i).getValue());
+                    }
+
+                    // Map metric values to names
+                    final List<MetricValue> metricValues = row.getMetricValuesList();
+                    for (int i = 0; i < metricNames.size() && i < metricValues.size(); i++) {
+                        rowData.put(metricNames.get(i), metricValues.get(i).getValue());
+                    }
+
+                    return rowData;
+                })
+                .collect(Collectors.toList());
+
+        responseData.put("rows", rows);
+
+        // Add metadata
+        final Map<String, String> metadata = new HashMap<>();
+        if (gaResponse.getMetadata() != null) {
+            metadata.put("currencyCode", gaResponse.getMetadata().getCurrencyCode());
+            metadata.put("timeZone", gaResponse.getMetadata().getTimeZone());
+        }
+        responseData.put("metadata", metadata);
+
+        return responseData;
+    }
+
+    /**
+     * Converts the pivot report into a compact pivot table: the value combinations of each pivot are listed once and
+     * every row becomes a cell with the index of its combination in each pivot followed by its metric values.
+     */
+    private Map<String, Object> toPivotResponseData(final RunPivotReportResponse gaResponse,
+                                                    final GoogleAnalyticsQueryRequest queryRequest) {
+
+        // Position of each dimension in the rows
+        final Map<String, Integer> dimensionIndexes = new HashMap<>();
+        for (int i = 0; i < gaResponse.getDimensionHeadersCount(); i++) {
+            dimensionIndexes.put(gaResponse.getDimensionHeaders(i).getName(), i);
+        }
+
+        final List<Map<String, Object>> pivots = new ArrayList<>();
+        final List<int[]> pivotFieldIndexes = new ArrayList<>();
+        final List<Map<String, Integer>> pivotKeyIndexes = new ArrayList<>();
+        for (int i = 0; i < gaResponse.getPivotHeadersCount() && i < queryRequest.getPivots().size(); i++) {
+
+            final PivotHeader pivotHeader = gaResponse.getPivotHeaders(i);
+            final List<String> fields = queryRequest.getPivots().get(i).getFields();
+            final List<List<String>> keys = new ArrayList<>();
+            final Map<String, Integer> keyIndexes = new HashMap<>();
+            for (final PivotDimensionHeader dimensionHeader : pivotHeader.getPivotDimensionHeadersList()) {
+
+                final List<String> values = dimensionHeader.getDimensionValuesList().stream()
+                        .map(DimensionValue::getValue)
+                        .collect(Collectors.toList());
+                keyIndexes.put(String.join(PIVOT_KEY_SEPARATOR, values), keys.size());
+                keys.add(values);
+            }
+
+            pivots.add(Map.of("fields", fields, "keys", keys, "rowCount", pivotHeader.getRowCount()));
+            pivotFieldIndexes.add(fields.stream().mapToInt(field -> dimensionIndexes.getOrDefault(field, -1)).toArray());
+            pivotKeyIndexes.add(keyIndexes);
+        }
+
+        final List<List<Object>> cells = new ArrayList<>(gaResponse.getRowsCount());
+        for (final Row row : gaResponse.getRowsList()) {
+
+            final List<Object> cell = new ArrayList<>(pivots.size() + row.getMetricValuesCount());
+            for (int i = 0; i < pivots.size(); i++) {
+
+                final List<String> values = new ArrayList<>();
+                for (final int dimensionIndex : pivotFieldIndexes.get(i)) {
+                    values.add(dimensionIndex >= 0 ? row.getDimensionValues(dimensionIndex).getValue() : null);
+                }
+                cell.add(pivotKeyIndexes.get(i).getOrDefault(String.join(PIVOT_KEY_SEPARATOR, values), -1));
+            }
+            row.getMetricValuesList().forEach(metricValue -> cell.add(metricValue.getValue()));
+            cells.add(cell);
+        }
+
+        final Map<String, Object> responseData = new HashMap<>();
+        responseData.put("rowCount", gaResponse.getRowsCount());
+        responseData.put("pivots", pivots);
+        responseData.put("metrics", gaResponse.getMetricHeadersList().stream()
+                .map(MetricHeader::getName)
+                .collect(Collectors.toList()));
+        responseData.put("cells", cells);
+
+        final Map<String, String> metadata = new HashMap<>();
+        metadata.put("currencyCode", gaResponse.getMetadata().getCurrencyCode());
+        metadata.put("timeZone", gaResponse.getMetadata().getTimeZone());
+        responseData.put("metadata", metadata);
+
+        return responseData;
+    }
+
+    private Response toErrorResponse(final Exception e) {
+
+        if (e instanceof BulkheadFullException) {
+            Logger.warn(this, e.getMessage());
+            return Response.status(Response.Status.TOO_MANY_REQUESTS)
+                    .entity(Map.of("error", e.getMessage()))
+                    .build();
+        }
+
+        if (e instanceof InvalidAnalyticsRequestException) {
+            Logger.debug(this, e.getMessage());
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("error", e.getMessage()))
+                    .build();
+        }
+
+        if (e instanceof DeadlineExceededException) {
+            Logger.warn(this, "Google Analytics query timed out: " + e.getMessage());
+            return Response.status(Response.Status.GATEWAY_TIMEOUT)
+                    .entity(Map.of("error", "Google Analytics query timed out"))
+                    .build();
+        }
+
+        Logger.error(this, "Error querying Google Analytics", e);
+        return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                .entity(Map.of("error", "Error querying Google Analytics"))
+                .build();
+    }
+
+    /**
+     * Closed date ranges do not change anymore so they can be cached for long, ranges that include today (in the
+     * time zone of the property) are still changing. Ranges with relative dates are not cached past midnight since
+     * they point to other days after it.
+     */
+    private CacheControl getCacheControl(final GoogleAnalyticsQueryRequest queryRequest,
+                                         final RunReportResponse gaResponse) {
+
+        final AnalyticsRequest analyticsRequest = toAnalyticsRequest(queryRequest);
+        final long maxAge = ReportDates.maxAgeSeconds(analyticsRequest.getStartDate(), analyticsRequest.getEndDate(),
+                ReportDates.zoneOf(gaResponse.getMetadata().getTimeZone()), OPEN_RANGE_MAX_AGE, CLOSED_RANGE_MAX_AGE);
+
+        final CacheControl cacheControl = new CacheControl();
+        cacheControl.setNoTransform(false);
+        cacheControl.setPrivate(!PUBLIC_CACHE);
+        cacheControl.setMaxAge((int) maxAge);
+        return cacheControl;
+    }
+
+    private static List<String> splitList(final String value) {
+
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+
+        return Arrays.stream(value.split(StringPool.COMMA))
+                .map(String::trim)
+                .filter(item -> !item.isEmpty())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Sorts the values and drops the empty and repeated ones.
+     */
+    private static List<String> canonicalList(final List<String> values) {
+
+        if (values == null) {
+            return null;
+        }
+
+        final List<String> canonical = values.stream()
+                .filter(value -> value != null && !value.isEmpty())
+                .distinct()
+                .sorted()
+                .collect(Collectors.toList());
+        return canonical.isEmpty() ? null : canonical;
+    }
+
+    /**
+     * Query string of a GET query in canonical form: the parameters in the order they are added, the empty ones left
+     * out, and the values URL encoded except for the commas, colons and slashes of the lists, filters and paths.
+     */
+    private static final class CanonicalQueryBuilder {
+
+        private final StringBuilder query = new StringBuilder();
+
+        CanonicalQueryBuilder add(final String name, final String value) {
+
+            if (value != null && !value.isEmpty()) {
+                if (query.length() > 0) {
+                    query.append('&');
+                }
+                query.append(name).append('=').append(URLEncoder.encode(value, StandardCharsets.UTF_8)
+                        .replace("%2C", StringPool.COMMA)
+                        .replace("%3A", StringPool.COLON)
+                        .replace("%2F", "/"));
+            }
+            return this;
+        }
+
+        CanonicalQueryBuilder addAll(final String name, final List<String> values) {
+
+            if (values != null) {
+                values.forEach(value -> add(name, value));
+            }
+            return this;
+        }
+
+        String build() {
+            return query.toString();
+        }
+    }
+
+    /**
+     * Parses filters encoded as field:OPERATOR:value, the value may contain colons.
+     */
+    private static List<FilterRequestDTO> parseFilters(final List<String> encodedFilters) {
+
+        if (encodedFilters == null || encodedFilters.isEmpty()) {
+            return null;
+        }
+
+        final List<FilterRequestDTO> filters = new ArrayList<>();
+        for (final String encodedFilter : encodedFilters) {
+
+            final String [] parts = encodedFilter.split(StringPool.COLON, 3);
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Invalid filter: " + encodedFilter
+                        + ", expected field:OPERATOR:value");
+            }
+
+            final FilterRequestDTO filter = new FilterRequestDTO();
+            filter.setField(parts[0]);
+            filter.setOperator(parts[1]);
+            filter.setValue(parts[2]);
+            filters.add(filter);
+        }
+
+        return filters;
+    }
+
+    private static boolean acceptsGzip(final HttpServletRequest request) {
+
+        final String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        return acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+    }
+
+    private static byte[] gzip(final byte[] bytes) throws IOException {
+
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(bytes.length / 4);
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream)) {
+            gzipOutputStream.write(bytes);
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Starts a background export of the users of an audience of the current site. The users are written to CSV
+     * chunk files under the assets directory (assets/server/googleanalytics/exports/siteId/jobId), a page at a time,
+     * and an interrupted export resumes from its last page.
+     *
+     * Example request:
+     * POST /api/v1/googleanalytics/audience-exports
+     * {"propertyId": "123456789", "audienceId": "4567", "dimensions": ["deviceId", "userId"]}
+     *
+     * @param request HTTP request
+     * @param response HTTP response
+     * @param exportRequest audience and dimensions to export
+     * @return JSON response with the status of the new job
+     */
+    @POST
+    @Path("/audience-exports")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response startAudienceExport(
+            @Context final HttpServletRequest request,
+            @Context final HttpServletResponse response,
+            final AudienceExportRequestDTO exportRequest) {
+
+        try {
+            new WebResource.InitBuilder(webResource)
+                    .requiredBackendUser(true)
+                    .requiredFrontendUser(false)
+                    .requestAndResponse(request, response)
+                    .rejectWhenNoUser(true)
+                    .init();
+
+            if (exportRequest == null || exportRequest.getPropertyId() == null || exportRequest.getPropertyId().isEmpty()
+                    || exportRequest.getAudienceId() == null || exportRequest.getAudienceId().isEmpty()) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                        .entity(Map.of("error", "propertyId and audienceId are required"))
+                        .build();
+            }
+
+            final AudienceExportJob job = getAudienceExportJobs(request).start(exportRequest.getPropertyId(),
+                    exportRequest.getAudienceId(), exportRequest.getDimensions(),
+                    this.serviceRegistry.getAudienceExportExecutor());
+            return Response.status(Response.Status.ACCEPTED).entity(job.getStatus()).build();
+        } catch (Exception e) {
+            return toErrorResponse(e);
+        }
+    }
+
+    /**
+     * Returns the audience export jobs of the current site.
+     *
+     * Example request:
+     * GET /api/v1/googleanalytics/audience-exports
+     *
+     * @param request HTTP request
+     * @param response HTTP response
+     * @return JSON response with the status of every job
+     */
+    @GET
+    @Path("/audience-exports")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response audienceExports(
+            @Context final HttpServletRequest request,
+            @Context final HttpServletResponse response) {
+
+        try {
+            new WebResource.InitBuilder(webResource)
+                    .requiredBackendUser(true)
+                    .requiredFrontendUser(false)
+                    .requestAndResponse(request, response)
+                    .rejectWhenNoUser(true)
+                    .init();
+
+            final List<Map<String, Object>> jobs = getAudienceExportJobs(request).getJobs().stream()
+                    .map(AudienceExportJob::getStatus)
+                    .collect(Collectors.toList());
+            return Response.ok(Map.of("jobs", jobs)).build();
+        } catch (Exception e) {
+            return toErrorResponse(e);
+        }
+    }
+
+    /**
+     * Returns the status of an audience export job: state, rows written so far and chunk files.
+     *
+     * Example request:
+     * GET /api/v1/googleanalytics/audience-exports/{jobId}
+     *
+     * @param request HTTP request
+     * @param response HTTP response
+     * @param jobId id of the job
+     * @return JSON response with the status of the job
+     */
+    @GET
+    @Path("/audience-exports/{jobId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response audienceExport(
+            @Context final HttpServletRequest request,
+            @Context final HttpServletResponse response,
+            @PathParam("jobId") final String jobId) {
+
+        try {
+            new WebResource.InitBuilder(webResource)
+                    .requiredBackendUser(true)
+                    .requiredFrontendUser(false)
+                    .requestAndResponse(request, response)
+                    .rejectWhenNoUser(true)
+                    .init();
+
+            final AudienceExportJob job = getAudienceExportJobs(request).get(jobId);
+            return job != null ? Response.ok(job.getStatus()).build() :
+                    Response.status(Response.Status.NOT_FOUND).entity(Map.of("error", "Job not found")).build();
+        } catch (Exception e) {
+            return toErrorResponse(e);
+        }
+    }
+
+    /**
+     * Resumes a failed audience export job from its last checkpoint.
+     *
+     * Example request:
+     * POST /api/v1/googleanalytics/audience-exports/{jobId}/resume
+     *
+     * @param request HTTP request
+     * @param response HTTP response
+     * @param jobId id of the job
+     * @return JSON response with the status of the job
+     */
+    @POST
+    @Path("/audience-exports/{jobId}/resume")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response resumeAudienceExport(
+            @Context final HttpServletRequest request,
+            @Context final HttpServletResponse response,
+            @PathParam("jobId") final String jobId) {
+
+        try {
+            new WebResource.InitBuilder(webResource)
+                    .requiredBackendUser(true)
+                    .requiredFrontendUser(false)
+                    .requestAndResponse(request, response)
+                    .rejectWhenNoUser(true)
+                    .init();
+
+            final AudienceExportJob job = getAudienceExportJobs(request).resume(jobId,
+                    this.serviceRegistry.getAudienceExportExecutor());
+            return job != null ? Response.status(Response.Status.ACCEPTED).entity(job.getStatus()).build() :
+                    Response.status(Response.Status.NOT_FOUND).entity(Map.of("error", "Job not found")).build();
+        } catch (Exception e) {
+            return toErrorResponse(e);
+        }
+    }
+
+    private AudienceExportJobs getAudienceExportJobs(final HttpServletRequest request) {
+
+        final Host currentHost = WebAPILocator.getHostWebAPI().getHost(request);
+        return this.serviceRegistry.getService(currentHost.getIdentifier()).getAudienceExportJobs();
+    }
+
+    /**
+     * Returns the per-site query limits along with their accepted and rejected counters.
+     *
+     * Example request:
+     * GET /api/v1/googleanalytics/bulkheads
+     *
+     * @param request HTTP request
+     * @param response HTTP response
+     * @return JSON response with one entry per site
+     */
+    @GET
+    @Path("/bulkheads")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response bulkheads(
+            @Context final HttpServletRequest request,
+            @Context final HttpServletResponse response) {
+
+        new WebResource.InitBuilder(webResource)
+                .requiredBackendUser(true)
+                .requiredFrontendUser(false)
+                .requestAndResponse(request, response)
+                .rejectWhenNoUser(true)
+                .init();
+
+        final List<Map<String, Object>> stats = this.serviceRegistry.getServices().stream()
+                .map(service -> service.getBulkhead().getStats())
+                .collect(Collectors.toList());
+
+        return Response.ok(Map.of("bulkheads", stats)).build();
+    }
+
+    /**
+     * Returns the size and counters of the heap and off heap tiers of the report cache of every site.
+     *
+     * Example request:
+     * GET /api/v1/googleanalytics/caches
+     *
+     * @param request HTTP request
+     * @param response HTTP response
+     * @return JSON response with the stats of each site
+     */
+    @GET
+    @Path("/caches")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response caches(
+            @Context final HttpServletRequest request,
+            @Context final HttpServletResponse response) {
+
+        new WebResource.InitBuilder(webResource)
+                .requiredBackendUser(true)
+                .requiredFrontendUser(false)
+                .requestAndResponse(request, response)
+                .rejectWhenNoUser(true)
+                .init();
+
+        final List<Map<String, Object>> stats = this.serviceRegistry.getServices().stream()
+                .map(GoogleAnalyticsService::getCacheStats)
+                .collect(Collectors.toList());
+
+        return Response.ok(Map.of("caches", stats, "offHeap", GoogleAnalyticsService.getOffHeapStats())).build();
+    }
+
+    /**
+     * Request DTO for Google Analytics query.
+     */
+    public static class GoogleAnalyticsQueryRequest {
+        private String propertyId;
+        private String startDate;
+        private String endDate;
+        private List<String> metrics;
+        private List<String> dimensions;
+        private FiltersDTO filters;
+        private String sort;
+        private Integer maxResults;
+        private Long timeoutMs;
+        private List<PivotDTO> pivots;
+
+        // Getters and setters
+        public String getPropertyId() { return propertyId; }
+        public void setPropertyId(String propertyId) { this.propertyId = propertyId; }
+
+        public String getStartDate() { return startDate; }
+        public void setStartDate(String startDate) { this.startDate = startDate; }
+
+        public String getEndDate() { return endDate; }
+        public void setEndDate(String endDate) { this.endDate = endDate; }
+
+        public List<String> getMetrics() { return metrics; }
+        public void setMetrics(List<String> metrics) { this.metrics = metrics; }
+
+        public List<String> getDimensions() { return dimensions; }
+        public void setDimensions(List<String> dimensions) { this.dimensions = dimensions; }
+
+        public FiltersDTO getFilters() { return filters; }
+        public void setFilters(FiltersDTO filters) { this.filters = filters; }
+
+        public String getSort() { return sort; }
+        public void setSort(String sort) { this.sort = sort; }
+
+        public Integer getMaxResults() { return maxResults; }
+        public void setMaxResults(Integer maxResults) { this.maxResults = maxResults; }
+
+        public Long getTimeoutMs() { return timeoutMs; }
+        public void setTimeoutMs(Long timeoutMs) { this.timeoutMs = timeoutMs; }
+
+        public List<PivotDTO> getPivots() { return pivots; }
+        public void setPivots(List<PivotDTO> pivots) { this.pivots = pivots; }
+    }
+
+    /**
+     * Request DTO for a query run on several sites.
+     */
+    public static class GoogleAnalyticsMultiQueryRequest {
+        private List<TargetDTO> targets;
+        private GoogleAnalyticsQueryRequest query;
+        private Boolean sum;
+
+        public List<TargetDTO> getTargets() { return targets; }
+        public void setTargets(List<TargetDTO> targets) { this.targets = targets; }
+
+        public GoogleAnalyticsQueryRequest getQuery() { return query; }
+        public void setQuery(GoogleAnalyticsQueryRequest query) { this.query = query; }
+
+        public Boolean getSum() { return sum; }
+        public void setSum(Boolean sum) { this.sum = sum; }
+    }
+
+    /**
+     * Request DTO for a funnel report.
+     */
+    public static class GoogleAnalyticsFunnelRequest {
+        private String propertyId;
+        private String startDate;
+        private String endDate;
+        private List<FunnelStepDTO> steps;
+        private Boolean openFunnel;
+        private String breakdown;
+        private Long breakdownLimit;
+        private Long timeoutMs;
+
+        public String getPropertyId() { return propertyId; }
+        public void setPropertyId(String propertyId) { this.propertyId = propertyId; }
+
+        public String getStartDate() { return startDate; }
+        public void setStartDate(String startDate) { this.startDate = startDate; }
+
+        public String getEndDate() { return endDate; }
+        public void setEndDate(String endDate) { this.endDate = endDate; }
+
+        public List<FunnelStepDTO> getSteps() { return steps; }
+        public void setSteps(List<FunnelStepDTO> steps) { this.steps = steps; }
+
+        public Boolean getOpenFunnel() { return openFunnel; }
+        public void setOpenFunnel(Boolean openFunnel) { this.openFunnel = openFunnel; }
+
+        public String getBreakdown() { return breakdown; }
+        public void setBreakdown(String breakdown) { this.breakdown = breakdown; }
+
+        public Long getBreakdownLimit() { return breakdownLimit; }
+        public void setBreakdownLimit(Long breakdownLimit) { this.breakdownLimit = breakdownLimit; }
+
+        public Long getTimeoutMs() { return timeoutMs; }
+        public void setTimeoutMs(Long timeoutMs) { this.timeoutMs = timeoutMs; }
+    }
+
+    /**
+     * Funnel step DTO.
+     */
+    public static class FunnelStepDTO {
+        private String name;
+        private String eventName;
+        private List<FilterRequestDTO> filters;
+        private Boolean directlyFollowedBy;
+
+        public String getName() { return name; }
+        public void setName(String name) { this.name = name; }
+
+        public String getEventName() { return eventName; }
+        public void setEventName(String eventName) { this.eventName = eventName; }
+
+        public List<FilterRequestDTO> getFilters() { return filters; }
+        public void setFilters(List<FilterRequestDTO> filters) { this.filters = filters; }
+
+        public Boolean getDirectlyFollowedBy() { return directlyFollowedBy; }
+        public void setDirectlyFollowedBy(Boolean directlyFollowedBy) { this.directlyFollowedBy = directlyFollowedBy; }
+    }
+
+    /**
+     * Request DTO for an audience export.
+     */
+    public static class AudienceExportRequestDTO {
+        private String propertyId;
+        private String audienceId;
+        private List<String> dimensions;
+
+        public String getPropertyId() { return propertyId; }
+        public void setPropertyId(String propertyId) { this.propertyId = propertyId; }
+
+        public String getAudienceId() { return audienceId; }
+        public void setAudienceId(String audienceId) { this.audienceId = audienceId; }
+
+        public List<String> getDimensions() { return dimensions; }
+        public void setDimensions(List<String> dimensions) { this.dimensions = dimensions; }
+    }
+
+    /**
+     * Site and property DTO.
+     */
+    public static class TargetDTO {
+        private String siteId;
+        private String propertyId;
+
+        public String getSiteId() { return siteId; }
+        public void setSiteId(String siteId) { this.siteId = siteId; }
+
+        public String getPropertyId() { return propertyId; }
+        public void setPropertyId(String propertyId) { this.propertyId = propertyId; }
+    }
+
+    /**
+     * Pivot DTO.
+     */
+    public static class PivotDTO {
+        private List<String> fields;
+        private Long limit;
+        private String sort;
+
+        public List<String> getFields() { return fields; }
+        public void setFields(List<String> fields) { this.fields = fields; }
+
+        public Long getLimit() { return limit; }
+        public void setLimit(Long limit) { this.limit = limit; }
+
+        public String getSort() { return sort; }
+        public void setSort(String sort) { this.sort = sort; }
     }
 
     /**
@@ -0,0 +1,580 @@
+package com.dotcms.google.analytics.service;
+
+import com.dotmarketing.util.Logger;
+import com.google.analytics.data.v1beta.AudienceDimension;
+import com.google.analytics.data.v1beta.AudienceDimensionValue;
+import com.google.analytics.data.v1beta.AudienceExport;
+import com.google.analytics.data.v1beta.AudienceRow;
+import com.google.analytics.data.v1beta.QueryAudienceExportResponse;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Background export of the users of an audience to local files. The export is created in Google Analytics, polled
+ * until it is ready and then read page by page, each page is written to its own CSV chunk file and a checkpoint with
+ * the rows written so far is saved after every chunk. Only one page is held in memory at a time, and a job that was
+ * interrupted (restart, redeploy, error) resumes from the last checkpoint instead of starting over. The name of the
+ * operation that creates the export is checkpointed as soon as it is known, so a restart polls the same operation
+ * instead of creating another export.
+ *
+ * The job directory is shared by the nodes of a cluster, so a node claims the job with a lease (its server id and an
+ * expiration, written under a file lock) before running it and renews the lease while it runs. Nodes skip the jobs
+ * leased by another node, and a node that finds its lease taken over stops without touching the checkpoint.
+ *
+ * Files of a job: checkpoint.json, lease.json and chunk-000000.csv, chunk-000001.csv... each chunk starts with a
+ * header row.
+ */
+public class AudienceExportJob implements Runnable {
+
+    public static final String STATE_PENDING = "PENDING";
+    public static final String STATE_CREATING = "CREATING";
+    public static final String STATE_EXPORTING = "EXPORTING";
+    public static final String STATE_DONE = "DONE";
+    public static final String STATE_FAILED = "FAILED";
+
+    private static final String CHECKPOINT_FILE = "checkpoint.json";
+    private static final String LEASE_FILE = "lease.json";
+    private static final String CHUNK_FILE_FORMAT = "chunk-%06d.csv";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final Gson GSON = new Gson();
+
+    private final GoogleAnalyticsService service;
+    private final File directory;
+    private final int pageSize;
+    private final long pollMillis;
+    private final long leaseMillis;
+    private final String owner;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile Checkpoint checkpoint;
+    private long leaseExpiresAt;
+
+    private AudienceExportJob(final GoogleAnalyticsService service,
+                              final File directory,
+                              final Checkpoint checkpoint,
+                              final Settings settings) {
+        this.service = service;
+        this.directory = directory;
+        this.checkpoint = checkpoint;
+        this.pageSize = settings.pageSize;
+        this.pollMillis = settings.pollMillis;
+        this.leaseMillis = settings.leaseMillis;
+        this.owner = settings.owner;
+    }
+
+    /**
+     * Creates a new job and saves its first checkpoint.
+     * @param service GoogleAnalyticsService of the site
+     * @param directory File directory of the job, created if needed
+     * @param jobId String
+     * @param propertyId String GA property
+     * @param audience String resource name of the audience (properties/1234/audiences/5678)
+     * @param dimensions List of the audience dimensions to export (deviceId, userId)
+     * @param settings Settings of the jobs
+     * @return AudienceExportJob
+     */
+    static AudienceExportJob create(final GoogleAnalyticsService service,
+                                    final File directory,
+                                    final String jobId,
+                                    final String propertyId,
+                                    final String audience,
+                                    final List<String> dimensions,
+                                    final Settings settings) throws IOException {
+
+        final Checkpoint checkpoint = new Checkpoint();
+        checkpoint.jobId = jobId;
+        checkpoint.propertyId = propertyId;
+        checkpoint.audience = audience;
+        checkpoint.dimensions = new ArrayList<>(dimensions);
+        checkpoint.state = STATE_PENDING;
+        checkpoint.createdAt = System.currentTimeMillis();
+
+        Files.createDirectories(directory.toPath());
+        final AudienceExportJob job = new AudienceExportJob(service, directory, checkpoint, settings);
+        job.save(checkpoint);
+        return job;
+    }
+
+    /**
+     * Loads a job out of its directory.
+     * @return AudienceExportJob or null if the directory has no readable checkpoint
+     */
+    static AudienceExportJob load(final GoogleAnalyticsService service,
+                                  final File directory,
+                                  final Settings settings) {
+
+        final Checkpoint checkpoint = readCheckpoint(directory);
+        return checkpoint != null ? new AudienceExportJob(service, directory, checkpoint, settings) : null;
+    }
+
+    private static Checkpoint readCheckpoint(final File directory) {
+
+        final File checkpointFile = new File(directory, CHECKPOINT_FILE);
+        try {
+            final Checkpoint checkpoint = GSON.fromJson(
+                    new String(Files.readAllBytes(checkpointFile.toPath()), StandardCharsets.UTF_8), Checkpoint.class);
+            return checkpoint != null && checkpoint.jobId != null ? checkpoint : null;
+        } catch (Exception e) {
+            Logger.warn(AudienceExportJob.class, "Could not read the audience export checkpoint "
+                    + checkpointFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public String getJobId() {
+        return checkpoint.jobId;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * True if the job has not finished, it may be running, queued or waiting to be resumed.
+     * @return boolean
+     */
+    public boolean isPending() {
+        return !STATE_DONE.equals(checkpoint.state) && !STATE_FAILED.equals(checkpoint.state);
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Marks a failed job as pending again so it resumes from its last checkpoint when it runs.
+     */
+    void reset() throws IOException {
+
+        if (STATE_FAILED.equals(checkpoint.state)) {
+            final Checkpoint next = checkpoint.copy();
+            next.state = next.exportName != null ? STATE_EXPORTING : STATE_PENDING;
+            // an operation that failed is not polled again, the export is created anew
+            next.operationName = next.exportName != null ? next.operationName : null;
+            next.error = null;
+            save(next);
+        }
+    }
+
+    /**
+     * Returns the status of the job: state, rows written, chunk files and error.
+     * @return Map
+     */
+    public Map<String, Object> getStatus() {
+
+        // a job run by another node only moves on disk
+        final Checkpoint saved = running.get() ? null : readCheckpoint(directory);
+        final Checkpoint current = saved != null ? saved : this.checkpoint;
+        final Map<String, Object> status = new LinkedHashMap<>();
+        status.put("jobId", current.jobId);
+        status.put("propertyId", current.propertyId);
+        status.put("audience", current.audience);
+        status.put("dimensions", current.dimensions);
+        status.put("state", current.state);
+        status.put("running", running.get());
+        final Lease lease = readLease();
+        if (lease != null && lease.expiresAt > System.currentTimeMillis()) {
+            status.put("claimedBy", lease.owner);
+        }
+        status.put("rowCount", current.rowCount);
+        status.put("rowsWritten", current.rowsWritten);
+        status.put("chunks", current.chunks);
+        status.put("directory", directory.getAbsolutePath());
+        status.put("createdAt", current.createdAt);
+        status.put("updatedAt", current.updatedAt);
+        if (current.error != null) {
+            status.put("error", current.error);
+        }
+        return status;
+    }
+
+    @Override
+    public void run() {
+
+        if (!isPending() || !running.compareAndSet(false, true)) {
+            return;
+        }
+
+        boolean claimed = false;
+        try {
+
+            claimed = updateLease(true);
+            if (!claimed) {
+                Logger.debug(this, () -> "Audience export " + checkpoint.jobId + " is claimed by another node");
+                return;
+            }
+            // the node that held the job before may have gone further
+            final Checkpoint saved = readCheckpoint(directory);
+            if (saved != null) {
+                this.checkpoint = saved;
+            }
+            if (!isPending()) {
+                return;
+            }
+
+            waitUntilActive();
+            exportPages();
+        } catch (LeaseLostException e) {
+            // the job goes on in the node that took it over
+            Logger.warn(this, "Audience export " + checkpoint.jobId + " stopped: " + e.getMessage());
+            claimed = false;
+        } catch (InterruptedException | InterruptedIOException e) {
+            // the bundle is stopping, the job resumes from its checkpoint on the next start
+            Thread.currentThread().interrupt();
+            Logger.info(this, "Audience export " + checkpoint.jobId + " interrupted at row " + checkpoint.rowsWritten);
+        } catch (Exception e) {
+            Logger.warn(this, "Audience export " + checkpoint.jobId + " failed: " + e.getMessage());
+            final Checkpoint next = checkpoint.copy();
+            next.state = STATE_FAILED;
+            next.error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            try {
+                save(next);
+            } catch (IOException ioException) {
+                Logger.warn(this, "Could not save the audience export checkpoint: " + ioException.getMessage());
+            }
+        } finally {
+            if (claimed) {
+                releaseLease();
+            }
+            running.set(false);
+        }
+    }
+
+    /**
+     * Creates the export in Google Analytics if it was not created yet and waits until its rows can be read.
+     */
+    private void waitUntilActive() throws IOException, InterruptedException {
+
+        if (checkpoint.exportName == null) {
+
+            if (checkpoint.operationName == null) {
+                final AudienceExport.Builder exportBuilder =
+                        AudienceExport.newBuilder().setAudience(checkpoint.audience);
+                checkpoint.dimensions.forEach(dimension ->
+                        exportBuilder.addDimensions(AudienceDimension.newBuilder().setDimensionName(dimension)));
+                final String operationName = retryWhenBusy(() ->
+                        this.service.startAudienceExport(checkpoint.propertyId, exportBuilder.build()));
+
+                final Checkpoint next = checkpoint.copy();
+                next.operationName = operationName;
+                next.state = STATE_CREATING;
+                save(next);
+            }
+
+            AudienceExport audienceExport = null;
+            while (audienceExport == null) {
+                renewLease();
+                audienceExport = this.service.awaitAudienceExport(checkpoint.operationName, pollMillis);
+            }
+
+            final Checkpoint next = checkpoint.copy();
+            next.exportName = audienceExport.getName();
+            save(next);
+        }
+
+        while (true) {
+
+            final AudienceExport audienceExport = retryWhenBusy(() ->
+                    this.service.getAudienceExport(checkpoint.exportName));
+            if (audienceExport.getState() == AudienceExport.State.ACTIVE) {
+                final Checkpoint next = checkpoint.copy();
+                next.state = STATE_EXPORTING;
+                next.rowCount = audienceExport.getRowCount();
+                save(next);
+                return;
+            }
+            if (audienceExport.getState() == AudienceExport.State.FAILED) {
+                throw new IOException("Audience export failed in Google Analytics: "
+                        + audienceExport.getErrorMessage());
+            }
+
+            TimeUnit.MILLISECONDS.sleep(pollMillis);
+        }
+    }
+
+    /**
+     * Reads the pages after the last checkpoint, writing one chunk per page.
+     */
+    private void exportPages() throws IOException, InterruptedException {
+
+        // the row count may be missing until the first page comes back. A short page is not the end: Google Analytics
+        // caps the page size, so only an empty page or the row count tell the export is read through
+        while (checkpoint.rowCount <= 0 || checkpoint.rowsWritten < checkpoint.rowCount) {
+
+            final long offset = checkpoint.rowsWritten;
+            final QueryAudienceExportResponse page = retryWhenBusy(() ->
+                    this.service.queryAudienceExport(checkpoint.exportName, offset, pageSize));
+            if (page.getAudienceRowsCount() == 0) {
+                break;
+            }
+
+            // a chunk written before a crash but not checkpointed is just written again
+            final File chunkFile = new File(directory, String.format(CHUNK_FILE_FORMAT, checkpoint.chunks));
+            final File tempFile = new File(directory, chunkFile.getName() + TEMP_SUFFIX);
+            try (Writer writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+                writeCsvLine(writer, checkpoint.dimensions);
+                final List<String> values = new ArrayList<>(checkpoint.dimensions.size());
+                for (final AudienceRow row : page.getAudienceRowsList()) {
+                    values.clear();
+                    for (final AudienceDimensionValue value : row.getDimensionValuesList()) {
+                        values.add(value.getValue());
+                    }
+                    writeCsvLine(writer, values);
+                }
+            }
+            Files.move(tempFile.toPath(), chunkFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            final Checkpoint next = checkpoint.copy();
+            next.rowsWritten = offset + page.getAudienceRowsCount();
+            next.chunks = checkpoint.chunks + 1;
+            next.rowCount = page.hasRowCount() ? page.getRowCount() : checkpoint.rowCount;
+            save(next);
+
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+        }
+
+        final Checkpoint next = checkpoint.copy();
+        next.state = STATE_DONE;
+        save(next);
+        Logger.info(this, "Audience export " + checkpoint.jobId + " done: " + checkpoint.rowsWritten + " rows in "
+                + checkpoint.chunks + " chunks");
+    }
+
+    /**
+     * Background jobs give way to the queries of the visitors: when the site has no free slot they wait and retry.
+     */
+    private <T> T retryWhenBusy(final ExportCall<T> exportCall) throws IOException, InterruptedException {
+
+        while (true) {
+            renewLease();
+            try {
+                return exportCall.call();
+            } catch (BulkheadFullException e) {
+                TimeUnit.MILLISECONDS.sleep(pollMillis);
+            }
+        }
+    }
+
+    /**
+     * Renews the lease once half of it went by.
+     * @throws LeaseLostException if another node took the job over
+     */
+    private void renewLease() throws IOException {
+
+        if (System.currentTimeMillis() > leaseExpiresAt - leaseMillis / 2 && !updateLease(false)) {
+            throw new LeaseLostException("the job was claimed by another node");
+        }
+    }
+
+    /**
+     * Takes or renews the lease of the job, under a lock of the lease file so two nodes do not take it at once.
+     * @param claiming boolean true to take the lease, false to renew the one held
+     * @return boolean false if another node holds the lease (or, when claiming, is busy taking it)
+     */
+    private boolean updateLease(final boolean claiming) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(new File(directory, LEASE_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileLock lock = channel.tryLock()) {
+
+            if (lock == null) {
+                // another node is checking the lease, a renewal is tried again later
+                return !claiming;
+            }
+
+            final long now = System.currentTimeMillis();
+            final Lease current = readLease(channel);
+            if (current != null && !owner.equals(current.owner) && current.expiresAt > now) {
+                return false;
+            }
+
+            writeLease(channel, new Lease(owner, now + leaseMillis));
+            this.leaseExpiresAt = now + leaseMillis;
+            return true;
+        } catch (OverlappingFileLockException e) {
+            // another job object of this node is at it
+            return !claiming;
+        }
+    }
+
+    /**
+     * Expires the lease right away so other nodes can take the job, unless it is not held anymore.
+     */
+    private void releaseLease() {
+
+        try (FileChannel channel = FileChannel.open(new File(directory, LEASE_FILE).toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileLock lock = channel.lock()) {
+
+            final Lease current = readLease(channel);
+            if (current != null && owner.equals(current.owner)) {
+                writeLease(channel, new Lease(owner, 0));
+            }
+        } catch (IOException | OverlappingFileLockException e) {
+            Logger.debug(this, () -> "Could not release the audience export lease: " + e.getMessage());
+        }
+    }
+
+    private Lease readLease() {
+
+        try {
+            return GSON.fromJson(new String(Files.readAllBytes(new File(directory, LEASE_FILE).toPath()),
+                    StandardCharsets.UTF_8), Lease.class);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static Lease readLease(final FileChannel channel) throws IOException {
+
+        final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+            // reads the whole file
+        }
+        try {
+            return GSON.fromJson(new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8),
+                    Lease.class);
+        } catch (JsonSyntaxException e) {
+            return null;
+        }
+    }
+
+    private static void writeLease(final FileChannel channel, final Lease lease) throws IOException {
+
+        final ByteBuffer buffer = ByteBuffer.wrap(GSON.toJson(lease).getBytes(StandardCharsets.UTF_8));
+        channel.truncate(0);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, buffer.position());
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Writes the checkpoint to a temp file and moves it over the previous one, so a crash leaves either of them.
+     */
+    private synchronized void save(final Checkpoint next) throws IOException {
+
+        next.updatedAt = System.currentTimeMillis();
+        final File checkpointFile = new File(directory, CHECKPOINT_FILE);
+        final File tempFile = new File(directory, CHECKPOINT_FILE + TEMP_SUFFIX);
+        Files.write(tempFile.toPath(), GSON.toJson(next).getBytes(StandardCharsets.UTF_8));
+        Files.move(tempFile.toPath(), checkpointFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.checkpoint = next;
+    }
+
+    private static void writeCsvLine(final Writer writer, final List<String> values) throws IOException {
+
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            final String value = values.get(i) != null ? values.get(i) : "";
+            if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+                    || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+                writer.write('"');
+                writer.write(value.replace("\"", "\"\""));
+                writer.write('"');
+            } else {
+                writer.write(value);
+            }
+        }
+        writer.write('\n');
+    }
+
+    @FunctionalInterface
+    private interface ExportCall<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * Settings shared by the jobs of a site.
+     */
+    static class Settings {
+
+        private final int pageSize;
+        private final long pollMillis;
+        private final long leaseMillis;
+        private final String owner;
+
+        /**
+         * @param pageSize int rows read per page
+         * @param pollMillis long time between checks of an export that is still being created
+         * @param leaseMillis long time a claim on a job lasts without being renewed
+         * @param owner String id of this node in the leases
+         */
+        Settings(final int pageSize, final long pollMillis, final long leaseMillis, final String owner) {
+            this.pageSize = pageSize;
+            this.pollMillis = pollMillis;
+            this.leaseMillis = leaseMillis;
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * Claim of a node on the job, it may be taken over once it expired.
+     */
+    private static class Lease {
+
+        private String owner;
+        private long expiresAt;
+
+        private Lease(final String owner, final long expiresAt) {
+            this.owner = owner;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class LeaseLostException extends IOException {
+
+        private LeaseLostException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Persisted progress of a job, replaced as a whole on every save.
+     */
+    private static class Checkpoint {
+
+        private String jobId;
+        private String propertyId;
+        private String audience;
+        private List<String> dimensions;
+        private String operationName;
+        private String exportName;
+        private String state;
+        private long rowCount;
+        private long rowsWritten;
+        private int chunks;
+        private String error;
+        private long createdAt;
+        private long updatedAt;
+
+        private Checkpoint copy() {
+            return GSON.fromJson(GSON.toJson(this), Checkpoint.class);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.dotcms.google.analytics.service;
+
+import com.dotmarketing.util.Config;
+import com.dotmarketing.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The audience export jobs of a site. Each job lives in its own directory, so the jobs that did not finish are found
+ * again and resumed after a restart. The directory is shared by the nodes of a cluster: a job only runs on the node
+ * that holds its lease, the others skip it until the lease expires.
+ */
+public class AudienceExportJobs {
+
+    /**
+     * Rows read from Google Analytics per page, each page becomes a chunk file.
+     */
+    private static final int PAGE_SIZE =
+            Config.getIntProperty("GOOGLE_ANALYTICS_AUDIENCE_EXPORT_PAGE_SIZE", 10000);
+
+    /**
+     * Seconds between checks of an export that is still being created, and between retries when the site is busy.
+     */
+    private static final long POLL_SECONDS =
+            Config.getLongProperty("GOOGLE_ANALYTICS_AUDIENCE_EXPORT_POLL_SECONDS", 15);
+
+    /**
+     * Seconds a node keeps the claim on a job without renewing it, after that another node may take the job over.
+     */
+    private static final long LEASE_SECONDS =
+            Config.getLongProperty("GOOGLE_ANALYTICS_AUDIENCE_EXPORT_LEASE_SECONDS", 300);
+
+    /**
+     * Owner of the leases taken by this node when its server id can not be read.
+     */
+    private static final String ANONYMOUS_OWNER = UUID.randomUUID().toString();
+
+    private final GoogleAnalyticsService service;
+    private final File directory;
+    private final String owner;
+    private final Map<String, AudienceExportJob> jobs = new ConcurrentHashMap<>();
+    private volatile boolean loaded;
+
+    /**
+     * @param service GoogleAnalyticsService the jobs query through
+     * @param directory File directory holding one directory per job
+     * @param serverId String id of this node, the owner of the leases it takes
+     */
+    public AudienceExportJobs(final GoogleAnalyticsService service, final File directory, final String serverId) {
+        this.service = service;
+        this.directory = directory;
+        this.owner = serverId != null ? serverId : ANONYMOUS_OWNER;
+    }
+
+    /**
+     * Creates a job that exports the audience and queues it.
+     * @param propertyId String GA property
+     * @param audienceId String audience id or resource name (properties/1234/audiences/5678)
+     * @param dimensions List of the audience dimensions to export
+     * @param executor ExecutorService the job runs on
+     * @return AudienceExportJob
+     */
+    public AudienceExportJob start(final String propertyId,
+                                   final String audienceId,
+                                   final List<String> dimensions,
+                                   final ExecutorService executor) throws IOException {
+
+        if (dimensions == null || dimensions.isEmpty()) {
+            throw new InvalidAnalyticsRequestException("An audience export needs at least one dimension");
+        }
+
+        final String jobId = UUID.randomUUID().toString();
+        final String audience = audienceId.startsWith("properties/") ?
+                audienceId : "properties/" + propertyId + "/audiences/" + audienceId;
+        final AudienceExportJob job = AudienceExportJob.create(this.service, new File(this.directory, jobId), jobId,
+                propertyId, audience, dimensions, newSettings());
+        ensureLoaded();
+        this.jobs.put(jobId, job);
+        submit(job, executor);
+        return job;
+    }
+
+    /**
+     * Queues a failed or interrupted job again, it continues from its last checkpoint.
+     * @param jobId String
+     * @param executor ExecutorService the job runs on
+     * @return AudienceExportJob or null if there is no such job
+     */
+    public AudienceExportJob resume(final String jobId, final ExecutorService executor) throws IOException {
+
+        final AudienceExportJob job = get(jobId);
+        if (job != null) {
+            job.reset();
+            submit(job, executor);
+        }
+        return job;
+    }
+
+    /**
+     * Queues every job that did not finish, called when the service of the site is created.
+     * @param executor ExecutorService the jobs run on
+     */
+    public void resumePending(final ExecutorService executor) {
+
+        ensureLoaded();
+        this.jobs.values().stream()
+                .filter(AudienceExportJob::isPending)
+                .forEach(job -> submit(job, executor));
+    }
+
+    public AudienceExportJob get(final String jobId) {
+
+        ensureLoaded();
+        return this.jobs.get(jobId);
+    }
+
+    public Collection<AudienceExportJob> getJobs() {
+
+        ensureLoaded();
+        return this.jobs.values();
+    }
+
+    private void submit(final AudienceExportJob job, final ExecutorService executor) {
+
+        if (job.isPending() && !job.isRunning()) {
+            try {
+                executor.execute(job);
+            } catch (RejectedExecutionException e) {
+                Logger.warn(this, "Could not queue the audience export " + job.getJobId() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private AudienceExportJob.Settings newSettings() {
+
+        final long pollMillis = TimeUnit.SECONDS.toMillis(POLL_SECONDS);
+        // the lease is renewed at least once per poll, it has to outlast a few of them
+        return new AudienceExportJob.Settings(Math.max(1, PAGE_SIZE), pollMillis,
+                Math.max(TimeUnit.SECONDS.toMillis(LEASE_SECONDS), 4 * pollMillis), this.owner);
+    }
+
+    private void ensureLoaded() {
+
+        if (this.loaded) {
+            return;
+        }
+
+        synchronized (this) {
+            if (!this.loaded) {
+                final File[] jobDirectories = this.directory.listFiles(File::isDirectory);
+                if (jobDirectories != null) {
+                    for (final File jobDirectory : jobDirectories) {
+                        final AudienceExportJob job = AudienceExportJob.load(this.service, jobDirectory,
+                                newSettings());
+                        if (job != null) {
+                            this.jobs.putIfAbsent(job.getJobId(), job);
+                        }
+                    }
+                }
+                this.loaded = true;
+            }
+        }
+    }
+}
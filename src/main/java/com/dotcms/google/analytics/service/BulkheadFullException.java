@@ -0,0 +1,11 @@
+package com.dotcms.google.analytics.service;
+
+/**
+ * Thrown when a site has no free slot to run a Google Analytics query and its waiting queue is full
+ * (or the wait for a slot ran out).
+ */
+public class BulkheadFullException extends RuntimeException {
+    public BulkheadFullException(final String message) {
+        super(message);
+    }
+}
@@ -1,31 +1,106 @@
 package com.dotcms.google.analytics.service;
 
+import com.dotcms.google.analytics.app.AnalyticsApp;
+import com.dotcms.google.analytics.app.TransportConfig;
+import com.dotcms.google.analytics.cache.CachedReport;
+import com.dotcms.google.analytics.cache.DatePartitionCache;
+import com.dotcms.google.analytics.cache.MessageCache;
+import com.dotcms.google.analytics.cache.OffHeapArena;
+import com.dotcms.google.analytics.cache.ReportCache;
+import com.dotcms.google.analytics.cache.ReportRollup;
+import com.dotcms.google.analytics.cache.ReportSegmentStore;
+import com.dotcms.google.analytics.cache.ResponseBytesCache;
 import com.dotcms.google.analytics.model.AnalyticsRequest;
 import com.dotcms.google.analytics.model.FilterRequest;
+import com.dotcms.google.analytics.model.FunnelRequest;
+import com.dotcms.google.analytics.model.FunnelStepRequest;
+import com.dotcms.google.analytics.model.PivotRequest;
+import com.dotcms.google.analytics.util.Fingerprints;
+import com.dotcms.google.analytics.util.ReportDates;
+import com.dotmarketing.business.APILocator;
+import com.dotmarketing.util.Config;
+import com.dotmarketing.util.ConfigUtils;
 import com.dotmarketing.util.Logger;
+import com.google.analytics.data.v1alpha.AlphaAnalyticsDataClient;
+import com.google.analytics.data.v1alpha.AlphaAnalyticsDataSettings;
+import com.google.analytics.data.v1alpha.Funnel;
+import com.google.analytics.data.v1alpha.FunnelBreakdown;
+import com.google.analytics.data.v1alpha.FunnelEventFilter;
+import com.google.analytics.data.v1alpha.FunnelFieldFilter;
+import com.google.analytics.data.v1alpha.FunnelFilterExpression;
+import com.google.analytics.data.v1alpha.FunnelFilterExpressionList;
+import com.google.analytics.data.v1alpha.FunnelStep;
+import com.google.analytics.data.v1alpha.RunFunnelReportRequest;
+import com.google.analytics.data.v1alpha.RunFunnelReportResponse;
+import com.google.analytics.data.v1alpha.StringFilter;
+import com.google.analytics.data.v1beta.AudienceExport;
+import com.google.analytics.data.v1beta.AudienceExportMetadata;
 import com.google.analytics.data.v1beta.BetaAnalyticsDataClient;
 import com.google.analytics.data.v1beta.BetaAnalyticsDataSettings;
+import com.google.analytics.data.v1beta.CreateAudienceExportRequest;
 import com.google.analytics.data.v1beta.DateRange;
 import com.google.analytics.data.v1beta.Dimension;
 import com.google.analytics.data.v1beta.Filter;
 import com.google.analytics.data.v1beta.FilterExpression;
 import com.google.analytics.data.v1beta.FilterExpressionList;
+import com.google.analytics.data.v1beta.GetAudienceExportRequest;
 import com.google.analytics.data.v1beta.Metric;
+import com.google.analytics.data.v1beta.MetricType;
+import com.google.analytics.data.v1beta.NumericValue;
 import com.google.analytics.data.v1beta.OrderBy;
+import com.google.analytics.data.v1beta.PropertyQuota;
+import com.google.analytics.data.v1beta.Pivot;
+import com.google.analytics.data.v1beta.QueryAudienceExportRequest;
+import com.google.analytics.data.v1beta.QueryAudienceExportResponse;
+import com.google.analytics.data.v1beta.RunPivotReportRequest;
+import com.google.analytics.data.v1beta.RunPivotReportResponse;
 import com.google.analytics.data.v1beta.RunReportRequest;
 import com.google.analytics.data.v1beta.RunReportResponse;
+import com.google.api.core.ApiFuture;
 import com.google.api.gax.core.CredentialsProvider;
 import com.google.api.gax.core.FixedCredentialsProvider;
+import com.google.api.gax.grpc.ChannelPoolSettings;
+import com.google.api.gax.grpc.GrpcCallContext;
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.grpc.InstantiatingGrpcChannelProvider;
+import com.google.api.gax.httpjson.HttpJsonCallContext;
+import com.google.api.gax.longrunning.OperationFuture;
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.api.gax.rpc.DeadlineExceededException;
+import com.google.api.gax.rpc.UnaryCallable;
 import com.google.auth.oauth2.GoogleCredentials;
+import com.google.protobuf.MessageLite;
 import com.liferay.util.StringPool;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import org.threeten.bp.Duration;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /**
  * This class provides a service to interact with Google Analytics.
@@ -33,10 +108,202 @@ import java.util.Objects;
  */
 public class GoogleAnalyticsService {
 
-    private final BetaAnalyticsDataSettings betaAnalyticsDataSettings;
+    /**
+     * Max time in milliseconds a query waits for a free slot of its site before it is rejected.
+     */
+    private static final long BULKHEAD_MAX_WAIT_MILLIS =
+            Config.getLongProperty("GOOGLE_ANALYTICS_BULKHEAD_MAX_WAIT_MS", 10000);
+
+    /**
+     * Max timeout in milliseconds a caller may ask for a single query.
+     */
+    private static final long MAX_TIMEOUT_MILLIS =
+            Config.getLongProperty("GOOGLE_ANALYTICS_MAX_TIMEOUT_MS", 60000);
+
+    /**
+     * Time in seconds a report whose date range includes today is cached.
+     */
+    private static final long CACHE_OPEN_RANGE_TTL_SECONDS =
+            Config.getLongProperty("GOOGLE_ANALYTICS_REPORT_CACHE_OPEN_RANGE_TTL", 300);
+
+    /**
+     * Time in seconds a report whose date range is closed is cached.
+     */
+    private static final long CACHE_CLOSED_RANGE_TTL_SECONDS =
+            Config.getLongProperty("GOOGLE_ANALYTICS_REPORT_CACHE_CLOSED_RANGE_TTL", 86400);
+
+    /**
+     * Max number of reports cached per site, when the site does not bound its cache by size.
+     */
+    private static final long CACHE_MAX_ENTRIES =
+            Config.getLongProperty("GOOGLE_ANALYTICS_REPORT_CACHE_MAX_ENTRIES", 500);
+
+    /**
+     * Max number of value combinations of a pivot that does not set its own limit.
+     */
+    private static final long DEFAULT_PIVOT_LIMIT =
+            Config.getLongProperty("GOOGLE_ANALYTICS_DEFAULT_PIVOT_LIMIT", 100);
+
+    /**
+     * Reports are refreshed in the background when they expire within this many seconds.
+     */
+    private static final long REFRESH_AHEAD_WINDOW_SECONDS =
+            Config.getLongProperty("GOOGLE_ANALYTICS_REFRESH_AHEAD_WINDOW_SECONDS", 60);
+
+    /**
+     * Min number of recent requests (up to 15) for a report to be refreshed in the background.
+     */
+    private static final int REFRESH_AHEAD_MIN_FREQUENCY =
+            Config.getIntProperty("GOOGLE_ANALYTICS_REFRESH_AHEAD_MIN_HITS", 3);
+
+    /**
+     * Max number of reports refreshed per site on each round.
+     */
+    private static final int REFRESH_AHEAD_MAX_REPORTS =
+            Config.getIntProperty("GOOGLE_ANALYTICS_REFRESH_AHEAD_MAX_REPORTS", 10);
+
+    /**
+     * Share of the hourly tokens of a property background refreshes may spend.
+     */
+    private static final double REFRESH_AHEAD_QUOTA_SHARE =
+            Config.getFloatProperty("GOOGLE_ANALYTICS_REFRESH_AHEAD_QUOTA_SHARE", 0.1f);
+
+    /**
+     * Persists the cached reports under the assets directory so they survive restarts and redeploys.
+     */
+    private static final boolean DISK_CACHE_ENABLED =
+            Config.getBooleanProperty("GOOGLE_ANALYTICS_DISK_CACHE_ENABLED", true);
+
+    /**
+     * Size in MB after which a new segment file is started.
+     */
+    private static final long DISK_CACHE_SEGMENT_MB =
+            Config.getLongProperty("GOOGLE_ANALYTICS_DISK_CACHE_SEGMENT_MB", 16);
+
+    /**
+     * Max number of segment files kept per site, the oldest is deleted.
+     */
+    private static final int DISK_CACHE_MAX_SEGMENTS =
+            Config.getIntProperty("GOOGLE_ANALYTICS_DISK_CACHE_MAX_SEGMENTS", 8);
+
+    /**
+     * Max size in MB of the large reports kept serialized off heap per site, 0 keeps every report on the heap.
+     */
+    private static final long OFF_HEAP_CACHE_MB =
+            Config.getLongProperty("GOOGLE_ANALYTICS_OFF_HEAP_CACHE_MB", 0);
+
+    /**
+     * Serialized size in KB from which a report goes to the off heap tier.
+     */
+    private static final long OFF_HEAP_MIN_KB =
+            Config.getLongProperty("GOOGLE_ANALYTICS_OFF_HEAP_MIN_KB", 256);
+
+    /**
+     * Max size in MB of the direct memory taken by the off heap tiers of all the sites together.
+     */
+    private static final long OFF_HEAP_TOTAL_MB =
+            Config.getLongProperty("GOOGLE_ANALYTICS_OFF_HEAP_TOTAL_MB", 256);
+
+    /**
+     * Direct memory shared by the off heap tiers of every site, so their sum stays within the total.
+     */
+    private static final OffHeapArena OFF_HEAP_ARENA =
+            OFF_HEAP_CACHE_MB > 0 && OFF_HEAP_TOTAL_MB > 0 ? new OffHeapArena(OFF_HEAP_TOTAL_MB * 1024 * 1024) : null;
+
+    /**
+     * Max size in MB of the encoded REST responses cached per site, 0 turns the response cache off.
+     */
+    private static final long RESPONSE_CACHE_MB =
+            Config.getLongProperty("GOOGLE_ANALYTICS_RESPONSE_CACHE_MB", 16);
+
+    /**
+     * Splits day-granular reports into cached days, so rolling date ranges only fetch the days not cached yet.
+     */
+    private static final boolean PARTITION_CACHE_ENABLED =
+            Config.getBooleanProperty("GOOGLE_ANALYTICS_PARTITION_CACHE_ENABLED", true);
+
+    /**
+     * Max size in MB of the cached days per site.
+     */
+    private static final long PARTITION_CACHE_MB =
+            Config.getLongProperty("GOOGLE_ANALYTICS_PARTITION_CACHE_MB", 64);
+
+    /**
+     * Date ranges longer than this many days are not split into days.
+     */
+    private static final long PARTITION_MAX_DAYS =
+            Config.getLongProperty("GOOGLE_ANALYTICS_PARTITION_MAX_DAYS", 400);
+
+    /**
+     * Days before today whose data may still change (late hits, processing), they are fetched along with today and
+     * only the days before them are cached for good.
+     */
+    private static final long PARTITION_SETTLE_DAYS =
+            Math.max(0, Config.getLongProperty("GOOGLE_ANALYTICS_PARTITION_SETTLE_DAYS", 3));
+
+    /**
+     * Max rows fetched at once for the missing days, the max Google Analytics returns in a single call.
+     */
+    private static final long PARTITION_FETCH_LIMIT = 250000;
+
+    /**
+     * Max pages of {@link #PARTITION_FETCH_LIMIT} rows fetched for the missing days, a bigger fetch is left to a single
+     * call instead of being paged on the request thread.
+     */
+    private static final long PARTITION_FETCH_MAX_PAGES = 4;
+
+    private static final QueryLog QUERY_LOG = QueryLog.getInstance();
+
+    private final ReportCache reportCache;
+    private final RefreshBudget refreshBudget = new RefreshBudget(REFRESH_AHEAD_QUOTA_SHARE);
+    private final MessageCache<RunPivotReportResponse> pivotCache = new MessageCache<>(CACHE_MAX_ENTRIES);
+    private final MessageCache<RunFunnelReportResponse> funnelCache = new MessageCache<>(CACHE_MAX_ENTRIES);
+    private final ResponseBytesCache responseCache =
+            RESPONSE_CACHE_MB > 0 ? new ResponseBytesCache(RESPONSE_CACHE_MB * 1024 * 1024) : null;
+    private final DatePartitionCache partitionCache = new DatePartitionCache(PARTITION_CACHE_MB * 1024 * 1024);
+    private final Map<String, ZoneId> zoneByProperty = new ConcurrentHashMap<>();
+    private final SiteBulkhead bulkhead;
+    private final TransportConfig transportConfig;
+    private final BetaAnalyticsDataClient analyticsDataClient;
+    private final CredentialsProvider credentialsProvider;
+    private volatile AlphaAnalyticsDataClient alphaAnalyticsDataClient;
+    private final MetadataCatalog metadataCatalog;
+    private final AudienceExportJobs audienceExportJobs;
+
     public GoogleAnalyticsService(final char [] jsonKeyFile) throws Exception {
+        this(jsonKeyFile, new SiteBulkhead(StringPool.BLANK,
+                AnalyticsApp.DEFAULT_MAX_CONCURRENT_QUERIES, AnalyticsApp.DEFAULT_MAX_QUEUED_QUERIES),
+                TransportConfig.DEFAULT);
+    }
+
+    public GoogleAnalyticsService(final String siteId, final AnalyticsApp analyticsApp) throws Exception {
+        this(analyticsApp.getJsonKeyFile(), new SiteBulkhead(siteId,
+                analyticsApp.getMaxConcurrentQueries(), analyticsApp.getMaxQueuedQueries()),
+                analyticsApp.getTransportConfig(), analyticsApp.getReportCacheMaxMb());
+    }
+
+    public GoogleAnalyticsService(final char [] jsonKeyFile,
+                                  final SiteBulkhead bulkhead,
+                                  final TransportConfig transportConfig) throws Exception {
+        this(jsonKeyFile, bulkhead, transportConfig, AnalyticsApp.DEFAULT_REPORT_CACHE_MAX_MB);
+    }
+
+    /**
+     * @param reportCacheMaxMb int max MB of heap taken by the cached reports, 0 to bound them by
+     *                         GOOGLE_ANALYTICS_REPORT_CACHE_MAX_ENTRIES instead
+     */
+    public GoogleAnalyticsService(final char [] jsonKeyFile,
+                                  final SiteBulkhead bulkhead,
+                                  final TransportConfig transportConfig,
+                                  final int reportCacheMaxMb) throws Exception {
 
         Logger.debug(this, "Creating GoogleAnalyticsService ");
+        this.bulkhead = bulkhead;
+        this.transportConfig = transportConfig;
+        this.reportCache = new ReportCache(CACHE_MAX_ENTRIES, Math.max(0, reportCacheMaxMb) * 1024L * 1024,
+                newDiskStore(bulkhead.getSiteId()), OFF_HEAP_ARENA, OFF_HEAP_CACHE_MB * 1024 * 1024,
+                OFF_HEAP_MIN_KB * 1024);
+        this.audienceExportJobs = newAudienceExportJobs(bulkhead.getSiteId());
         try {
 
             Logger.debug(this, "Creating inputStream ");
@@ -44,13 +311,14 @@ public class GoogleAnalyticsService {
             Logger.debug(this, "Creating googleCredentials ");
             final GoogleCredentials googleCredentials = GoogleCredentials.fromStream(inputStream);
             Logger.debug(this, "Creating credentialsProvider ");
-            final CredentialsProvider credentialsProvider = FixedCredentialsProvider.create(googleCredentials);
-            Logger.debug(this, "Creating BetaAnalyticsDataSettings ");
-            this.betaAnalyticsDataSettings =
-                    BetaAnalyticsDataSettings.newBuilder()
-                            .setCredentialsProvider(credentialsProvider) // this closes the input stream
-                            .build();
+            this.credentialsProvider = FixedCredentialsProvider.create(googleCredentials);
+            Logger.debug(this, "Creating BetaAnalyticsDataSettings, transport: " + transportConfig.getTransport());
+            final BetaAnalyticsDataSettings betaAnalyticsDataSettings =
+                    buildSettings(credentialsProvider, transportConfig); // this closes the input stream
             Logger.debug(this, "Created betaAnalyticsDataSettings ");
+            // the client keeps the channels open, so it is created once and reused by all the queries
+            this.analyticsDataClient = BetaAnalyticsDataClient.create(betaAnalyticsDataSettings);
+            this.metadataCatalog = new MetadataCatalog(this.analyticsDataClient);
         } catch (Throwable e) {
 
             Logger.error(this, "Error creating GoogleAnalyticsService", e);
@@ -61,95 +329,1086 @@ public class GoogleAnalyticsService {
     }
 
     /**
-     * Runs a query against the Google Analytics API.
+     * The reports of each site go to their own directory under the assets root, the same root the app yml is
+     * installed to. The assets root is shared by the nodes of a cluster, so each node keeps its own directory (named
+     * after its server id) and never reads, truncates or deletes the segments of another node. Services not bound to a
+     * site, or on a node without a server id, do not persist.
+     */
+    private static ReportSegmentStore newDiskStore(final String siteId) {
+
+        if (!DISK_CACHE_ENABLED || siteId == null || siteId.isEmpty()) {
+            return null;
+        }
+
+        final String serverId = getServerId();
+        if (serverId == null) {
+            return null;
+        }
+
+        final File directory = new File(ConfigUtils.getAbsoluteAssetsRootPath() + File.separator + "server"
+                + File.separator + "googleanalytics" + File.separator + "reports" + File.separator + serverId
+                + File.separator + siteId);
+        return new ReportSegmentStore(directory, DISK_CACHE_SEGMENT_MB * 1024 * 1024, DISK_CACHE_MAX_SEGMENTS);
+    }
+
+    /**
+     * Id of this node in the cluster.
+     * @return String or null if it can not be read
+     */
+    static String getServerId() {
+
+        try {
+            final String serverId = APILocator.getServerAPI().readServerId();
+            return serverId != null && !serverId.isEmpty() ? serverId : null;
+        } catch (Exception e) {
+            Logger.warn(GoogleAnalyticsService.class, "Could not read the server id: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Audience exports are written under the assets root too, next to the reports. The nodes of a cluster share them,
+     * each job is claimed by the node running it. Services not bound to a site do not export.
+     */
+    private AudienceExportJobs newAudienceExportJobs(final String siteId) {
+
+        if (siteId == null || siteId.isEmpty()) {
+            return null;
+        }
+
+        return new AudienceExportJobs(this, new File(ConfigUtils.getAbsoluteAssetsRootPath() + File.separator
+                + "server" + File.separator + "googleanalytics" + File.separator + "exports" + File.separator + siteId),
+                getServerId());
+    }
+
+    /**
+     * Builds the client settings for the transport selected in the app, applying the channel settings that
+     * were configured, the rest keep the gax defaults.
+     */
+    private static BetaAnalyticsDataSettings buildSettings(final CredentialsProvider credentialsProvider,
+                                                           final TransportConfig transportConfig) throws IOException {
+        return buildSettings(credentialsProvider, transportConfig, null);
+    }
+
+    /**
+     * Same as {@link #buildSettings(CredentialsProvider, TransportConfig)} against another endpoint, such as the
+     * local fake server of the transport benchmark. An endpoint starting with http:// is talked to in plain text.
+     * @param endpoint String host:port, or http://host:port for plain text, null for the Google Analytics endpoint
+     */
+    static BetaAnalyticsDataSettings buildSettings(final CredentialsProvider credentialsProvider,
+                                                   final TransportConfig transportConfig,
+                                                   final String endpoint) throws IOException {
+
+        final boolean plainText = endpoint != null && endpoint.startsWith("http://");
+        final BetaAnalyticsDataSettings.Builder settingsBuilder;
+        if (transportConfig.getTransport() == TransportConfig.Transport.HTTP_JSON) {
+
+            settingsBuilder = BetaAnalyticsDataSettings.newHttpJsonBuilder();
+            if (endpoint != null) {
+                settingsBuilder.setEndpoint(endpoint);
+            }
+        } else {
+
+            final InstantiatingGrpcChannelProvider.Builder channelProviderBuilder =
+                    applyChannelSettings(BetaAnalyticsDataSettings.defaultGrpcTransportProviderBuilder(),
+                            transportConfig);
+            if (endpoint != null) {
+                channelProviderBuilder.setEndpoint(endpoint.replace("http://", StringPool.BLANK));
+            }
+            if (plainText) {
+                channelProviderBuilder.setChannelConfigurator(ManagedChannelBuilder::usePlaintext);
+            }
+            settingsBuilder = BetaAnalyticsDataSettings.newBuilder()
+                    .setTransportChannelProvider(channelProviderBuilder.build());
+        }
+
+        if (transportConfig.getExecutorThreads() > 0) {
+            settingsBuilder.setBackgroundExecutorProvider(BetaAnalyticsDataSettings.defaultExecutorProviderBuilder()
+                    .setExecutorThreadCount(transportConfig.getExecutorThreads())
+                    .build());
+        }
+
+        return settingsBuilder.setCredentialsProvider(credentialsProvider).build();
+    }
+
+    /**
+     * Same as {@link #buildSettings(CredentialsProvider, TransportConfig)} for the v1alpha client, which runs the
+     * funnel reports.
+     */
+    private static AlphaAnalyticsDataSettings buildAlphaSettings(final CredentialsProvider credentialsProvider,
+                                                                 final TransportConfig transportConfig) throws IOException {
+
+        final AlphaAnalyticsDataSettings.Builder settingsBuilder;
+        if (transportConfig.getTransport() == TransportConfig.Transport.HTTP_JSON) {
+
+            settingsBuilder = AlphaAnalyticsDataSettings.newHttpJsonBuilder();
+        } else {
+
+            settingsBuilder = AlphaAnalyticsDataSettings.newBuilder().setTransportChannelProvider(
+                    applyChannelSettings(AlphaAnalyticsDataSettings.defaultGrpcTransportProviderBuilder(),
+                            transportConfig).build());
+        }
+
+        if (transportConfig.getExecutorThreads() > 0) {
+            settingsBuilder.setBackgroundExecutorProvider(AlphaAnalyticsDataSettings.defaultExecutorProviderBuilder()
+                    .setExecutorThreadCount(transportConfig.getExecutorThreads())
+                    .build());
+        }
+
+        return settingsBuilder.setCredentialsProvider(credentialsProvider).build();
+    }
+
+    private static InstantiatingGrpcChannelProvider.Builder applyChannelSettings(
+            final InstantiatingGrpcChannelProvider.Builder channelProviderBuilder,
+            final TransportConfig transportConfig) {
+
+        if (transportConfig.getChannelPoolSize() > 0) {
+            channelProviderBuilder.setChannelPoolSettings(
+                    ChannelPoolSettings.staticallySized(transportConfig.getChannelPoolSize()));
+        }
+        if (transportConfig.getKeepAliveSeconds() > 0) {
+            channelProviderBuilder.setKeepAliveTime(Duration.ofSeconds(transportConfig.getKeepAliveSeconds()));
+        }
+        if (transportConfig.getMaxInboundMessageSizeMb() > 0) {
+            channelProviderBuilder.setMaxInboundMessageSize(transportConfig.getMaxInboundMessageSizeMb() * 1024 * 1024);
+        }
+        return channelProviderBuilder;
+    }
+
+    /**
+     * The v1alpha client is only needed by the funnel reports, so it is created the first time a funnel runs instead
+     * of opening its channels for every site.
+     */
+    private AlphaAnalyticsDataClient getAlphaAnalyticsDataClient() throws IOException {
+
+        if (this.alphaAnalyticsDataClient == null) {
+            synchronized (this) {
+                if (this.alphaAnalyticsDataClient == null) {
+                    this.alphaAnalyticsDataClient = AlphaAnalyticsDataClient.create(
+                            buildAlphaSettings(this.credentialsProvider, this.transportConfig));
+                }
+            }
+        }
+        return this.alphaAnalyticsDataClient;
+    }
+
+    /**
+     * Closes the client and its channels, the service can not be used after this.
+     */
+    public void close() {
+
+        this.reportCache.close();
+        this.pivotCache.clear();
+        this.funnelCache.clear();
+        this.partitionCache.clear();
+        if (this.responseCache != null) {
+            this.responseCache.clear();
+        }
+        this.metadataCatalog.clear();
+        try {
+            this.analyticsDataClient.close();
+            if (this.alphaAnalyticsDataClient != null) {
+                this.alphaAnalyticsDataClient.close();
+            }
+        } catch (Exception e) {
+            Logger.warn(this, "Error closing the Google Analytics client: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates the call context of the transport in use, with the given timeout as deadline (0 means the default).
+     */
+    private ApiCallContext newCallContext(final long timeoutMillis) {
+
+        final ApiCallContext callContext = this.transportConfig.getTransport() == TransportConfig.Transport.HTTP_JSON ?
+                HttpJsonCallContext.createDefault() : GrpcCallContext.createDefault();
+        return timeoutMillis > 0 ? callContext.withTimeout(Duration.ofMillis(timeoutMillis)) : callContext;
+    }
+
+    /**
+     * Returns the bulkhead that limits the concurrent queries of the site this service belongs to.
+     * @return SiteBulkhead
+     */
+    public SiteBulkhead getBulkhead() {
+        return bulkhead;
+    }
+
+    /**
+     * Returns the cache of the encoded REST responses of the site.
+     * @return ResponseBytesCache or null if it is turned off
+     */
+    public ResponseBytesCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Returns the fingerprint of the report the query runs, the key of its report in the cache. Queries that differ
+     * only in what does not reach Google Analytics, such as their timeout, share it. The request is validated first,
+     * like {@link #query(AnalyticsRequest)} does.
+     * @param analyticsRequest AnalyticsRequest
+     * @return String
+     * @throws InvalidAnalyticsRequestException if the request fails the local validation
+     */
+    public String fingerprintOf(final AnalyticsRequest analyticsRequest) {
+
+        this.metadataCatalog.validate(analyticsRequest);
+        return Fingerprints.of(buildRunReportRequest(analyticsRequest));
+    }
+
+    /**
+     * Accounts for a query served out of the {@link #getResponseCache()}: it is logged and counted as an access of
+     * its report, so the report is still refreshed ahead of its expiry.
+     * @param fingerprint String fingerprint of the query, see {@link #fingerprintOf(AnalyticsRequest)}
+     * @param propertyId String GA property of the query
+     * @param rows int rows in the cached response
+     */
+    public void recordResponseHit(final String fingerprint, final String propertyId, final int rows) {
+
+        final long startNanos = System.nanoTime();
+        this.reportCache.touch(fingerprint);
+        logQuery(propertyId, "report", QueryLog.CACHE_RESPONSE, startNanos, null, rows, 0, null);
+    }
+
+    /**
+     * Returns the size of the direct memory shared by the off heap tiers of all the sites.
+     * @return Map, empty if there is no off heap tier
+     */
+    public static Map<String, Object> getOffHeapStats() {
+        return OFF_HEAP_ARENA != null ? OFF_HEAP_ARENA.getStats() : Map.of();
+    }
+
+    /**
+     * Returns a snapshot of the size and counters of the tiers of the report cache of the site.
+     * @return Map
+     */
+    public Map<String, Object> getCacheStats() {
+
+        final Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("siteId", this.bulkhead.getSiteId());
+        stats.putAll(this.reportCache.getStats());
+        return stats;
+    }
+
+    /**
+     * Returns the audience export jobs of the site this service belongs to.
+     * @return AudienceExportJobs
+     * @throws InvalidAnalyticsRequestException if the service is not bound to a site
+     */
+    public AudienceExportJobs getAudienceExportJobs() {
+
+        if (this.audienceExportJobs == null) {
+            throw new InvalidAnalyticsRequestException("Audience exports need a site");
+        }
+        return this.audienceExportJobs;
+    }
+
+    /**
+     * Queues the audience exports of the site that did not finish, called once the service is created.
+     * @param executor ExecutorService the exports run on
+     */
+    public void resumeAudienceExports(final ExecutorService executor) {
+
+        if (this.audienceExportJobs != null) {
+            this.audienceExportJobs.resumePending(executor);
+        }
+    }
+
+    /**
+     * Starts the creation of an audience export in Google Analytics, the slot of the site is only held for this
+     * initial call, not while the operation runs.
+     * @return String name of the operation, to wait for with {@link #awaitAudienceExport(String, long)}
+     */
+    String startAudienceExport(final String propertyId,
+                               final AudienceExport audienceExport) throws IOException {
+
+        this.bulkhead.acquire(BULKHEAD_MAX_WAIT_MILLIS);
+        try {
+            final OperationFuture<AudienceExport, AudienceExportMetadata> operationFuture =
+                    this.analyticsDataClient.createAudienceExportOperationCallable().futureCall(
+                            CreateAudienceExportRequest.newBuilder()
+                                    .setParent("properties/" + propertyId)
+                                    .setAudienceExport(audienceExport)
+                                    .build(), newCallContext(MAX_TIMEOUT_MILLIS));
+            return await(operationFuture.getInitialFuture(), MAX_TIMEOUT_MILLIS).getName();
+        } finally {
+            this.bulkhead.release();
+        }
+    }
+
+    /**
+     * Polls the operation that creates an audience export for up to the given time, it can be called again after a
+     * restart with the name saved by the caller. The export is ready once its own state is active.
+     * @param operationName String name returned by {@link #startAudienceExport(String, AudienceExport)}
+     * @param timeoutMillis long max time to wait
+     * @return AudienceExport or null if the operation did not finish in time
+     */
+    AudienceExport awaitAudienceExport(final String operationName, final long timeoutMillis) throws IOException {
+
+        final OperationFuture<AudienceExport, AudienceExportMetadata> operationFuture =
+                this.analyticsDataClient.createAudienceExportOperationCallable().resumeFutureCall(operationName);
+        try {
+            return operationFuture.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | CancellationException e) {
+            // still running, or the polling of gax gave up: the caller polls again
+            operationFuture.cancel(true);
+            return null;
+        } catch (InterruptedException e) {
+            operationFuture.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Audience export wait was cancelled");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    AudienceExport getAudienceExport(final String name) throws IOException {
+
+        return call(this.analyticsDataClient.getAudienceExportCallable(),
+                GetAudienceExportRequest.newBuilder().setName(name).build(), 0, 0);
+    }
+
+    QueryAudienceExportResponse queryAudienceExport(final String name,
+                                                    final long offset,
+                                                    final long limit) throws IOException {
+
+        return call(this.analyticsDataClient.queryAudienceExportCallable(), QueryAudienceExportRequest.newBuilder()
+                .setName(name)
+                .setOffset(offset)
+                .setLimit(limit)
+                .build(), 0, 0);
+    }
+
+    /**
+     * Returns the catalog of dimensions and metrics of the properties queried through this service.
+     * @return MetadataCatalog
+     */
+    public MetadataCatalog getMetadataCatalog() {
+        return metadataCatalog;
+    }
+
+    /**
+     * Runs a query against the Google Analytics API, once the site has a free slot to run it.
+     * If the request has a timeout, the wait for a slot and the upstream call both have to finish before it.
      * @param analyticsRequest
      * @return GoData
+     * @throws BulkheadFullException if the site has too many queries in progress
+     * @throws InvalidAnalyticsRequestException if the request fails the local validation
      */
     public RunReportResponse query(final AnalyticsRequest analyticsRequest) throws IOException {
 
-        try (BetaAnalyticsDataClient analyticsData = BetaAnalyticsDataClient.create(betaAnalyticsDataSettings)) {
+        final long startNanos = System.nanoTime();
+        final long timeoutMillis = getTimeoutMillis(analyticsRequest);
+        final long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        String cacheStatus = QueryLog.CACHE_MISS;
+        RunReportResponse response = null;
+        int tokensConsumed = 0;
+        Exception error = null;
+        try {
 
-            final RunReportRequest.Builder requestBuilder =
-                    RunReportRequest.newBuilder();
+            // Typos and invalid operators are rejected before spending a round trip and quota
+            try (QueryTrace.Stage stage = QueryTrace.stage("validate")) {
+                this.metadataCatalog.validate(analyticsRequest);
+            }
+            final RunReportRequest runReportRequest;
+            try (QueryTrace.Stage stage = QueryTrace.stage("build")) {
+                runReportRequest = buildRunReportRequest(analyticsRequest);
+            }
 
-            requestBuilder.addDateRanges(DateRange.newBuilder()
-                    .setStartDate(analyticsRequest.getStartDate())
-                    .setEndDate(analyticsRequest.getEndDate())
-                    .build());
+            // Served out of the cache (or computed out of a cached report) without calling Google Analytics
+            try (QueryTrace.Stage stage = QueryTrace.stage("cache")) {
+                response = this.reportCache.get(runReportRequest);
+            }
+            if (response != null) {
+                cacheStatus = QueryLog.CACHE_HIT;
+                return response;
+            }
 
-            if (Objects.nonNull(analyticsRequest.getMetrics())) {
+            this.metadataCatalog.checkCompatibility(runReportRequest, compatibilityRequest ->
+                    call(this.analyticsDataClient.checkCompatibilityCallable(), compatibilityRequest, timeoutMillis,
+                            deadlineNanos));
+            // the property quota is only asked for the query log, it is not cached nor returned
+            RunReportResponse upstreamResponse = queryPartitioned(runReportRequest, timeoutMillis, deadlineNanos);
+            if (upstreamResponse != null) {
+                cacheStatus = QueryLog.CACHE_PARTITION;
+            } else {
+                upstreamResponse = call(this.analyticsDataClient.runReportCallable(),
+                        runReportRequest.toBuilder().setReturnPropertyQuota(true).build(), timeoutMillis, deadlineNanos);
+                learnTimeZone(runReportRequest.getProperty(), upstreamResponse);
+            }
+            tokensConsumed = upstreamResponse.getPropertyQuota().getTokensPerHour().getConsumed();
+            response = upstreamResponse.toBuilder().clearPropertyQuota().build();
+            this.reportCache.put(runReportRequest, response, getCacheTtlMillis(runReportRequest.getDateRangesList(),
+                    response.getMetadata().getTimeZone()));
+            return response;
+        } catch (RuntimeException | IOException e) {
+            error = e;
+            throw e;
+        } finally {
+            logQuery(analyticsRequest.getPropertyId(), "report", cacheStatus, startNanos, response,
+                    response != null ? response.getRowsCount() : 0, tokensConsumed, error);
+        }
+    }
 
-                final String [] metrics = analyticsRequest.getMetrics().split(StringPool.COMMA);
-                Logger.debug(this.getClass().getName(), "metrics: " + Arrays.asList(metrics));
-                final List<Metric> metricList = new ArrayList<>();
-                for (final String metric : metrics) {
-                    Logger.debug(this.getClass().getName(), "Adding metric: " + metric);
-                    requestBuilder.addMetrics(Metric.newBuilder().setName(metric));
-                }
+    /**
+     * Runs a pivot report, the request needs at least one pivot. Pivot reports are cached like regular reports but
+     * they are only served for the very same request.
+     * @param analyticsRequest AnalyticsRequest
+     * @return RunPivotReportResponse
+     * @throws BulkheadFullException if the site has too many queries in progress
+     * @throws InvalidAnalyticsRequestException if the request fails the local validation
+     */
+    public RunPivotReportResponse queryPivot(final AnalyticsRequest analyticsRequest) throws IOException {
+
+        if (!analyticsRequest.isPivot()) {
+            throw new InvalidAnalyticsRequestException("A pivot report needs at least one pivot");
+        }
+
+        final long startNanos = System.nanoTime();
+        final long timeoutMillis = getTimeoutMillis(analyticsRequest);
+        final long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        String cacheStatus = QueryLog.CACHE_MISS;
+        RunPivotReportResponse response = null;
+        int tokensConsumed = 0;
+        Exception error = null;
+        try {
+
+            try (QueryTrace.Stage stage = QueryTrace.stage("validate")) {
+                this.metadataCatalog.validate(analyticsRequest);
+            }
+            final RunPivotReportRequest runPivotReportRequest;
+            try (QueryTrace.Stage stage = QueryTrace.stage("build")) {
+                runPivotReportRequest = buildRunPivotReportRequest(analyticsRequest);
             }
 
-            if (analyticsRequest.getDimensions() != null && !analyticsRequest.getDimensions().equals("")) {
+            try (QueryTrace.Stage stage = QueryTrace.stage("cache")) {
+                response = this.pivotCache.get(runPivotReportRequest);
+            }
+            if (response != null) {
+                cacheStatus = QueryLog.CACHE_HIT;
+                return response;
+            }
 
-                final String [] dimensions = analyticsRequest.getDimensions().split(StringPool.COMMA);
-                for (final String dimension : dimensions) {
-                    requestBuilder.addDimensions(Dimension.newBuilder().setName(dimension).build());
-                }
+            this.metadataCatalog.checkCompatibility(runPivotReportRequest, compatibilityRequest ->
+                    call(this.analyticsDataClient.checkCompatibilityCallable(), compatibilityRequest, timeoutMillis,
+                            deadlineNanos));
+            final RunPivotReportResponse upstreamResponse = call(this.analyticsDataClient.runPivotReportCallable(),
+                    runPivotReportRequest.toBuilder().setReturnPropertyQuota(true).build(), timeoutMillis,
+                    deadlineNanos);
+            tokensConsumed = upstreamResponse.getPropertyQuota().getTokensPerHour().getConsumed();
+            response = upstreamResponse.toBuilder().clearPropertyQuota().build();
+            this.pivotCache.put(runPivotReportRequest, response, getCacheTtlMillis(
+                    runPivotReportRequest.getDateRangesList(), response.getMetadata().getTimeZone()));
+            return response;
+        } catch (RuntimeException | IOException e) {
+            error = e;
+            throw e;
+        } finally {
+            logQuery(analyticsRequest.getPropertyId(), "pivot", cacheStatus, startNanos, response,
+                    response != null ? response.getRowsCount() : 0, tokensConsumed, error);
+        }
+    }
+
+    /**
+     * Runs a funnel report through the v1alpha API, in a single call for all the steps. Funnels are cached like pivot
+     * reports, only for the very same funnel and date range.
+     * @param funnelRequest FunnelRequest
+     * @return RunFunnelReportResponse
+     * @throws BulkheadFullException if the site has too many queries in progress
+     * @throws InvalidAnalyticsRequestException if the funnel has no steps or a step matches nothing
+     */
+    public RunFunnelReportResponse queryFunnel(final FunnelRequest funnelRequest) throws IOException {
+
+        final long startNanos = System.nanoTime();
+        final long timeoutMillis = getTimeoutMillis(funnelRequest.getTimeoutMs());
+        final long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        String cacheStatus = QueryLog.CACHE_MISS;
+        RunFunnelReportResponse response = null;
+        int tokensConsumed = 0;
+        Exception error = null;
+        try {
+
+            final RunFunnelReportRequest runFunnelReportRequest;
+            try (QueryTrace.Stage stage = QueryTrace.stage("build")) {
+                runFunnelReportRequest = buildRunFunnelReportRequest(funnelRequest);
             }
 
-            if (analyticsRequest.getSort() != null && !analyticsRequest.getSort().equals("")) {
-                requestBuilder.addOrderBys(
-                        OrderBy.newBuilder()
-                                .setMetric(OrderBy.MetricOrderBy.newBuilder().setMetricName(analyticsRequest.getSort()))
-                                .setDesc(true));
+            try (QueryTrace.Stage stage = QueryTrace.stage("cache")) {
+                response = this.funnelCache.get(runFunnelReportRequest);
             }
+            if (response != null) {
+                cacheStatus = QueryLog.CACHE_HIT;
+                return response;
+            }
+
+            final RunFunnelReportResponse upstreamResponse = call(getAlphaAnalyticsDataClient().runFunnelReportCallable(),
+                    runFunnelReportRequest.toBuilder().setReturnPropertyQuota(true).build(), timeoutMillis,
+                    deadlineNanos);
+            tokensConsumed = upstreamResponse.getPropertyQuota().getTokensPerHour().getConsumed();
+            response = upstreamResponse.toBuilder().clearPropertyQuota().build();
+
+            // funnel responses do not carry the time zone, the one learned from the reports of the property is used
+            final ZoneId zoneId = this.zoneByProperty.get(runFunnelReportRequest.getProperty());
+            this.funnelCache.put(runFunnelReportRequest, response, getCacheTtlMillis(List.of(DateRange.newBuilder()
+                            .setStartDate(funnelRequest.getStartDate())
+                            .setEndDate(funnelRequest.getEndDate())
+                            .build()), zoneId != null ? zoneId.getId() : StringPool.BLANK));
+            return response;
+        } catch (RuntimeException | IOException e) {
+            error = e;
+            throw e;
+        } finally {
+            logQuery(funnelRequest.getPropertyId(), "funnel", cacheStatus, startNanos, response,
+                    response != null ? response.getFunnelTable().getRowsCount() : 0, tokensConsumed, error);
+        }
+    }
+
+    /**
+     * Answers the request out of day partitions: the settled days (older than today minus
+     * {@link #PARTITION_SETTLE_DAYS}) that are cached are reused and the missing ones plus the recent days are fetched
+     * in a single call, the settled days fetched are cached for good. The time zone of the property has to be known to
+     * tell which days are settled, so the first query of a property always goes the regular way. When the cached days
+     * show the fetch would not fit in {@link #PARTITION_FETCH_LIMIT} rows nothing is fetched, and a fetch that turns out
+     * truncated anyway is completed page by page, up to {@link #PARTITION_FETCH_MAX_PAGES} pages.
+     * @return the response with the property quota of the calls, or null if the request can not be split into days
+     */
+    private RunReportResponse queryPartitioned(final RunReportRequest runReportRequest,
+                                               final long timeoutMillis,
+                                               final long deadlineNanos) throws IOException {
 
-            if (analyticsRequest.getMetricFilterList().size() > 0) {
+        final ZoneId zoneId = this.zoneByProperty.get(runReportRequest.getProperty());
+        if (!PARTITION_CACHE_ENABLED || zoneId == null || !DatePartitionCache.isPartitionable(runReportRequest)) {
+            return null;
+        }
 
-                setMetricFilters(analyticsRequest, requestBuilder);
+        final LocalDate today = LocalDate.now(zoneId);
+        final LocalDate firstUnsettled = today.minusDays(PARTITION_SETTLE_DAYS);
+        final DateRange dateRange = runReportRequest.getDateRanges(0);
+        final LocalDate startDate = ReportDates.resolve(dateRange.getStartDate(), today);
+        final LocalDate endDate = ReportDates.resolve(dateRange.getEndDate(), today);
+        // a range of recent days alone has nothing to reuse
+        if (startDate == null || endDate == null || !startDate.isBefore(firstUnsettled) || startDate.isAfter(endDate)
+                || endDate.isAfter(today) || ChronoUnit.DAYS.between(startDate, endDate) >= PARTITION_MAX_DAYS) {
+            return null;
+        }
+
+        final RunReportRequest partitionRequest = DatePartitionCache.partitionRequestOf(runReportRequest);
+        final String partitionKey = Fingerprints.of(partitionRequest);
+        final Map<LocalDate, RunReportResponse> partitions = new TreeMap<>();
+        LocalDate firstMissing = null;
+        LocalDate lastMissing = null;
+        long cachedRows = 0;
+        for (LocalDate day = startDate; !day.isAfter(endDate); day = day.plusDays(1)) {
+
+            final RunReportResponse partition = day.isBefore(firstUnsettled) ?
+                    this.partitionCache.get(partitionKey, day) : null;
+            if (partition != null) {
+                partitions.put(day, partition);
+                cachedRows += partition.getRowsCount();
+            } else {
+                firstMissing = firstMissing == null ? day : firstMissing;
+                lastMissing = day;
             }
+        }
 
-            if (analyticsRequest.getDimensionFilterList().size() > 0) {
+        RunReportResponse fetched = null;
+        if (firstMissing != null) {
 
-                setDimensionFilters(analyticsRequest, requestBuilder);
+            // the fetch covers the days in between cached ones too, the cached days tell how many rows it would bring
+            final long fetchedDays = ChronoUnit.DAYS.between(firstMissing, lastMissing) + 1;
+            if (!partitions.isEmpty() && cachedRows * fetchedDays / partitions.size() > PARTITION_FETCH_LIMIT) {
+                return null;
             }
 
-            requestBuilder.setOffset(analyticsRequest.getStartIndex());
-            requestBuilder.setLimit(analyticsRequest.getMaxResults());
+            fetched = fetchPartitions(partitionRequest.toBuilder()
+                    .addDateRanges(DateRange.newBuilder()
+                            .setStartDate(firstMissing.toString())
+                            .setEndDate(lastMissing.toString()))
+                    .build(), timeoutMillis, deadlineNanos);
+            if (fetched == null) {
+                return null;
+            }
+            learnTimeZone(runReportRequest.getProperty(), fetched);
 
-            requestBuilder.setProperty("properties/" + analyticsRequest.getPropertyId());
-            final RunReportRequest runReportRequest = requestBuilder.build();
-            Logger.info(this, "GA4 Request: " + runReportRequest);
+            for (final Map.Entry<LocalDate, RunReportResponse> entry : DatePartitionCache.split(
+                    fetched.toBuilder().clearPropertyQuota().build(), firstMissing, lastMissing).entrySet()) {
 
-            return analyticsData.runReport(runReportRequest);
+                // the partitions fetched in between cached days are the same, they are just replaced
+                partitions.put(entry.getKey(), entry.getValue());
+                if (entry.getKey().isBefore(firstUnsettled)) {
+                    this.partitionCache.put(partitionKey, entry.getKey(), entry.getValue());
+                }
+            }
         }
+
+        final RunReportResponse.Builder assembled = partitions.values().iterator().next().toBuilder().clearRows();
+        partitions.values().forEach(partition -> assembled.addAllRows(partition.getRowsList()));
+        assembled.setRowCount(assembled.getRowsCount());
+
+        final RunReportResponse response = ReportRollup.answer(
+                partitionRequest.toBuilder().addDateRanges(dateRange).build(), assembled.build(), runReportRequest);
+        if (response == null) {
+            return null;
+        }
+        return fetched != null ? response.toBuilder().setPropertyQuota(fetched.getPropertyQuota()).build() : response;
     }
 
-    private static void setDimensionFilters(final AnalyticsRequest analyticsRequest,
-                                         final RunReportRequest.Builder requestBuilder) {
+    /**
+     * Fetches every row of a partition request, in pages of {@link #PARTITION_FETCH_LIMIT} rows when it does not fit in
+     * one. The rows are sorted on all the dimensions so the pages do not overlap. The first page tells how many rows
+     * there are, when they would take more than {@link #PARTITION_FETCH_MAX_PAGES} pages nothing else is fetched.
+     * @return the rows of all the pages, with the tokens consumed by all of them in the property quota, or null if
+     * there are too many rows
+     */
+    private RunReportResponse fetchPartitions(final RunReportRequest fetchRequest,
+                                              final long timeoutMillis,
+                                              final long deadlineNanos) throws IOException {
+
+        final RunReportRequest.Builder pageRequest = fetchRequest.toBuilder()
+                .setLimit(PARTITION_FETCH_LIMIT)
+                .setReturnPropertyQuota(true);
+        fetchRequest.getDimensionsList().forEach(dimension -> pageRequest.addOrderBys(OrderBy.newBuilder()
+                .setDimension(OrderBy.DimensionOrderBy.newBuilder().setDimensionName(dimension.getName()))));
+
+        final RunReportResponse firstPage = call(this.analyticsDataClient.runReportCallable(), pageRequest.build(),
+                timeoutMillis, deadlineNanos);
+        if (firstPage.getRowsCount() >= firstPage.getRowCount()) {
+            return firstPage;
+        }
+        if (firstPage.getRowCount() > PARTITION_FETCH_LIMIT * PARTITION_FETCH_MAX_PAGES) {
+            Logger.info(this, "Partition fetch of " + fetchRequest.getProperty() + " has " + firstPage.getRowCount()
+                    + " rows, the request is not answered out of partitions");
+            return null;
+        }
+
+        final RunReportResponse.Builder fetched = firstPage.toBuilder();
+        final PropertyQuota.Builder quota = fetched.getPropertyQuotaBuilder();
+        while (fetched.getRowsCount() < fetched.getRowCount()) {
+
+            final RunReportResponse page = call(this.analyticsDataClient.runReportCallable(),
+                    pageRequest.setOffset(fetched.getRowsCount()).build(), timeoutMillis, deadlineNanos);
+            if (page.getRowsCount() == 0) {
+                break;
+            }
+            fetched.addAllRows(page.getRowsList());
+            quota.getTokensPerHourBuilder().setConsumed(quota.getTokensPerHour().getConsumed()
+                    + page.getPropertyQuota().getTokensPerHour().getConsumed());
+            quota.getTokensPerDayBuilder().setConsumed(quota.getTokensPerDay().getConsumed()
+                    + page.getPropertyQuota().getTokensPerDay().getConsumed());
+        }
+        return fetched.setRowCount(fetched.getRowsCount()).build();
+    }
+
+    /**
+     * Remembers the time zone of the property the response belongs to.
+     */
+    private void learnTimeZone(final String property, final RunReportResponse response) {
+
+        if (!response.getMetadata().getTimeZone().isEmpty()) {
+            this.zoneByProperty.put(property, ReportDates.zoneOf(response.getMetadata().getTimeZone()));
+        }
+    }
 
-        if (analyticsRequest.getDimensionFilterList().size() == 1) {
+    /**
+     * Hands the query to the query log if it is slow or sampled, building the entry only then. Queries that run
+     * within a traced request are logged when the request is done, along with the time of each stage.
+     */
+    private void logQuery(final String propertyId,
+                          final String kind,
+                          final String cacheStatus,
+                          final long startNanos,
+                          final MessageLite response,
+                          final int rows,
+                          final int tokensConsumed,
+                          final Exception error) {
 
-            final FilterRequest filterRequest = analyticsRequest.getDimensionFilterList().get(0);
-            final FilterExpression filterExpression = getFilterExpression(filterRequest);
+        final long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        final QueryTrace trace = QueryTrace.current();
+        if (trace == null && !QUERY_LOG.shouldLog(latencyMillis)) {
+            return;
+        }
 
-            requestBuilder.setDimensionFilter(filterExpression);
+        final QueryLog.Entry entry = new QueryLog.Entry(this.bulkhead.getSiteId(), propertyId, kind, cacheStatus,
+                latencyMillis, rows, response != null ? response.getSerializedSize() : 0, tokensConsumed,
+                error != null ? error.getClass().getSimpleName() : null);
+        if (trace != null) {
+            trace.defer(entry);
         } else {
+            QUERY_LOG.record(entry);
+        }
+    }
+
+    /**
+     * Closed date ranges are cached for long, ranges that include today for a short time.
+     */
+    private static long getCacheTtlMillis(final List<DateRange> dateRanges, final String timeZone) {
+
+        final ZoneId zoneId = ReportDates.zoneOf(timeZone);
+        long ttlSeconds = Long.MAX_VALUE;
+        for (final DateRange dateRange : dateRanges) {
+            ttlSeconds = Math.min(ttlSeconds, ReportDates.maxAgeSeconds(dateRange.getStartDate(),
+                    dateRange.getEndDate(), zoneId, CACHE_OPEN_RANGE_TTL_SECONDS, CACHE_CLOSED_RANGE_TTL_SECONDS));
+        }
+
+        return ttlSeconds == Long.MAX_VALUE ? 0 : TimeUnit.SECONDS.toMillis(ttlSeconds);
+    }
 
-            final FilterExpressionList.Builder builder = FilterExpressionList.newBuilder();
-            for (final FilterRequest filterRequest : analyticsRequest.getMetricFilterList()) {
+    /**
+     * Calls Google Analytics once the site has a free slot, using the time left until the deadline as the call
+     * deadline (0 means the default gax timeout).
+     * The upstream call is cancelled if the calling thread is interrupted while it waits, for instance
+     * when the request or the render it belongs to is aborted.
+     */
+    private <Q, R> R call(final UnaryCallable<Q, R> callable,
+                          final Q request,
+                          final long timeoutMillis,
+                          final long deadlineNanos) throws IOException {
+
+        try (QueryTrace.Stage stage = QueryTrace.stage("bulkhead")) {
+            this.bulkhead.acquire(timeoutMillis > 0 ?
+                    Math.min(BULKHEAD_MAX_WAIT_MILLIS, timeoutMillis) : BULKHEAD_MAX_WAIT_MILLIS);
+        }
+        try {
+
+            Logger.debug(this, () -> "GA4 Request: " + request);
+
+            final long remainingMillis = timeoutMillis > 0 ?
+                    TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()) : 0;
+            if (timeoutMillis > 0 && remainingMillis <= 0) {
+                throw new DeadlineExceededException("Deadline exceeded waiting to query Google Analytics",
+                        null, GrpcStatusCode.of(Status.Code.DEADLINE_EXCEEDED), false);
+            }
 
-                final FilterExpression filterExpression = getFilterExpression(filterRequest);
-                builder.addExpressions(filterExpression);
+            try (QueryTrace.Stage stage = QueryTrace.stage("upstream")) {
+                return invoke(callable, request, remainingMillis);
             }
+        } finally {
+            this.bulkhead.release();
+        }
+    }
+
+    /**
+     * Calls Google Analytics with the given timeout (0 means the default gax timeout), the slot of the site has to
+     * be taken already.
+     */
+    private <Q, R> R invoke(final UnaryCallable<Q, R> callable,
+                            final Q request,
+                            final long timeoutMillis) throws IOException {
+
+        return await(callable.futureCall(request, newCallContext(timeoutMillis)), 0);
+    }
+
+    /**
+     * Waits for the result of a call, up to the given time if it is positive. The call is cancelled if the calling
+     * thread is interrupted.
+     */
+    private static <R> R await(final ApiFuture<R> future, final long timeoutMillis) throws IOException {
 
-            requestBuilder.setDimensionFilter(FilterExpression.newBuilder().setAndGroup(builder.build()));
+        try {
+            return timeoutMillis > 0 ? future.get(timeoutMillis, TimeUnit.MILLISECONDS) : future.get();
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new DeadlineExceededException("Deadline exceeded waiting for Google Analytics",
+                    e, GrpcStatusCode.of(Status.Code.DEADLINE_EXCEEDED), false);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Google Analytics query was cancelled");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
         }
     }
 
+    /**
+     * Refreshes the cached reports that were requested often recently and are about to expire, so the visitors do
+     * not land on a miss. Refreshes only run on slots that are free right now and within the share of the property
+     * quota allowed for them. Called periodically by the {@link GoogleAnalyticsServiceRegistry}.
+     */
+    public void refreshAhead() {
+
+        for (final CachedReport cachedReport : this.reportCache.getRefreshCandidates(
+                TimeUnit.SECONDS.toMillis(REFRESH_AHEAD_WINDOW_SECONDS), REFRESH_AHEAD_MIN_FREQUENCY,
+                REFRESH_AHEAD_MAX_REPORTS)) {
+
+            final RunReportRequest runReportRequest = cachedReport.getRequest();
+            if (!this.refreshBudget.canSpend(runReportRequest.getProperty())) {
+                continue;
+            }
+
+            // the visitors come first
+            if (!this.bulkhead.tryAcquire()) {
+                return;
+            }
+
+            final long startNanos = System.nanoTime();
+            RunReportResponse response = null;
+            Exception error = null;
+            try {
+
+                response = invoke(this.analyticsDataClient.runReportCallable(),
+                        runReportRequest.toBuilder().setReturnPropertyQuota(true).build(), MAX_TIMEOUT_MILLIS);
+                this.refreshBudget.record(runReportRequest.getProperty(), response.getPropertyQuota());
+                learnTimeZone(runReportRequest.getProperty(), response);
+                this.reportCache.put(runReportRequest, response.toBuilder().clearPropertyQuota().build(),
+                        getCacheTtlMillis(runReportRequest.getDateRangesList(), response.getMetadata().getTimeZone()));
+                Logger.debug(this, () -> "Refreshed GA4 report ahead of expiry: " + runReportRequest.getProperty());
+            } catch (Exception e) {
+                error = e;
+                Logger.debug(this, () -> "Could not refresh GA4 report ahead of expiry: " + e.getMessage());
+            } finally {
+                this.bulkhead.release();
+                logQuery(runReportRequest.getProperty().replace("properties/", ""), "report", QueryLog.CACHE_REFRESH, startNanos, response,
+                        response != null ? response.getRowsCount() : 0,
+                        response != null ? response.getPropertyQuota().getTokensPerHour().getConsumed() : 0, error);
+            }
+        }
+    }
+
+    /**
+     * Returns the timeout of the request capped to the max allowed, or 0 if the request does not set one.
+     */
+    private static long getTimeoutMillis(final AnalyticsRequest analyticsRequest) {
+        return getTimeoutMillis(analyticsRequest.getTimeoutMs());
+    }
+
+    private static long getTimeoutMillis(final long timeoutMs) {
+        return timeoutMs > 0 ? Math.min(timeoutMs, MAX_TIMEOUT_MILLIS) : 0;
+    }
+
+    private RunReportRequest buildRunReportRequest(final AnalyticsRequest analyticsRequest) {
+
+        final RunReportRequest.Builder requestBuilder =
+                RunReportRequest.newBuilder();
+
+        requestBuilder.addDateRanges(DateRange.newBuilder()
+                .setStartDate(analyticsRequest.getStartDate())
+                .setEndDate(analyticsRequest.getEndDate())
+                .build());
+
+        if (Objects.nonNull(analyticsRequest.getMetrics())) {
+
+            final String [] metrics = analyticsRequest.getMetrics().split(StringPool.COMMA);
+            Logger.debug(this.getClass().getName(), "metrics: " + Arrays.asList(metrics));
+            for (final String metric : metrics) {
+                Logger.debug(this.getClass().getName(), "Adding metric: " + metric);
+                requestBuilder.addMetrics(Metric.newBuilder().setName(metric));
+            }
+        }
+
+        if (analyticsRequest.getDimensions() != null && !analyticsRequest.getDimensions().equals("")) {
+
+            final String [] dimensions = analyticsRequest.getDimensions().split(StringPool.COMMA);
+            for (final String dimension : dimensions) {
+                requestBuilder.addDimensions(Dimension.newBuilder().setName(dimension).build());
+            }
+        }
+
+        if (analyticsRequest.getSort() != null && !analyticsRequest.getSort().equals("")) {
+            requestBuilder.addOrderBys(
+                    OrderBy.newBuilder()
+                            .setMetric(OrderBy.MetricOrderBy.newBuilder().setMetricName(analyticsRequest.getSort()))
+                            .setDesc(true));
+        }
+
+        if (analyticsRequest.getMetricFilterList().size() > 0) {
+
+            requestBuilder.setMetricFilter(getFilterExpression(analyticsRequest.getMetricFilterList(),
+                    filterRequest -> getMetricFilterExpression(analyticsRequest.getPropertyId(), filterRequest)));
+        }
+
+        if (analyticsRequest.getDimensionFilterList().size() > 0) {
+
+            requestBuilder.setDimensionFilter(getFilterExpression(analyticsRequest.getDimensionFilterList(),
+                    GoogleAnalyticsService::getFilterExpression));
+        }
+
+        requestBuilder.setOffset(analyticsRequest.getStartIndex());
+        requestBuilder.setLimit(analyticsRequest.getMaxResults());
+
+        requestBuilder.setProperty("properties/" + analyticsRequest.getPropertyId());
+        return requestBuilder.build();
+    }
+
+    /**
+     * Builds the pivot request, the dimensions of the report are the ones of the request plus the fields of the
+     * pivots. Google Analytics rejects a dimension that is not in exactly one pivot, so that is checked here.
+     * @throws InvalidAnalyticsRequestException if a dimension is in no pivot or in more than one
+     */
+    private RunPivotReportRequest buildRunPivotReportRequest(final AnalyticsRequest analyticsRequest) {
+
+        final RunPivotReportRequest.Builder requestBuilder = RunPivotReportRequest.newBuilder();
+
+        requestBuilder.addDateRanges(DateRange.newBuilder()
+                .setStartDate(analyticsRequest.getStartDate())
+                .setEndDate(analyticsRequest.getEndDate())
+                .build());
+
+        for (final String metric : analyticsRequest.getMetrics().split(StringPool.COMMA)) {
+            requestBuilder.addMetrics(Metric.newBuilder().setName(metric));
+        }
+
+        final Set<String> dimensions = new LinkedHashSet<>();
+        if (analyticsRequest.getDimensions() != null && !analyticsRequest.getDimensions().equals("")) {
+            dimensions.addAll(Arrays.asList(analyticsRequest.getDimensions().split(StringPool.COMMA)));
+        }
+
+        final Set<String> pivotFields = new LinkedHashSet<>();
+        for (final PivotRequest pivotRequest : analyticsRequest.getPivotList()) {
+
+            final List<String> fieldNames = Arrays.asList(pivotRequest.getFieldNames().split(StringPool.COMMA));
+            for (final String fieldName : fieldNames) {
+                if (!pivotFields.add(fieldName)) {
+                    throw new InvalidAnalyticsRequestException("Dimension: " + fieldName
+                            + " can only be in one pivot");
+                }
+            }
+
+            final Pivot.Builder pivotBuilder = Pivot.newBuilder()
+                    .addAllFieldNames(fieldNames)
+                    .setLimit(pivotRequest.getLimit() > 0 ? pivotRequest.getLimit() : DEFAULT_PIVOT_LIMIT);
+            if (pivotRequest.getSort() != null && !pivotRequest.getSort().equals("")) {
+                pivotBuilder.addOrderBys(OrderBy.newBuilder()
+                        .setMetric(OrderBy.MetricOrderBy.newBuilder().setMetricName(pivotRequest.getSort()))
+                        .setDesc(true));
+            }
+            requestBuilder.addPivots(pivotBuilder);
+        }
+
+        for (final String dimension : dimensions) {
+            if (!pivotFields.contains(dimension)) {
+                throw new InvalidAnalyticsRequestException("Dimension: " + dimension
+                        + " has to be in the fieldNames of a pivot");
+            }
+        }
+        dimensions.addAll(pivotFields);
+        dimensions.forEach(dimension -> requestBuilder.addDimensions(Dimension.newBuilder().setName(dimension)));
+
+        if (analyticsRequest.getMetricFilterList().size() > 0) {
+
+            requestBuilder.setMetricFilter(getFilterExpression(analyticsRequest.getMetricFilterList(),
+                    filterRequest -> getMetricFilterExpression(analyticsRequest.getPropertyId(), filterRequest)));
+        }
+
+        if (analyticsRequest.getDimensionFilterList().size() > 0) {
+
+            requestBuilder.setDimensionFilter(getFilterExpression(analyticsRequest.getDimensionFilterList(),
+                    GoogleAnalyticsService::getFilterExpression));
+        }
+
+        requestBuilder.setProperty("properties/" + analyticsRequest.getPropertyId());
+        return requestBuilder.build();
+    }
+
+    /**
+     * Builds the funnel request, each step matches its event and/or its filters (and-ed).
+     */
+    private RunFunnelReportRequest buildRunFunnelReportRequest(final FunnelRequest funnelRequest) {
+
+        if (funnelRequest.getStepList().isEmpty()) {
+            throw new InvalidAnalyticsRequestException("A funnel needs at least one step");
+        }
+
+        final Funnel.Builder funnelBuilder = Funnel.newBuilder().setIsOpenFunnel(funnelRequest.isOpenFunnel());
+        for (final FunnelStepRequest stepRequest : funnelRequest.getStepList()) {
+
+            final List<FunnelFilterExpression> expressions = new ArrayList<>();
+            if (stepRequest.getEventName() != null && !stepRequest.getEventName().equals("")) {
+                expressions.add(FunnelFilterExpression.newBuilder()
+                        .setFunnelEventFilter(FunnelEventFilter.newBuilder().setEventName(stepRequest.getEventName()))
+                        .build());
+            }
+            for (final FilterRequest filterRequest : stepRequest.getFilterList()) {
+                expressions.add(getFunnelFilterExpression(filterRequest));
+            }
+            if (expressions.isEmpty()) {
+                throw new InvalidAnalyticsRequestException("Funnel step needs an event or a filter: "
+                        + stepRequest.getName());
+            }
+
+            funnelBuilder.addSteps(FunnelStep.newBuilder()
+                    .setName(stepRequest.getName() != null ? stepRequest.getName() : StringPool.BLANK)
+                    .setIsDirectlyFollowedBy(stepRequest.isDirectlyFollowedBy())
+                    .setFilterExpression(expressions.size() == 1 ? expressions.get(0) :
+                            FunnelFilterExpression.newBuilder()
+                                    .setAndGroup(FunnelFilterExpressionList.newBuilder().addAllExpressions(expressions))
+                                    .build()));
+        }
+
+        final RunFunnelReportRequest.Builder requestBuilder = RunFunnelReportRequest.newBuilder()
+                .setProperty("properties/" + funnelRequest.getPropertyId())
+                .addDateRanges(com.google.analytics.data.v1alpha.DateRange.newBuilder()
+                        .setStartDate(funnelRequest.getStartDate())
+                        .setEndDate(funnelRequest.getEndDate()))
+                .setFunnel(funnelBuilder);
+
+        if (funnelRequest.getBreakdownDimension() != null && !funnelRequest.getBreakdownDimension().equals("")) {
+
+            final FunnelBreakdown.Builder breakdownBuilder = FunnelBreakdown.newBuilder()
+                    .setBreakdownDimension(com.google.analytics.data.v1alpha.Dimension.newBuilder()
+                            .setName(funnelRequest.getBreakdownDimension()));
+            if (funnelRequest.getBreakdownLimit() > 0) {
+                breakdownBuilder.setLimit(funnelRequest.getBreakdownLimit());
+            }
+            requestBuilder.setFunnelBreakdown(breakdownBuilder);
+        }
+
+        return requestBuilder.build();
+    }
+
+    private static FunnelFilterExpression getFunnelFilterExpression(final FilterRequest filterRequest) {
+
+        final StringFilter.MatchType matchType;
+        try {
+            matchType = Objects.nonNull(filterRequest.getOperator()) ?
+                    StringFilter.MatchType.valueOf(filterRequest.getOperator()) : StringFilter.MatchType.EXACT;
+        } catch (IllegalArgumentException e) {
+            throw new InvalidAnalyticsRequestException("Invalid operator for funnel filter on "
+                    + filterRequest.getField() + ": " + filterRequest.getOperator());
+        }
+        return FunnelFilterExpression.newBuilder()
+                .setFunnelFieldFilter(FunnelFieldFilter.newBuilder()
+                        .setFieldName(filterRequest.getField())
+                        .setStringFilter(StringFilter.newBuilder()
+                                .setValue(filterRequest.getValue())
+                                .setMatchType(matchType)))
+                .build();
+    }
+
+    /**
+     * A single filter is sent as is, several filters are and-ed. The order of and-ed filters does not change the
+     * report, so they are sorted to give the same request (and fingerprint) whatever order they came in.
+     */
+    private static FilterExpression getFilterExpression(final List<FilterRequest> filterRequests,
+                                                        final Function<FilterRequest, FilterExpression> toExpression) {
+
+        if (filterRequests.size() == 1) {
+
+            return toExpression.apply(filterRequests.get(0));
+        }
+
+        final List<FilterRequest> sortedRequests = new ArrayList<>(filterRequests);
+        sortedRequests.sort(Comparator.comparing(FilterRequest::getField, Comparator.nullsFirst(String::compareTo))
+                .thenComparing(FilterRequest::getOperator, Comparator.nullsFirst(String::compareTo))
+                .thenComparing(FilterRequest::getValue, Comparator.nullsFirst(String::compareTo)));
+        final FilterExpressionList.Builder builder = FilterExpressionList.newBuilder();
+        for (final FilterRequest filterRequest : sortedRequests) {
+
+            final FilterExpression filterExpression = toExpression.apply(filterRequest);
+            builder.addExpressions(filterExpression);
+        }
+
+        return FilterExpression.newBuilder().setAndGroup(builder.build()).build();
+    }
+
     private static FilterExpression getFilterExpression(final FilterRequest filterRequest) {
 
-        final Filter.StringFilter.MatchType matchType = Objects.nonNull(filterRequest.getOperator()) ?
-                Filter.StringFilter.MatchType.valueOf(filterRequest.getOperator()) : Filter.StringFilter.MatchType.EXACT;
+        // the request may be built before it is validated, to look it up in a cache
+        final Filter.StringFilter.MatchType matchType = MetadataCatalog.toMatchType(filterRequest.getOperator());
         final FilterExpression filterExpression = FilterExpression.newBuilder()
                 .setFilter(Filter.newBuilder()
                         .setFieldName(filterRequest.getField())
@@ -162,24 +1421,35 @@ public class GoogleAnalyticsService {
         return filterExpression;
     }
 
-    private static void setMetricFilters(final AnalyticsRequest analyticsRequest,
-                                         final RunReportRequest.Builder requestBuilder) {
-
-        if (analyticsRequest.getMetricFilterList().size() == 1) {
-
-            final FilterRequest filterRequest = analyticsRequest.getMetricFilterList().get(0);
-            final FilterExpression filterExpression = getFilterExpression(filterRequest);
-            requestBuilder.setMetricFilter(filterExpression);
-        } else {
-
-            final FilterExpressionList.Builder builder = FilterExpressionList.newBuilder();
-            for (final FilterRequest filterRequest : analyticsRequest.getMetricFilterList()) {
+    /**
+     * Metric filters compare numbers: integer metrics are compared to an int64 value and the rest (float, currency,
+     * seconds...) to a double. While the metadata of the property is not loaded whole numbers are sent as int64.
+     */
+    private FilterExpression getMetricFilterExpression(final String propertyId, final FilterRequest filterRequest) {
 
-                final FilterExpression filterExpression = getFilterExpression(filterRequest);
-                builder.addExpressions(filterExpression);
+        final MetricType metricType = this.metadataCatalog.getMetricType(propertyId, filterRequest.getField());
+        final String value = filterRequest.getValue() != null ? filterRequest.getValue().trim() : StringPool.BLANK;
+        final NumericValue.Builder numericValue = NumericValue.newBuilder();
+        try {
+            if ((metricType == null || metricType == MetricType.TYPE_INTEGER) && MetadataCatalog.isInteger(value)) {
+                numericValue.setInt64Value(new BigDecimal(value).longValue());
+            } else {
+                numericValue.setDoubleValue(Double.parseDouble(value));
             }
-
-            requestBuilder.setMetricFilter(FilterExpression.newBuilder().setAndGroup(builder.build()));
+        } catch (NumberFormatException e) {
+            // the request may be built before it is validated, to look it up in a cache
+            throw new InvalidAnalyticsRequestException("Metric filter on " + filterRequest.getField()
+                    + " needs a numeric value, got: " + filterRequest.getValue());
         }
+
+        return FilterExpression.newBuilder()
+                .setFilter(Filter.newBuilder()
+                        .setFieldName(filterRequest.getField())
+                        .setNumericFilter(Filter.NumericFilter.newBuilder()
+                                .setOperation(MetadataCatalog.toNumericOperation(filterRequest.getOperator()))
+                                .setValue(numericValue)
+                                .build())
+                        .build())
+                .build();
     }
 }
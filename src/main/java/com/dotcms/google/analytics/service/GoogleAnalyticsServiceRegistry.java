@@ -0,0 +1,197 @@
+package com.dotcms.google.analytics.service;
+
+import com.dotcms.google.analytics.app.AnalyticsApp;
+import com.dotcms.google.analytics.app.AnalyticsAppService;
+import com.dotmarketing.util.Config;
+import com.dotmarketing.util.Logger;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps one {@link GoogleAnalyticsService} per site, shared by the REST resource and the view tool so both go through
+ * the same per-site limits.
+ */
+public class GoogleAnalyticsServiceRegistry {
+
+    private static final GoogleAnalyticsServiceRegistry INSTANCE = new GoogleAnalyticsServiceRegistry();
+
+    /**
+     * Seconds between rounds of refresh-ahead of the hot reports of every site, 0 turns it off.
+     */
+    private static final long REFRESH_AHEAD_INTERVAL_SECONDS =
+            Config.getLongProperty("GOOGLE_ANALYTICS_REFRESH_AHEAD_INTERVAL_SECONDS", 30);
+
+    private final AnalyticsAppService analyticsAppService = new AnalyticsAppService();
+    private final Map<String, GoogleAnalyticsService> googleAnalyticsServiceMap = new ConcurrentHashMap<>();
+    /**
+     * Threads running the queries of multi-site requests, which bounds how many of them run at the same time.
+     */
+    private static final int FAN_OUT_THREADS =
+            Config.getIntProperty("GOOGLE_ANALYTICS_FAN_OUT_THREADS", 8);
+
+    /**
+     * Threads running audience exports, shared by all the sites.
+     */
+    private static final int AUDIENCE_EXPORT_THREADS =
+            Config.getIntProperty("GOOGLE_ANALYTICS_AUDIENCE_EXPORT_THREADS", 2);
+
+    private ScheduledExecutorService refreshAheadExecutor;
+    private ExecutorService fanOutExecutor;
+    private ExecutorService audienceExportExecutor;
+
+    public static GoogleAnalyticsServiceRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets or creates the service for the given site, timed as the credentials stage of the traced request.
+     * @param siteId String site identifier
+     * @return GoogleAnalyticsService
+     */
+    public GoogleAnalyticsService getService(final String siteId) {
+
+        try (QueryTrace.Stage stage = QueryTrace.stage("credentials")) {
+            return getOrCreateService(siteId);
+        }
+    }
+
+    private GoogleAnalyticsService getOrCreateService(final String siteId) {
+
+        final GoogleAnalyticsService service = this.googleAnalyticsServiceMap.get(siteId);
+        if (service != null) {
+            return service;
+        }
+
+        startRefreshAhead();
+        return this.googleAnalyticsServiceMap.computeIfAbsent(siteId, key -> {
+            try {
+                final AnalyticsApp analyticsApp = analyticsAppService.getAnalyticsApp(siteId);
+                final GoogleAnalyticsService newService = new GoogleAnalyticsService(siteId, analyticsApp);
+                // exports interrupted by a restart or a redeploy go on where they were
+                newService.resumeAudienceExports(getAudienceExportExecutor());
+                return newService;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * Returns the services created so far.
+     * @return Collection
+     */
+    public Collection<GoogleAnalyticsService> getServices() {
+        return this.googleAnalyticsServiceMap.values();
+    }
+
+    /**
+     * Closes and drops all the services, called when the bundle stops.
+     */
+    public void clear() {
+        stopRefreshAhead();
+        stopFanOut();
+        stopAudienceExports();
+        QueryLog.getInstance().stop();
+        this.googleAnalyticsServiceMap.values().forEach(GoogleAnalyticsService::close);
+        this.googleAnalyticsServiceMap.clear();
+    }
+
+    /**
+     * Returns the executor that runs the queries of multi-site requests in parallel.
+     * @return ExecutorService
+     */
+    public synchronized ExecutorService getFanOutExecutor() {
+
+        if (this.fanOutExecutor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            this.fanOutExecutor = Executors.newFixedThreadPool(Math.max(1, FAN_OUT_THREADS), runnable -> {
+                final Thread thread = new Thread(runnable, "google-analytics-fan-out-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return this.fanOutExecutor;
+    }
+
+    /**
+     * Returns the executor that runs the audience exports in the background.
+     * @return ExecutorService
+     */
+    public synchronized ExecutorService getAudienceExportExecutor() {
+
+        if (this.audienceExportExecutor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            this.audienceExportExecutor = Executors.newFixedThreadPool(Math.max(1, AUDIENCE_EXPORT_THREADS),
+                    runnable -> {
+                        final Thread thread = new Thread(runnable,
+                                "google-analytics-audience-export-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+        return this.audienceExportExecutor;
+    }
+
+    /**
+     * Interrupts the running exports, they keep their checkpoint and resume on the next start.
+     */
+    private synchronized void stopAudienceExports() {
+
+        if (this.audienceExportExecutor != null) {
+            this.audienceExportExecutor.shutdownNow();
+            this.audienceExportExecutor = null;
+        }
+    }
+
+    private synchronized void stopFanOut() {
+
+        if (this.fanOutExecutor != null) {
+            this.fanOutExecutor.shutdownNow();
+            this.fanOutExecutor = null;
+        }
+    }
+
+    private synchronized void startRefreshAhead() {
+
+        if (this.refreshAheadExecutor != null || REFRESH_AHEAD_INTERVAL_SECONDS <= 0) {
+            return;
+        }
+
+        this.refreshAheadExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "google-analytics-refresh-ahead");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.refreshAheadExecutor.scheduleWithFixedDelay(this::refreshAhead,
+                REFRESH_AHEAD_INTERVAL_SECONDS, REFRESH_AHEAD_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private synchronized void stopRefreshAhead() {
+
+        if (this.refreshAheadExecutor != null) {
+            this.refreshAheadExecutor.shutdownNow();
+            this.refreshAheadExecutor = null;
+        }
+    }
+
+    private void refreshAhead() {
+
+        for (final GoogleAnalyticsService service : this.googleAnalyticsServiceMap.values()) {
+            try {
+                service.refreshAhead();
+            } catch (Exception e) {
+                // an exception would cancel the next rounds
+                Logger.warn(this, "Error refreshing Google Analytics reports: " + e.getMessage());
+            }
+        }
+    }
+}
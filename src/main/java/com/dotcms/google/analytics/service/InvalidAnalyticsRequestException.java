@@ -0,0 +1,11 @@
+package com.dotcms.google.analytics.service;
+
+/**
+ * Thrown when an analytics request is rejected locally, before calling Google Analytics: unknown dimensions or
+ * metrics, invalid filter operators or fields that can not be queried together.
+ */
+public class InvalidAnalyticsRequestException extends IllegalArgumentException {
+    public InvalidAnalyticsRequestException(final String message) {
+        super(message);
+    }
+}
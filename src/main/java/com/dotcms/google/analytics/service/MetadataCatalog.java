@@ -0,0 +1,521 @@
+package com.dotcms.google.analytics.service;
+
+import com.dotcms.google.analytics.model.AnalyticsRequest;
+import com.dotcms.google.analytics.model.FilterRequest;
+import com.dotcms.google.analytics.model.PivotRequest;
+import com.dotmarketing.util.Config;
+import com.dotmarketing.util.Logger;
+import com.google.analytics.data.v1beta.BetaAnalyticsDataClient;
+import com.google.analytics.data.v1beta.CheckCompatibilityRequest;
+import com.google.analytics.data.v1beta.CheckCompatibilityResponse;
+import com.google.analytics.data.v1beta.Compatibility;
+import com.google.analytics.data.v1beta.Dimension;
+import com.google.analytics.data.v1beta.DimensionCompatibility;
+import com.google.analytics.data.v1beta.DimensionMetadata;
+import com.google.analytics.data.v1beta.Filter;
+import com.google.analytics.data.v1beta.GetMetadataRequest;
+import com.google.analytics.data.v1beta.FilterExpression;
+import com.google.analytics.data.v1beta.Metadata;
+import com.google.analytics.data.v1beta.Metric;
+import com.google.analytics.data.v1beta.MetricCompatibility;
+import com.google.analytics.data.v1beta.MetricMetadata;
+import com.google.analytics.data.v1beta.MetricType;
+import com.google.analytics.data.v1beta.RunPivotReportRequest;
+import com.google.analytics.data.v1beta.RunReportRequest;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.liferay.util.StringPool;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Per-property cache of the Google Analytics metadata (dimension and metric names, types and custom definitions),
+ * used to validate requests locally so typos and invalid operators fail before spending a round trip and quota.
+ * Metadata is always loaded in the background, requests of a property whose metadata is not loaded yet are left for
+ * Google Analytics to validate, and stale metadata keeps being served while it is refreshed. The result of
+ * checkCompatibility is cached for each combination of fields, the call itself runs through the caller so it takes a
+ * slot of the site and honours the deadline of the request.
+ */
+public class MetadataCatalog {
+
+    /**
+     * Minutes after which the metadata of a property is refreshed.
+     */
+    private static final long REFRESH_MINUTES =
+            Config.getLongProperty("GOOGLE_ANALYTICS_METADATA_REFRESH_MINUTES", 60);
+
+    /**
+     * Seconds to wait before trying again to load metadata that could not be loaded.
+     */
+    private static final long RETRY_SECONDS = 60;
+
+    private static final boolean VALIDATION_ENABLED =
+            Config.getBooleanProperty("GOOGLE_ANALYTICS_PREFLIGHT_VALIDATION", true);
+
+    private static final boolean CHECK_COMPATIBILITY_ENABLED =
+            Config.getBooleanProperty("GOOGLE_ANALYTICS_CHECK_COMPATIBILITY", true);
+
+    /**
+     * Max number of fields Google Analytics accepts on a single report.
+     */
+    private static final int MAX_METRICS = 10;
+    private static final int MAX_DIMENSIONS = 9;
+
+    private static final Set<String> MATCH_TYPES = Arrays.stream(Filter.StringFilter.MatchType.values())
+            .filter(matchType -> matchType != Filter.StringFilter.MatchType.UNRECOGNIZED
+                    && matchType != Filter.StringFilter.MatchType.MATCH_TYPE_UNSPECIFIED)
+            .map(Enum::name)
+            .collect(Collectors.toSet());
+
+    private static final Set<String> NUMERIC_OPERATIONS = Arrays.stream(Filter.NumericFilter.Operation.values())
+            .filter(operation -> operation != Filter.NumericFilter.Operation.UNRECOGNIZED
+                    && operation != Filter.NumericFilter.Operation.OPERATION_UNSPECIFIED)
+            .map(Enum::name)
+            .collect(Collectors.toSet());
+
+    /**
+     * Operator metric filters used to be sent with, taken as EQUAL.
+     */
+    private static final String EXACT = "EXACT";
+
+    private final BetaAnalyticsDataClient analyticsDataClient;
+    private final Map<String, PropertyMetadata> metadataByProperty = new ConcurrentHashMap<>();
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private final Cache<String, Set<String>> incompatibleFieldsCache = CacheBuilder.newBuilder()
+            .maximumSize(1000)
+            .expireAfterWrite(REFRESH_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    public MetadataCatalog(final BetaAnalyticsDataClient analyticsDataClient) {
+        this.analyticsDataClient = analyticsDataClient;
+    }
+
+    /**
+     * Returns the metadata of the property without waiting for it: it is loaded in the background the first time and
+     * refreshed in the background once it is stale.
+     * @param propertyId String
+     * @return PropertyMetadata or null if it is not loaded yet or could not be loaded
+     */
+    public PropertyMetadata getMetadata(final String propertyId) {
+
+        final PropertyMetadata metadata = this.metadataByProperty.get(propertyId);
+        if ((metadata == null || metadata.isStale(System.currentTimeMillis())) && this.refreshing.add(propertyId)) {
+            refresh(propertyId);
+        }
+
+        return metadata != null && metadata.isLoaded() ? metadata : null;
+    }
+
+    /**
+     * Returns the type of the metric on the property, without waiting for the metadata.
+     * @param propertyId String
+     * @param metric String
+     * @return MetricType or null if the metadata is not loaded or the metric is unknown
+     */
+    public MetricType getMetricType(final String propertyId, final String metric) {
+
+        final PropertyMetadata metadata = this.metadataByProperty.get(propertyId);
+        return metadata != null && metadata.isLoaded() ? metadata.getMetricType(metric) : null;
+    }
+
+    /**
+     * Checks the request against the metadata of its property: dimension, metric and filter fields have to exist,
+     * filter operators have to be valid and the sorts have to be one of the metrics.
+     * @param analyticsRequest AnalyticsRequest
+     * @throws InvalidAnalyticsRequestException if the request would be rejected by Google Analytics
+     */
+    public void validate(final AnalyticsRequest analyticsRequest) {
+
+        if (!VALIDATION_ENABLED) {
+            return;
+        }
+
+        final List<String> metrics = split(analyticsRequest.getMetrics());
+        final List<String> dimensions = new ArrayList<>(split(analyticsRequest.getDimensions()));
+        for (final PivotRequest pivot : analyticsRequest.getPivotList()) {
+            if (pivot.getSort() != null && !pivot.getSort().isEmpty() && !metrics.contains(pivot.getSort())) {
+                throw new InvalidAnalyticsRequestException("Pivot sort field: " + pivot.getSort()
+                        + " has to be one of the metrics");
+            }
+            split(pivot.getFieldNames()).stream()
+                    .filter(field -> !dimensions.contains(field))
+                    .forEach(dimensions::add);
+        }
+        if (metrics.size() > MAX_METRICS) {
+            throw new InvalidAnalyticsRequestException("A report accepts at most " + MAX_METRICS + " metrics");
+        }
+        if (dimensions.size() > MAX_DIMENSIONS) {
+            throw new InvalidAnalyticsRequestException("A report accepts at most " + MAX_DIMENSIONS + " dimensions");
+        }
+
+        validateOperators(analyticsRequest.getDimensionFilterList());
+        validateNumericFilters(analyticsRequest.getMetricFilterList());
+
+        final String sort = analyticsRequest.getSort();
+        if (sort != null && !sort.isEmpty() && !metrics.contains(sort)) {
+            throw new InvalidAnalyticsRequestException("Sort field: " + sort + " has to be one of the metrics");
+        }
+
+        final PropertyMetadata metadata = getMetadata(analyticsRequest.getPropertyId());
+        if (metadata == null) {
+            // without metadata Google Analytics does the validation
+            return;
+        }
+
+        for (final String metric : metrics) {
+            if (!metadata.isMetric(metric)) {
+                throw new InvalidAnalyticsRequestException("Unknown metric: " + metric);
+            }
+        }
+        for (final String dimension : dimensions) {
+            if (!metadata.isDimension(dimension)) {
+                throw new InvalidAnalyticsRequestException("Unknown dimension: " + dimension);
+            }
+        }
+        for (final FilterRequest filter : analyticsRequest.getDimensionFilterList()) {
+            if (!metadata.isDimension(filter.getField())) {
+                throw new InvalidAnalyticsRequestException("Unknown dimension filter field: " + filter.getField());
+            }
+        }
+        for (final FilterRequest filter : analyticsRequest.getMetricFilterList()) {
+            if (!metadata.isMetric(filter.getField())) {
+                throw new InvalidAnalyticsRequestException("Unknown metric filter field: " + filter.getField());
+            }
+            if (metadata.getMetricType(filter.getField()) == MetricType.TYPE_INTEGER
+                    && !isInteger(filter.getValue())) {
+                throw new InvalidAnalyticsRequestException("Metric filter on " + filter.getField()
+                        + " needs an integer value, got: " + filter.getValue());
+            }
+        }
+    }
+
+    /**
+     * Checks that the dimensions and metrics of the request (including the filter fields) can be queried together.
+     * The answer of Google Analytics is cached for each combination of fields.
+     * @param runReportRequest RunReportRequest
+     * @param caller CompatibilityCaller that runs the checkCompatibility call
+     * @throws InvalidAnalyticsRequestException if some of the fields are incompatible
+     */
+    public void checkCompatibility(final RunReportRequest runReportRequest, final CompatibilityCaller caller) {
+
+        checkCompatibility(runReportRequest.getProperty(), runReportRequest.getDimensionsList(),
+                runReportRequest.getMetricsList(), runReportRequest.getDimensionFilter(),
+                runReportRequest.getMetricFilter(), caller);
+    }
+
+    /**
+     * Same as {@link #checkCompatibility(RunReportRequest, CompatibilityCaller)} for pivot reports.
+     * @param runPivotReportRequest RunPivotReportRequest
+     * @param caller CompatibilityCaller that runs the checkCompatibility call
+     * @throws InvalidAnalyticsRequestException if some of the fields are incompatible
+     */
+    public void checkCompatibility(final RunPivotReportRequest runPivotReportRequest,
+                                   final CompatibilityCaller caller) {
+
+        checkCompatibility(runPivotReportRequest.getProperty(), runPivotReportRequest.getDimensionsList(),
+                runPivotReportRequest.getMetricsList(), runPivotReportRequest.getDimensionFilter(),
+                runPivotReportRequest.getMetricFilter(), caller);
+    }
+
+    private void checkCompatibility(final String property,
+                                    final List<Dimension> dimensionList,
+                                    final List<Metric> metricList,
+                                    final FilterExpression dimensionFilter,
+                                    final FilterExpression metricFilter,
+                                    final CompatibilityCaller caller) {
+
+        if (!CHECK_COMPATIBILITY_ENABLED) {
+            return;
+        }
+
+        final Set<String> dimensions = new TreeSet<>();
+        dimensionList.forEach(dimension -> dimensions.add(dimension.getName()));
+        collectFields(dimensionFilter, dimensions);
+        final Set<String> metrics = new TreeSet<>();
+        metricList.forEach(metric -> metrics.add(metric.getName()));
+        collectFields(metricFilter, metrics);
+
+        final CheckCompatibilityRequest.Builder requestBuilder = CheckCompatibilityRequest.newBuilder()
+                .setProperty(property)
+                .setCompatibilityFilter(Compatibility.INCOMPATIBLE);
+        dimensions.forEach(dimension -> requestBuilder.addDimensions(Dimension.newBuilder().setName(dimension)));
+        metrics.forEach(metric -> requestBuilder.addMetrics(Metric.newBuilder().setName(metric)));
+        final CheckCompatibilityRequest request = requestBuilder.build();
+
+        final String key = request.getProperty() + StringPool.COLON + dimensions + StringPool.COLON + metrics;
+        Set<String> incompatibleFields = this.incompatibleFieldsCache.getIfPresent(key);
+        if (incompatibleFields == null) {
+            try {
+                incompatibleFields = toIncompatibleFields(caller.call(request));
+                this.incompatibleFieldsCache.put(key, incompatibleFields);
+            } catch (Exception e) {
+                // let Google Analytics give the final answer
+                Logger.debug(this, () -> "Could not check compatibility: " + e.getMessage());
+                return;
+            }
+        }
+
+        if (!incompatibleFields.isEmpty()) {
+            throw new InvalidAnalyticsRequestException("These fields can not be queried together: "
+                    + incompatibleFields);
+        }
+    }
+
+    /**
+     * Drops the cached metadata and compatibility results.
+     */
+    public void clear() {
+        this.metadataByProperty.clear();
+        this.incompatibleFieldsCache.invalidateAll();
+    }
+
+    private void refresh(final String propertyId) {
+
+        ApiFutures.addCallback(this.analyticsDataClient.getMetadataCallable().futureCall(
+                GetMetadataRequest.newBuilder()
+                        .setName(metadataName(propertyId)).build()),
+                new ApiFutureCallback<Metadata>() {
+                    @Override
+                    public void onFailure(final Throwable throwable) {
+                        Logger.debug(MetadataCatalog.class, () -> "Could not load Google Analytics metadata for "
+                                + "property: " + propertyId + ", " + throwable.getMessage());
+                        // metadata that never loaded is tried again after a while, stale metadata is kept
+                        metadataByProperty.compute(propertyId, (key, metadata) ->
+                                metadata != null && metadata.isLoaded() ?
+                                        metadata : PropertyMetadata.notLoaded(System.currentTimeMillis()));
+                        refreshing.remove(propertyId);
+                    }
+
+                    @Override
+                    public void onSuccess(final Metadata metadata) {
+                        metadataByProperty.put(propertyId, new PropertyMetadata(metadata, System.currentTimeMillis()));
+                        refreshing.remove(propertyId);
+                    }
+                }, MoreExecutors.directExecutor());
+    }
+
+    private static String metadataName(final String propertyId) {
+        return "properties/" + propertyId + "/metadata";
+    }
+
+    private static Set<String> toIncompatibleFields(final CheckCompatibilityResponse response) {
+
+        final Set<String> incompatibleFields = new TreeSet<>();
+        for (final DimensionCompatibility compatibility : response.getDimensionCompatibilitiesList()) {
+            if (compatibility.getCompatibility() == Compatibility.INCOMPATIBLE) {
+                incompatibleFields.add(compatibility.getDimensionMetadata().getApiName());
+            }
+        }
+        for (final MetricCompatibility compatibility : response.getMetricCompatibilitiesList()) {
+            if (compatibility.getCompatibility() == Compatibility.INCOMPATIBLE) {
+                incompatibleFields.add(compatibility.getMetricMetadata().getApiName());
+            }
+        }
+        return Collections.unmodifiableSet(incompatibleFields);
+    }
+
+    private static void collectFields(final FilterExpression filterExpression, final Set<String> fields) {
+
+        if (filterExpression.hasFilter()) {
+            fields.add(filterExpression.getFilter().getFieldName());
+        } else if (filterExpression.hasAndGroup()) {
+            filterExpression.getAndGroup().getExpressionsList().forEach(expression -> collectFields(expression, fields));
+        } else if (filterExpression.hasOrGroup()) {
+            filterExpression.getOrGroup().getExpressionsList().forEach(expression -> collectFields(expression, fields));
+        } else if (filterExpression.hasNotExpression()) {
+            collectFields(filterExpression.getNotExpression(), fields);
+        }
+    }
+
+    private static void validateOperators(final List<FilterRequest> filters) {
+
+        for (final FilterRequest filter : filters) {
+            if (filter.getOperator() != null && !MATCH_TYPES.contains(filter.getOperator())) {
+                throw new InvalidAnalyticsRequestException("Invalid filter operator: " + filter.getOperator()
+                        + ", expected one of " + new TreeSet<>(MATCH_TYPES));
+            }
+        }
+    }
+
+    /**
+     * Metric filters are numeric: EQUAL, LESS_THAN, LESS_THAN_OR_EQUAL, GREATER_THAN or GREATER_THAN_OR_EQUAL (EXACT
+     * is taken as EQUAL) on a number.
+     */
+    private static void validateNumericFilters(final List<FilterRequest> filters) {
+
+        for (final FilterRequest filter : filters) {
+            if (filter.getOperator() != null && !EXACT.equals(filter.getOperator())
+                    && !NUMERIC_OPERATIONS.contains(filter.getOperator())) {
+                throw new InvalidAnalyticsRequestException("Invalid metric filter operator: " + filter.getOperator()
+                        + ", expected one of " + new TreeSet<>(NUMERIC_OPERATIONS));
+            }
+            try {
+                new BigDecimal(filter.getValue() != null ? filter.getValue().trim() : StringPool.BLANK);
+            } catch (NumberFormatException e) {
+                throw new InvalidAnalyticsRequestException("Metric filter on " + filter.getField()
+                        + " needs a numeric value, got: " + filter.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the numeric operation of a metric filter, EQUAL when it has none.
+     * @param operator String validated by {@link #validate(AnalyticsRequest)}
+     * @return Filter.NumericFilter.Operation
+     */
+    static Filter.NumericFilter.Operation toNumericOperation(final String operator) {
+
+        if (operator == null || EXACT.equals(operator)) {
+            return Filter.NumericFilter.Operation.EQUAL;
+        }
+        if (!NUMERIC_OPERATIONS.contains(operator)) {
+            throw new InvalidAnalyticsRequestException("Invalid metric filter operator: " + operator);
+        }
+        return Filter.NumericFilter.Operation.valueOf(operator);
+    }
+
+    /**
+     * Returns the match type of a dimension filter, EXACT when it has none.
+     * @param operator String
+     * @return Filter.StringFilter.MatchType
+     * @throws InvalidAnalyticsRequestException if the operator is not a match type
+     */
+    static Filter.StringFilter.MatchType toMatchType(final String operator) {
+
+        if (operator == null) {
+            return Filter.StringFilter.MatchType.EXACT;
+        }
+        if (!MATCH_TYPES.contains(operator)) {
+            throw new InvalidAnalyticsRequestException("Invalid filter operator: " + operator
+                    + ", expected one of " + new TreeSet<>(MATCH_TYPES));
+        }
+        return Filter.StringFilter.MatchType.valueOf(operator);
+    }
+
+    /**
+     * True if the value is a whole number, such as 12 or 12.0.
+     * @param value String
+     * @return boolean
+     */
+    static boolean isInteger(final String value) {
+
+        try {
+            final BigDecimal number = new BigDecimal(value.trim());
+            return number.signum() == 0 || number.stripTrailingZeros().scale() <= 0;
+        } catch (NumberFormatException | NullPointerException e) {
+            return false;
+        }
+    }
+
+    private static List<String> split(final String fields) {
+
+        if (fields == null || fields.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final List<String> names = new ArrayList<>();
+        for (final String field : fields.split(StringPool.COMMA)) {
+            names.add(field.trim());
+        }
+        return names;
+    }
+
+    /**
+     * Runs the checkCompatibility call for the catalog, within the limits and the deadline of the request.
+     */
+    @FunctionalInterface
+    public interface CompatibilityCaller {
+
+        CheckCompatibilityResponse call(CheckCompatibilityRequest request) throws IOException;
+    }
+
+    /**
+     * Dimensions and metrics available on a property, indexed by api name (deprecated names included).
+     */
+    public static class PropertyMetadata {
+
+        private final Map<String, DimensionMetadata> dimensions = new HashMap<>();
+        private final Map<String, MetricMetadata> metrics = new HashMap<>();
+        private final long loadedAt;
+        private final boolean loaded;
+
+        PropertyMetadata(final Metadata metadata, final long loadedAt) {
+
+            for (final DimensionMetadata dimension : metadata.getDimensionsList()) {
+                this.dimensions.put(dimension.getApiName(), dimension);
+                dimension.getDeprecatedApiNamesList().forEach(name -> this.dimensions.put(name, dimension));
+            }
+            for (final MetricMetadata metric : metadata.getMetricsList()) {
+                this.metrics.put(metric.getApiName(), metric);
+                metric.getDeprecatedApiNamesList().forEach(name -> this.metrics.put(name, metric));
+            }
+            this.loadedAt = loadedAt;
+            this.loaded = true;
+        }
+
+        private PropertyMetadata(final long loadedAt) {
+            this.loadedAt = loadedAt;
+            this.loaded = false;
+        }
+
+        static PropertyMetadata notLoaded(final long failedAt) {
+            return new PropertyMetadata(failedAt);
+        }
+
+        boolean isStale(final long now) {
+            return loaded ? now - loadedAt > TimeUnit.MINUTES.toMillis(REFRESH_MINUTES) :
+                    now - loadedAt > TimeUnit.SECONDS.toMillis(RETRY_SECONDS);
+        }
+
+        boolean isLoaded() {
+            return loaded;
+        }
+
+        public boolean isDimension(final String name) {
+            return dimensions.containsKey(name);
+        }
+
+        public boolean isMetric(final String name) {
+            return metrics.containsKey(name);
+        }
+
+        /**
+         * Returns the type of the metric, null if the metric is unknown.
+         * @param name String
+         * @return MetricType
+         */
+        public MetricType getMetricType(final String name) {
+            final MetricMetadata metric = metrics.get(name);
+            return metric != null ? metric.getType() : null;
+        }
+
+        /**
+         * True if the field is a custom dimension or metric of the property.
+         * @param name String
+         * @return boolean
+         */
+        public boolean isCustomDefinition(final String name) {
+            final DimensionMetadata dimension = dimensions.get(name);
+            if (dimension != null) {
+                return dimension.getCustomDefinition();
+            }
+            final MetricMetadata metric = metrics.get(name);
+            return metric != null && metric.getCustomDefinition();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.dotcms.google.analytics.service;
+
+import com.dotmarketing.util.Config;
+import com.dotmarketing.util.Logger;
+import com.google.gson.Gson;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Structured log of the Google Analytics queries. Every query slower than a threshold is logged, plus a sample of the
+ * rest. The queries only drop an entry into a lock-free ring buffer, a background thread formats and writes them, so
+ * the queries never pay for the log I/O. When the writer falls behind and the buffer is full the entries are dropped
+ * and counted.
+ */
+public class QueryLog {
+
+    /**
+     * Queries that take at least this many milliseconds are always logged.
+     */
+    private static final long SLOW_QUERY_MILLIS =
+            Config.getLongProperty("GOOGLE_ANALYTICS_SLOW_QUERY_MS", 1000);
+
+    /**
+     * Share (0 to 1) of the faster queries that is logged.
+     */
+    private static final double SAMPLE_RATE =
+            Config.getFloatProperty("GOOGLE_ANALYTICS_QUERY_LOG_SAMPLE_RATE", 0.01f);
+
+    /**
+     * Entries the buffer holds, rounded up to a power of two.
+     */
+    private static final int BUFFER_SIZE =
+            Config.getIntProperty("GOOGLE_ANALYTICS_QUERY_LOG_BUFFER_SIZE", 1024);
+
+    public static final String CACHE_HIT = "hit";
+    public static final String CACHE_MISS = "miss";
+    public static final String CACHE_REFRESH = "refresh";
+    public static final String CACHE_PARTITION = "partition";
+    public static final String CACHE_RESPONSE = "response";
+
+    private static final long WRITER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private static final QueryLog INSTANCE = new QueryLog(BUFFER_SIZE);
+
+    private static final Gson GSON = new Gson();
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private volatile Thread writer;
+
+    private QueryLog(final int bufferSize) {
+
+        final int size = Integer.highestOneBit(Math.max(2, bufferSize - 1) << 1);
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    public static QueryLog getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * True if a query that took the given time has to be logged: it is slow or it was sampled.
+     * @param latencyMillis long
+     * @return boolean
+     */
+    public boolean shouldLog(final long latencyMillis) {
+        return latencyMillis >= SLOW_QUERY_MILLIS
+                || (SAMPLE_RATE > 0 && ThreadLocalRandom.current().nextDouble() < SAMPLE_RATE);
+    }
+
+    /**
+     * Queues the entry to be written, never blocks.
+     * @param entry Entry
+     */
+    public void record(final Entry entry) {
+
+        long position;
+        do {
+            position = this.tail.get();
+            if (position - this.head.get() >= this.slots.length()) {
+                this.dropped.increment();
+                return;
+            }
+        } while (!this.tail.compareAndSet(position, position + 1));
+
+        this.slots.set((int) (position & this.mask), entry);
+        startWriter();
+    }
+
+    /**
+     * Stops the writer after writing what is queued, called when the bundle stops.
+     */
+    public synchronized void stop() {
+
+        final Thread thread = this.writer;
+        this.writer = null;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void startWriter() {
+
+        if (this.writer == null) {
+            synchronized (this) {
+                if (this.writer == null) {
+                    final Thread thread = new Thread(this::write, "google-analytics-query-log");
+                    thread.setDaemon(true);
+                    this.writer = thread;
+                    thread.start();
+                }
+            }
+        }
+    }
+
+    private void write() {
+
+        final Thread self = Thread.currentThread();
+        while (this.writer == self) {
+            drain();
+            LockSupport.parkNanos(this, WRITER_PARK_NANOS);
+        }
+        drain();
+    }
+
+    /**
+     * Writes the entries published so far, stops at the first slot that was claimed but not published yet.
+     */
+    private void drain() {
+
+        long position = this.head.get();
+        while (position < this.tail.get()) {
+
+            final int index = (int) (position & this.mask);
+            final Entry entry = this.slots.get(index);
+            if (entry == null) {
+                break;
+            }
+
+            this.slots.set(index, null);
+            this.head.set(++position);
+            Logger.info(QueryLog.class, "GA4 Query: " + GSON.toJson(entry.toMap()));
+        }
+
+        final long droppedEntries = this.dropped.sumThenReset();
+        if (droppedEntries > 0) {
+            Logger.warn(QueryLog.class, "GA4 query log dropped " + droppedEntries + " entries, the buffer was full");
+        }
+    }
+
+    /**
+     * A logged query.
+     */
+    public static class Entry {
+
+        private final long timestamp = System.currentTimeMillis();
+        private final String siteId;
+        private final String propertyId;
+        private final String kind;
+        private final String cacheStatus;
+        private final long latencyMillis;
+        private final int rows;
+        private final int bytes;
+        private final int tokensConsumed;
+        private final String error;
+        private String request;
+        private long totalLatencyMillis = -1;
+        private Map<String, Long> stages;
+
+        /**
+         * @param siteId String site the query ran for
+         * @param propertyId String GA property
+         * @param kind String report kind (report, pivot)
+         * @param cacheStatus String hit, miss, partition or refresh
+         * @param latencyMillis long
+         * @param rows int rows returned
+         * @param bytes int serialized size of the response
+         * @param tokensConsumed int property tokens consumed, 0 when served from the cache
+         * @param error String class of the error or null if the query succeeded
+         */
+        public Entry(final String siteId, final String propertyId, final String kind, final String cacheStatus,
+                     final long latencyMillis, final int rows, final int bytes, final int tokensConsumed,
+                     final String error) {
+            this.siteId = siteId;
+            this.propertyId = propertyId;
+            this.kind = kind;
+            this.cacheStatus = cacheStatus;
+            this.latencyMillis = latencyMillis;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.tokensConsumed = tokensConsumed;
+            this.error = error;
+        }
+
+        /**
+         * Adds the trace of the request the query ran for: its name, its total time and the time of each stage.
+         * @return this entry
+         */
+        Entry withTrace(final String request, final long totalLatencyMillis, final Map<String, Long> stages) {
+            this.request = request;
+            this.totalLatencyMillis = totalLatencyMillis;
+            this.stages = stages;
+            return this;
+        }
+
+        private Map<String, Object> toMap() {
+
+            final Map<String, Object> map = new LinkedHashMap<>();
+            map.put("timestamp", timestamp);
+            map.put("site", siteId);
+            map.put("property", propertyId);
+            map.put("kind", kind);
+            map.put("cache", cacheStatus);
+            map.put("latencyMs", latencyMillis);
+            map.put("rows", rows);
+            map.put("bytes", bytes);
+            map.put("tokens", tokensConsumed);
+            if (error != null) {
+                map.put("error", error);
+            }
+            if (request != null) {
+                map.put("request", request);
+                map.put("totalLatencyMs", totalLatencyMillis);
+                map.put("stages", stages);
+            }
+            return map;
+        }
+    }
+}
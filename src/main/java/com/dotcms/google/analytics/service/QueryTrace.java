@@ -0,0 +1,208 @@
+package com.dotcms.google.analytics.service;
+
+import com.dotmarketing.util.Config;
+import com.dotmarketing.util.Logger;
+import io.opencensus.common.Scope;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.Span;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.Tracer;
+import io.opencensus.trace.Tracing;
+import io.opencensus.trace.propagation.SpanContextParseException;
+import io.opencensus.trace.propagation.TextFormat;
+import io.opencensus.trace.samplers.Samplers;
+import io.perfmark.PerfMark;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Trace of a request through the resource, the service and the call to Google Analytics. The request is a root
+ * OpenCensus span, child of the caller's span when the request carries a W3C traceparent header, and each stage
+ * (credentials, validate, build, cache, bulkhead, upstream, mapping, serialization) is a child span and a PerfMark
+ * task, so they show up in whatever tracer the runtime has installed. The time of every stage is also kept here and
+ * added to the query log entry of the request, which is written when the trace closes, so the stage that cost the
+ * time is visible without any tracing backend.
+ *
+ * <pre>
+ * try (QueryTrace trace = QueryTrace.start("POST /query", request::getHeader)) {
+ *     try (QueryTrace.Stage stage = QueryTrace.stage("mapping")) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ */
+public final class QueryTrace implements AutoCloseable {
+
+    /**
+     * Share (0 to 1) of the requests the root span is sampled for, when the caller did not sample it already.
+     */
+    private static final double SAMPLE_RATE =
+            Config.getFloatProperty("GOOGLE_ANALYTICS_TRACE_SAMPLE_RATE", 0.01f);
+
+    private static final String SPAN_PREFIX = "GoogleAnalytics/";
+
+    private static final Tracer TRACER = Tracing.getTracer();
+
+    private static final TextFormat.Getter<Function<String, String>> HEADER_GETTER =
+            new TextFormat.Getter<Function<String, String>>() {
+                @Override
+                public String get(final Function<String, String> headers, final String key) {
+                    return headers.apply(key);
+                }
+            };
+
+    private static final ThreadLocal<QueryTrace> CURRENT = new ThreadLocal<>();
+
+    private static final QueryLog QUERY_LOG = QueryLog.getInstance();
+
+    private final String name;
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Long> stageNanos = new LinkedHashMap<>();
+    private final List<QueryLog.Entry> entries = new ArrayList<>(1);
+    private final Span span;
+    private final Scope scope;
+    private final QueryTrace previous;
+
+    private QueryTrace(final String name, final SpanContext remoteParent) {
+
+        this.name = name;
+        this.span = (remoteParent != null ?
+                TRACER.spanBuilderWithRemoteParent(SPAN_PREFIX + name, remoteParent) :
+                TRACER.spanBuilder(SPAN_PREFIX + name))
+                .setSpanKind(Span.Kind.SERVER)
+                .setSampler(Samplers.probabilitySampler(Math.max(0, Math.min(1, SAMPLE_RATE))))
+                .setRecordEvents(true)
+                .startSpan();
+        this.scope = TRACER.withSpan(this.span);
+        this.previous = CURRENT.get();
+        CURRENT.set(this);
+        PerfMark.startTask(SPAN_PREFIX + name);
+    }
+
+    /**
+     * Starts the trace of a request on the current thread.
+     * @param name String name of the request, such as "POST /query"
+     * @param headers Function that returns the value of a header of the incoming request, null if there is none
+     * @return QueryTrace to close when the request is done
+     */
+    public static QueryTrace start(final String name, final Function<String, String> headers) {
+
+        SpanContext remoteParent = null;
+        if (headers != null) {
+            try {
+                remoteParent = Tracing.getPropagationComponent().getTraceContextFormat()
+                        .extract(headers, HEADER_GETTER);
+            } catch (SpanContextParseException | RuntimeException e) {
+                Logger.debug(QueryTrace.class, () -> "No trace context on the request: " + e.getMessage());
+            }
+        }
+        return new QueryTrace(name, remoteParent);
+    }
+
+    /**
+     * Returns the trace of the request running on the current thread.
+     * @return QueryTrace or null if there is none
+     */
+    public static QueryTrace current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Starts a stage of the current request, it is timed even when there is no trace on the thread.
+     * @param name String
+     * @return Stage to close when the stage is done
+     */
+    public static Stage stage(final String name) {
+        return new Stage(name, CURRENT.get());
+    }
+
+    /**
+     * Holds the query log entry of a query of this request until the request is done, so it is written with the
+     * time of every stage, including the ones that run after the query (mapping, serialization).
+     * @param entry QueryLog.Entry
+     */
+    void defer(final QueryLog.Entry entry) {
+
+        synchronized (this.entries) {
+            this.entries.add(entry);
+        }
+    }
+
+    /**
+     * Returns the time in milliseconds spent in each stage so far.
+     * @return Map of stage name to milliseconds
+     */
+    public Map<String, Long> getStageMillis() {
+
+        final Map<String, Long> stageMillis = new LinkedHashMap<>();
+        synchronized (this.stageNanos) {
+            this.stageNanos.forEach((stage, nanos) -> stageMillis.put(stage, TimeUnit.NANOSECONDS.toMillis(nanos)));
+        }
+        return stageMillis;
+    }
+
+    private void addStage(final String stage, final long nanos) {
+
+        synchronized (this.stageNanos) {
+            this.stageNanos.merge(stage, nanos, Long::sum);
+        }
+    }
+
+    @Override
+    public void close() {
+
+        final long totalMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.startNanos);
+        PerfMark.stopTask(SPAN_PREFIX + this.name);
+        this.span.putAttribute("latencyMs", AttributeValue.longAttributeValue(totalMillis));
+        this.scope.close();
+        this.span.end();
+        if (this.previous != null) {
+            CURRENT.set(this.previous);
+        } else {
+            CURRENT.remove();
+        }
+
+        final List<QueryLog.Entry> deferred;
+        synchronized (this.entries) {
+            deferred = new ArrayList<>(this.entries);
+        }
+        if (!deferred.isEmpty() && QUERY_LOG.shouldLog(totalMillis)) {
+            final Map<String, Long> stageMillis = getStageMillis();
+            deferred.forEach(entry -> QUERY_LOG.record(entry.withTrace(this.name, totalMillis, stageMillis)));
+        }
+    }
+
+    /**
+     * A timed stage of a request.
+     */
+    public static final class Stage implements AutoCloseable {
+
+        private final String name;
+        private final QueryTrace trace;
+        private final long startNanos = System.nanoTime();
+        private final Scope scope;
+
+        private Stage(final String name, final QueryTrace trace) {
+
+            this.name = name;
+            this.trace = trace;
+            this.scope = TRACER.spanBuilder(SPAN_PREFIX + name).startScopedSpan();
+            PerfMark.startTask(SPAN_PREFIX + name);
+        }
+
+        @Override
+        public void close() {
+
+            PerfMark.stopTask(SPAN_PREFIX + this.name);
+            this.scope.close();
+            if (this.trace != null) {
+                this.trace.addStage(this.name, System.nanoTime() - this.startNanos);
+            }
+        }
+    }
+}
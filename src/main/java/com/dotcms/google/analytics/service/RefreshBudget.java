@@ -0,0 +1,77 @@
+package com.dotcms.google.analytics.service;
+
+import com.google.analytics.data.v1beta.PropertyQuota;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the hourly property tokens spent on background refreshes to a share of the tokens the property has available
+ * in the hour, so refreshing hot reports never eats the quota the visitors need. The tokens are learned from the
+ * property quota returned by the refresh calls themselves.
+ */
+public class RefreshBudget {
+
+    private static final long WINDOW_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final double share;
+    private final Map<String, PropertyBudget> budgetByProperty = new ConcurrentHashMap<>();
+
+    /**
+     * @param share double share (0 to 1) of the hourly tokens of a property background refreshes may spend
+     */
+    public RefreshBudget(final double share) {
+        this.share = share;
+    }
+
+    /**
+     * True if a refresh of a report of the property still fits in the budget of the current hour.
+     * @param property String property resource name
+     * @return boolean
+     */
+    public boolean canSpend(final String property) {
+
+        if (share <= 0) {
+            return false;
+        }
+
+        final PropertyBudget budget = this.budgetByProperty.computeIfAbsent(property, key -> new PropertyBudget());
+        synchronized (budget) {
+            budget.roll(System.currentTimeMillis());
+            // until the first refresh comes back the tokens of the property are unknown
+            return budget.remaining < 0 || budget.spent < share * (budget.spent + budget.remaining);
+        }
+    }
+
+    /**
+     * Records the tokens spent by a refresh of a report of the property.
+     * @param property String property resource name
+     * @param propertyQuota PropertyQuota returned by the refresh
+     */
+    public void record(final String property, final PropertyQuota propertyQuota) {
+
+        final PropertyBudget budget = this.budgetByProperty.computeIfAbsent(property, key -> new PropertyBudget());
+        synchronized (budget) {
+            budget.roll(System.currentTimeMillis());
+            budget.spent += propertyQuota.getTokensPerHour().getConsumed();
+            budget.remaining = propertyQuota.getTokensPerHour().getRemaining();
+        }
+    }
+
+    private static class PropertyBudget {
+
+        private long windowStart;
+        private long spent;
+        private long remaining = -1;
+
+        private void roll(final long now) {
+
+            if (now - windowStart >= WINDOW_MILLIS) {
+                windowStart = now;
+                spent = 0;
+                remaining = -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.dotcms.google.analytics.service;
+
+import com.dotmarketing.util.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of Google Analytics queries a single site may run concurrently and the number of queries it may
+ * have waiting for a slot, so one site running heavy reports can not starve the rest of the sites on the cluster.
+ */
+public class SiteBulkhead {
+
+    private final String siteId;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final Semaphore permits;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    public SiteBulkhead(final String siteId, final int maxConcurrent, final int maxQueued) {
+
+        this.siteId = siteId;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxQueued = Math.max(0, maxQueued);
+        this.permits = new Semaphore(this.maxConcurrent, true);
+    }
+
+    /**
+     * Takes a slot to run a query, waiting at most maxWaitMillis when all the slots are busy.
+     * Each successful call must be paired with a {@link #release()}.
+     * @param maxWaitMillis long max time to wait for a slot
+     * @throws BulkheadFullException if the queue is full or no slot was freed on time
+     */
+    public void acquire(final long maxWaitMillis) {
+
+        if (permits.tryAcquire()) {
+            accepted.increment();
+            return;
+        }
+
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            rejected.increment();
+            Logger.debug(this, () -> "Rejecting GA query for site: " + siteId + ", queue is full");
+            throw new BulkheadFullException("Too many Google Analytics queries in progress for site: " + siteId);
+        }
+
+        try {
+            if (!permits.tryAcquire(Math.max(0, maxWaitMillis), TimeUnit.MILLISECONDS)) {
+                timedOut.increment();
+                Logger.debug(this, () -> "Rejecting GA query for site: " + siteId + ", no slot after " + maxWaitMillis + " ms");
+                throw new BulkheadFullException("Timed out waiting for a Google Analytics query slot for site: " + siteId);
+            }
+            accepted.increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected.increment();
+            throw new BulkheadFullException("Interrupted waiting for a Google Analytics query slot for site: " + siteId);
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    /**
+     * Takes a slot only if one is free right now, without queueing. Meant for background work that must not get in
+     * the way of the queries of the visitors. Each successful call must be paired with a {@link #release()}.
+     * @return boolean true if the slot was taken
+     */
+    public boolean tryAcquire() {
+        return permits.tryAcquire();
+    }
+
+    /**
+     * Gives back a slot taken by {@link #acquire(long)} or {@link #tryAcquire()}
+     */
+    public void release() {
+        permits.release();
+    }
+
+    public String getSiteId() {
+        return siteId;
+    }
+
+    /**
+     * Returns a snapshot of the limits and counters of this bulkhead.
+     * @return Map
+     */
+    public Map<String, Object> getStats() {
+
+        final Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("siteId", siteId);
+        stats.put("maxConcurrent", maxConcurrent);
+        stats.put("maxQueued", maxQueued);
+        stats.put("active", maxConcurrent - permits.availablePermits());
+        stats.put("queued", queued.get());
+        stats.put("accepted", accepted.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("timedOut", timedOut.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,64 @@
+package com.dotcms.google.analytics.service;
+
+import com.dotmarketing.util.Logger;
+import com.google.gson.Gson;
+import io.opencensus.common.Timestamp;
+import io.opencensus.trace.Tracing;
+import io.opencensus.trace.export.SpanData;
+import io.opencensus.trace.export.SpanExporter;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Exports the sampled spans of the plugin to the log, one "GA4 Span:" line each. It only gets spans when an OpenCensus
+ * implementation is installed in the runtime, the API bundled with the plugin does not record any.
+ */
+public class SpanLogHandler extends SpanExporter.Handler {
+
+    private static final String HANDLER_NAME = SpanLogHandler.class.getName();
+
+    private static final Gson GSON = new Gson();
+
+    /**
+     * Registers the handler with the span exporter, called when the bundle starts.
+     */
+    public static void register() {
+        Tracing.getExportComponent().getSpanExporter().registerHandler(HANDLER_NAME, new SpanLogHandler());
+    }
+
+    /**
+     * Unregisters the handler, called when the bundle stops.
+     */
+    public static void unregister() {
+        Tracing.getExportComponent().getSpanExporter().unregisterHandler(HANDLER_NAME);
+    }
+
+    @Override
+    public void export(final Collection<SpanData> spans) {
+
+        for (final SpanData span : spans) {
+
+            if (!span.getName().startsWith("GoogleAnalytics/")) {
+                continue;
+            }
+
+            final Map<String, Object> map = new LinkedHashMap<>();
+            map.put("name", span.getName());
+            map.put("traceId", span.getContext().getTraceId().toLowerBase16());
+            map.put("spanId", span.getContext().getSpanId().toLowerBase16());
+            if (span.getParentSpanId() != null) {
+                map.put("parentSpanId", span.getParentSpanId().toLowerBase16());
+            }
+            if (span.getEndTimestamp() != null) {
+                map.put("durationMs", toMillis(span.getEndTimestamp()) - toMillis(span.getStartTimestamp()));
+            }
+            Logger.info(SpanLogHandler.class, "GA4 Span: " + GSON.toJson(map));
+        }
+    }
+
+    private static long toMillis(final Timestamp timestamp) {
+        return timestamp.getSeconds() * 1000 + timestamp.getNanos() / 1000000;
+    }
+}
@@ -0,0 +1,60 @@
+package com.dotcms.google.analytics.util;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Builds short, stable fingerprints used as cache keys and entity tags.
+ */
+public final class Fingerprints {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Fingerprints() {
+    }
+
+    /**
+     * Returns the fingerprint of a protobuf message, serialized deterministically so equal messages always get the
+     * same fingerprint.
+     * @param message MessageLite
+     * @return String
+     */
+    public static String of(final MessageLite message) {
+
+        final byte[] bytes = new byte[message.getSerializedSize()];
+        final CodedOutputStream outputStream = CodedOutputStream.newInstance(bytes);
+        outputStream.useDeterministicSerialization();
+        try {
+            message.writeTo(outputStream);
+        } catch (IOException e) {
+            // writing to an array does not do I/O
+            throw new IllegalStateException(e);
+        }
+        return sha256Hex(bytes);
+    }
+
+    /**
+     * Returns the SHA-256 of the bytes as an hex string.
+     * @param bytes byte array
+     * @return String
+     */
+    public static String sha256Hex(final byte[] bytes) {
+
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            final char[] chars = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                chars[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+                chars[i * 2 + 1] = HEX[digest[i] & 0xF];
+            }
+            return new String(chars);
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM ships SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.dotcms.google.analytics.util;
+
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Helpers to reason about the date ranges of a report. Google Analytics accepts dates as YYYY-MM-DD or as the
+ * relative values "today", "yesterday" and "NdaysAgo", which are resolved in the time zone of the property.
+ */
+public final class ReportDates {
+
+    private static final Pattern DAYS_AGO = Pattern.compile("(\\d+)daysAgo");
+
+    private ReportDates() {
+    }
+
+    /**
+     * Resolves a Google Analytics date to a calendar date.
+     * @param date String date in any of the formats accepted by Google Analytics
+     * @param today LocalDate today in the time zone of the property
+     * @return LocalDate or null if the date can not be parsed
+     */
+    public static LocalDate resolve(final String date, final LocalDate today) {
+
+        if (date == null) {
+            return null;
+        }
+
+        final String value = date.trim();
+        if ("today".equalsIgnoreCase(value)) {
+            return today;
+        }
+        if ("yesterday".equalsIgnoreCase(value)) {
+            return today.minusDays(1);
+        }
+
+        final Matcher matcher = DAYS_AGO.matcher(value);
+        if (matcher.matches()) {
+            return today.minusDays(Long.parseLong(matcher.group(1)));
+        }
+
+        try {
+            return LocalDate.parse(value);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * True if the date is relative to today, so the day it points to moves at midnight.
+     * @param date String
+     * @return boolean
+     */
+    public static boolean isRelative(final String date) {
+
+        if (date == null) {
+            return false;
+        }
+
+        final String value = date.trim();
+        return "today".equalsIgnoreCase(value) || "yesterday".equalsIgnoreCase(value)
+                || DAYS_AGO.matcher(value).matches();
+    }
+
+    /**
+     * True if the range ends today or later, meaning its numbers still change. Ranges that can not be parsed are
+     * considered open.
+     * @param startDate String
+     * @param endDate String
+     * @param zoneId ZoneId of the property
+     * @return boolean
+     */
+    public static boolean includesToday(final String startDate, final String endDate, final ZoneId zoneId) {
+
+        final LocalDate today = LocalDate.now(zoneId);
+        final LocalDate start = resolve(startDate, today);
+        final LocalDate end = resolve(endDate, today);
+        return start == null || end == null || !end.isBefore(today);
+    }
+
+    /**
+     * Returns for how long the result of a range may be reused: closedMaxAge for closed ranges, openMaxAge for ranges
+     * that include today, and never past midnight for ranges with relative dates since they point to other days after it.
+     * @param startDate String
+     * @param endDate String
+     * @param zoneId ZoneId of the property
+     * @param openMaxAge long seconds for ranges that include today
+     * @param closedMaxAge long seconds for closed ranges
+     * @return long seconds
+     */
+    public static long maxAgeSeconds(final String startDate, final String endDate, final ZoneId zoneId,
+                                     final long openMaxAge, final long closedMaxAge) {
+
+        long maxAge = includesToday(startDate, endDate, zoneId) ? openMaxAge : closedMaxAge;
+        if (isRelative(startDate) || isRelative(endDate)) {
+            maxAge = Math.min(maxAge, secondsUntilMidnight(zoneId));
+        }
+
+        return maxAge;
+    }
+
+    /**
+     * Seconds left until the next midnight of the given time zone.
+     * @param zoneId ZoneId
+     * @return long
+     */
+    public static long secondsUntilMidnight(final ZoneId zoneId) {
+
+        final ZonedDateTime now = ZonedDateTime.now(zoneId);
+        final ZonedDateTime midnight = now.toLocalDate().plusDays(1).atStartOfDay(zoneId);
+        return Math.max(1, Duration.between(now, midnight).getSeconds());
+    }
+
+    /**
+     * Parses the time zone reported by Google Analytics, falling back to the server time zone.
+     * @param timeZone String such as "America/New_York"
+     * @return ZoneId
+     */
+    public static ZoneId zoneOf(final String timeZone) {
+
+        if (timeZone != null && !timeZone.isEmpty()) {
+            try {
+                return ZoneId.of(timeZone);
+            } catch (DateTimeException e) {
+                // fall back to the server time zone
+            }
+        }
+
+        return ZoneId.systemDefault();
+    }
+}
@@ -1,12 +1,15 @@
 package com.dotcms.google.analytics.view;
 
-import com.dotcms.google.analytics.app.AnalyticsApp;
-import com.dotcms.google.analytics.app.AnalyticsAppService;
 import com.dotcms.google.analytics.model.AnalyticsRequest;
+import com.dotcms.google.analytics.model.FunnelRequest;
+import com.dotcms.google.analytics.model.ReportResult;
 import com.dotcms.google.analytics.service.GoogleAnalyticsService;
+import com.dotcms.google.analytics.service.GoogleAnalyticsServiceRegistry;
 import com.dotmarketing.beans.Host;
 import com.dotmarketing.business.web.WebAPILocator;
 import com.dotmarketing.util.Logger;
+import com.google.analytics.data.v1alpha.RunFunnelReportResponse;
+import com.google.analytics.data.v1beta.RunPivotReportResponse;
 import com.google.analytics.data.v1beta.RunReportResponse;
 import org.apache.velocity.context.Context;
 import org.apache.velocity.tools.view.context.ViewContext;
@@ -14,16 +17,13 @@ import org.apache.velocity.tools.view.tools.ViewTool;
 
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A ViewTool implementation that provides functionality for querying Google Analytics data.
  */
 public class AnalyticsViewTool implements ViewTool {
 
-    private final AnalyticsAppService analyticsAppService = new AnalyticsAppService();
-    private final Map<String, GoogleAnalyticsService> googleAnalyticsServiceMap = new ConcurrentHashMap<>();
+    private final GoogleAnalyticsServiceRegistry serviceRegistry = GoogleAnalyticsServiceRegistry.getInstance();
 
     private HttpServletRequest request;
     private Context ctx;
@@ -63,23 +63,63 @@ public class AnalyticsViewTool implements ViewTool {
 
         Logger.debug(this, "Calling the Query Method");
 
-        final GoogleAnalyticsService googleAnalyticsService =
-                this.googleAnalyticsServiceMap.computeIfAbsent(siteId,
-                        key -> getGoogleAnalyticsService(siteId));
+        final GoogleAnalyticsService googleAnalyticsService = this.serviceRegistry.getService(siteId);
 
         Logger.debug(this, "End, Call the Query Method");
         return googleAnalyticsService.query(analyticsRequest);
     }
 
+    /**
+     * Executes an analytics query and wraps the response in a typed, indexed view that is cheaper to use from
+     * templates than the raw response: dimensions and metrics by name, metrics as numbers, sums and top rows.
+     *
+     * @param analyticsRequest The AnalyticsRequest instance representing the desired query.
+     * @return A ReportResult over the results of the query.
+     */
+    public final ReportResult queryResult(final AnalyticsRequest analyticsRequest) throws IOException {
+
+        return new ReportResult(query(analyticsRequest));
+    }
+
+    /**
+     * Executes a pivot report, the request needs at least one pivot (see {@link AnalyticsRequest#addPivot}).
+     *
+     * @param analyticsRequest The AnalyticsRequest instance representing the desired pivot report.
+     * @return A RunPivotReportResponse instance containing the results of the report.
+     */
+    public final RunPivotReportResponse queryPivot(final AnalyticsRequest analyticsRequest) throws IOException {
+
+        final Host currentHost = WebAPILocator.getHostWebAPI().getHost(this.request);
+        final GoogleAnalyticsService googleAnalyticsService =
+                this.serviceRegistry.getService(currentHost.getIdentifier());
+
+        return googleAnalyticsService.queryPivot(analyticsRequest);
+    }
+
+    /**
+     * Creates a funnel request for the provided property ID, add its steps with {@link FunnelRequest#addStep}.
+     *
+     * @param propertyId The property ID to query against.
+     * @return A FunnelRequest over the last 30 days that can be customized as needed.
+     */
+    public final FunnelRequest createFunnelRequest(final String propertyId) {
+
+        return new FunnelRequest(propertyId);
+    }
+
+    /**
+     * Executes a funnel report, all the steps are computed by Google Analytics in a single call.
+     *
+     * @param funnelRequest The FunnelRequest instance representing the desired funnel.
+     * @return A RunFunnelReportResponse instance, the step results are in its funnel table.
+     */
+    public final RunFunnelReportResponse queryFunnel(final FunnelRequest funnelRequest) throws IOException {
 
-    private  GoogleAnalyticsService getGoogleAnalyticsService(final String siteIdentifier) {
-        try {
+        final Host currentHost = WebAPILocator.getHostWebAPI().getHost(this.request);
+        final GoogleAnalyticsService googleAnalyticsService =
+                this.serviceRegistry.getService(currentHost.getIdentifier());
 
-            final AnalyticsApp analyticsApp = this.analyticsAppService.getAnalyticsApp(siteIdentifier);
-            return new GoogleAnalyticsService(analyticsApp.getJsonKeyFile());
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        return googleAnalyticsService.queryFunnel(funnelRequest);
     }
 
 }